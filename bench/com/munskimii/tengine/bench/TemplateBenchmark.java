@@ -0,0 +1,181 @@
+package com.munskimii.tengine.bench;
+
+/**
+ * The TemplateBenchmark class is the JMH suite of the engine, it measures the whole life of a template: parse, build
+ * (the java code), compile, load and generate.
+ *
+ * Synthetic templates are used, so the numbers do not depend on whatever is found in "config/templates":
+ *   small      a few lines of text and a handful of scriptlets, like a typical letter
+ *   large      256 kb with a scriptlet section every 10 lines of text
+ *   static     256 kb with a scriptlet section every 200 lines of text
+ *   scriptlet  256 kb with a scriptlet section every line
+ *
+ * Every benchmark reports throughput and sampled latency (with percentiles), the allocation rate is added by the gc
+ * profiler.  Build with "mvn -Pbench package", then run:
+ *
+ *   java -jar target/benchmarks.jar -prof gc
+ *   java -jar target/benchmarks.jar TemplateBenchmark.generate -p shape=small -prof gc
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.munskimii.tengine.*;
+import com.munskimii.tengine.base.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+
+	@Param({ "small", "large", "static", "scriptlet" })
+	public String shape;
+
+	private TContext _rCtx;
+	private byte[] _abTemplate;
+	private String _sSource;
+	private TemplateClassLoader _rLoader;
+	private Template _rTemp;
+	private Record _rRecord;
+
+	/** The output of generate(), reused by every invocation of a thread. **/
+	@State(Scope.Thread)
+	public static class Output {
+
+		private TemplateOutput _rOut = new TemplateOutput(null, Charset.forName("UTF-8"), 8192);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+
+		// the MetaContext of the base engine, without reading its config directory
+		MetaContext rMetaCtx = new MetaContext() {
+			public int size() { return 1; }
+			public String getVariableName(int iIndex) { return "data"; }
+			public String getClassName(int iIndex) { return "com.munskimii.tengine.base.Record"; }
+		};
+		_rCtx = new TContext(rMetaCtx, new MetaParameters());
+		_rRecord = new Record(new String[] { "fname", "lname", "email" }, new String[] { "Joe", "Schmoe", "joe.schmoe@nowhere.gov" });
+
+		if (shape.equals("small"))
+			_abTemplate = createTemplate(1, 3).getBytes("UTF-8");
+		else if (shape.equals("large"))
+			_abTemplate = createTemplate(256, 10).getBytes("UTF-8");
+		else if (shape.equals("static"))
+			_abTemplate = createTemplate(256, 200).getBytes("UTF-8");
+		else
+			_abTemplate = createTemplate(256, 1).getBytes("UTF-8");
+
+		TemplateOptions rOptions = getOptions();
+		_sSource = Template.build(_rCtx, "bench", "miibench", reader(), rOptions);
+		_rLoader = TemplateCompiler.compile("miibench", _sSource, Template.class.getClassLoader());
+		_rTemp = Template.load(_rCtx, "bench", "bench", "miibench", "txt", _rLoader);
+	}
+
+	/** Parses the template text into its node tree (TemplateParser). **/
+	@Benchmark
+	public TemplateNode parse() throws IOException {
+		return TemplateParser.parse(_rCtx, "bench", reader());
+	}
+
+	/** Parses the template and creates its java code (Template.build()). **/
+	@Benchmark
+	public String build() throws IOException {
+		return Template.build(_rCtx, "bench", "miibench", reader(), getOptions());
+	}
+
+	/** Compiles the java code of the template with javac, in memory (TemplateCompiler), the way BaseEngine builds its templates. **/
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	public TemplateClassLoader compile() throws IOException {
+		return TemplateCompiler.compile("miibench", _sSource, Template.class.getClassLoader());
+	}
+
+	/** Loads and creates the template from its compiled class (Template.load()). **/
+	@Benchmark
+	public Template load() throws Exception {
+		return Template.load(_rCtx, "bench", "bench", "miibench", "txt", _rLoader);
+	}
+
+	/** Loads the template class into a fresh class loader, like the first load after a build or a reload. **/
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	public Template loadFresh() throws Exception {
+
+		TemplateClassLoader rLoader = new TemplateClassLoader(Template.class.getClassLoader());
+		rLoader.addClass(TemplateCompiler.PACKAGE + ".miibench", _rLoader.getClassBytes(TemplateCompiler.PACKAGE + ".miibench"));
+		return Template.load(_rCtx, "bench", "bench", "miibench", "txt", rLoader);
+	}
+
+	/** Generates the document for a record into a reused output (Template.generate()). **/
+	@Benchmark
+	public int generate(Output rOutput) throws IOException {
+
+		TemplateOutput out = rOutput._rOut;
+		out.reset();
+		_rTemp.generate(_rRecord, out);
+		out.finish();
+		return out.size();
+	}
+
+	/** Generates the document for a record into the reusable buffer of the thread (Template.render()). **/
+	@Benchmark
+	public ByteBuffer render() throws IOException {
+		return _rTemp.render(_rRecord);
+	}
+
+	/** Generates the document through the classic contract, an OutputStreamWriter around a stream. **/
+	@Benchmark
+	public int generateClassic() throws IOException {
+
+		ByteArrayOutputStream rBytes = new ByteArrayOutputStream(8192);
+		OutputStreamWriter out = new OutputStreamWriter(rBytes, "UTF-8");
+		_rTemp.generate(_rRecord, out);
+		out.flush();
+		return rBytes.size();
+	}
+
+	/** The build options of the base engine defaults, byte templates in UTF-8. **/
+	private static TemplateOptions getOptions() {
+
+		TemplateOptions rOptions = new TemplateOptions();
+		rOptions.setCharset("UTF-8");
+		return rOptions;
+	}
+
+	/** The template text is decoded on every round, just like when it is read from its file. **/
+	private InputStreamReader reader() throws IOException {
+		return new InputStreamReader(new ByteArrayInputStream(_abTemplate), "UTF-8");
+	}
+
+	/** Creates a template of about iKb kb with one scriptlet section for every iTextLines lines of static text. **/
+	private static String createTemplate(int iKb, int iTextLines) {
+
+		StringBuilder sb = new StringBuilder(iKb * 1024 + 1024);
+		sb.append("<%@ import java.util.*; %>");
+
+		int iLine = 0;
+		while (sb.length() < iKb * 1024) {
+
+			sb.append("Line " + iLine + " of static text with a \"quote\" and an escaped << character, the rest is filler text.\r\n");
+			if (++iLine % iTextLines == 0) {
+				sb.append("Name: <%= data.get(\"fname\") %> <%= data.get(\"lname\") %>\r\n");
+				sb.append("<% if (data.get(\"email\").length() > 0) { %>Email: <% out.write(data.get(\"email\")); %><% } %>\r\n");
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,29 @@
+package com.munskimii.tengine;
+
+/**
+ * The ByteTemplateInterface interface is the second generate contract, implemented by templates built with an output charset.
+ *
+ * The static text of such a template is encoded into byte arrays once, when the generated class is initialized, and the
+ * document is written to a TemplateOutput, which only has to encode the values the scriptlets produce.  The generate()
+ * method of TemplateInterface is still there for existing callers, it renders through a TemplateOutput and decodes the result.
+ *
+ * Please note, within these templates the "out" scriptlet variable is a TemplateOutput (a Writer) instead of an OutputStreamWriter.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+
+public interface ByteTemplateInterface extends TemplateInterface {
+
+	/** Returns the name of the charset the static text was encoded in when the template was built. **/
+	public String getCharset();
+
+	/**
+	 * Generates the document as bytes.  The output must use the same charset the template was built with.
+	 *
+	 * @param meta java object instances representing the data records the template is to use to build documents
+	 * @param out the output the template should use to write the document
+	**/
+	public void generate(MetaRecord meta, TemplateOutput out) throws IOException;
+}
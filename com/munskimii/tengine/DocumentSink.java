@@ -0,0 +1,31 @@
+package com.munskimii.tengine;
+
+/**
+ * The DocumentSink interface is where generated documents go, it sits between Template.generate() and the storage.
+ *
+ * A document is rendered into an output taken from the sink with acquire(), and handed back with write() once it is
+ * complete.  The sink decides where and when the bytes are stored (a file per document, an archive, the network), it
+ * may store them later on a thread of its own and reuse the output for the next document.  An output that is not
+ * written (the document failed) is handed back with release().
+ *
+ * The sink is used by many render threads at once, every method must be thread safe.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+
+public interface DocumentSink extends Closeable {
+
+	/** Returns an empty output to render a document into, it belongs to the caller until write() or release(). **/
+	public TemplateOutput acquire() throws IOException;
+
+	/** Stores the document rendered into the output under the name, the output belongs to the sink again. **/
+	public void write(String sName, TemplateOutput out) throws IOException;
+
+	/** Takes back an output without storing it. **/
+	public void release(TemplateOutput out);
+
+	/** Waits until every document is stored, throws if one of them could not be stored. **/
+	public void close() throws IOException;
+}
@@ -0,0 +1,21 @@
+package com.munskimii.tengine;
+
+/**
+ * The FieldResolver interface lets a template engine resolve the fields of its predefined scriptlet variables when the
+ * template is built, instead of looking them up by name for every document.
+ *
+ * With a resolver in the TemplateOptions, TemplateGenerator rewrites every var.get("field") call with a literal field
+ * name into var.get(slot, "field"), when the resolver knows a slot for it.  The class of the variable must then have a
+ * get(int, String) method, which should still find the field by its name if the slot does not match the record (the
+ * record came from another schema than the one the template was built with).
+ *
+ * The string form of the resolver (toString()) must tell its resolutions apart, it is part of the build cache key.
+ *
+ * Author: Michael Monschke
+**/
+
+public interface FieldResolver {
+
+	/** Returns the slot of the field of the predefined scriptlet variable, -1 if the field is looked up by name. **/
+	public int getSlot(String sVariable, String sField);
+}
@@ -0,0 +1,272 @@
+package com.munskimii.tengine;
+
+/**
+ * The FragmentCache class keeps the rendered bytes of the cached fragments of a template, see the <%# cache %> directive
+ * in TemplateParser.
+ *
+ * A fragment is stored under its number within the template and the value of its key expression, a hit writes the
+ * stored bytes instead of running the fragment's code.  The cache is bounded by the bytes it holds: it is split into
+ * segments, each one a least recently used list with its share of the bytes, so render threads rarely wait for each
+ * other.  Entries can also expire after a time to live.
+ *
+ * Every template class with cached fragments creates its cache when it is initialized, so all threads rendering the
+ * template share it, and a reloaded template starts with an empty one.  The caches are kept in one registry keyed by the
+ * class name (see Template.getFragments()), the size and time to live of new caches are set with setDefaults().
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class FragmentCache {
+
+	private static final int SEGMENTS = 16;
+
+	private static volatile long _lDefaultBytes = 16 * 1024 * 1024;
+	private static volatile long _lDefaultTtl = 0;
+	private static final Map<String, FragmentCache> _rRegistry = new ConcurrentHashMap<String, FragmentCache>();
+
+	private String _sClass;
+	private long _lMaxBytes;
+	private long _lTtl;
+	private Segment[] _arSegments = new Segment[SEGMENTS];
+	private AtomicLong _rHits = new AtomicLong();
+	private AtomicLong _rMisses = new AtomicLong();
+	private AtomicLong _rEvictions = new AtomicLong();
+	private AtomicLong _rExpirations = new AtomicLong();
+
+	/** The entries of one segment, oldest access first. **/
+	private static class Segment {
+
+		private LinkedHashMap<Key, Entry> _rEntries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+		private long _lBytes;
+	}
+
+	private static class Key {
+
+		private int _iFragment;
+		private Object _rValue;
+		private int _iHash;
+
+		Key(int iFragment, Object rValue) {
+			_iFragment = iFragment;
+			_rValue = rValue;
+			_iHash = iFragment * 31 + rValue.hashCode();
+		}
+
+		public int hashCode() {
+			return _iHash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key r = (Key) o;
+			return _iFragment == r._iFragment && _rValue.equals(r._rValue);
+		}
+	}
+
+	private static class Entry {
+
+		private byte[] _ab;
+		private long _lExpires;
+
+		Entry(byte[] ab, long lExpires) {
+			_ab = ab;
+			_lExpires = lExpires;
+		}
+	}
+
+	/** Constructor. The time to live is in milliseconds, 0 keeps the entries until they are evicted. **/
+	public FragmentCache(String sClass, long lMaxBytes, long lTtl) {
+
+		_sClass = sClass;
+		_lMaxBytes = lMaxBytes;
+		_lTtl = lTtl;
+		for (int i = 0; i < SEGMENTS; i++)
+			_arSegments[i] = new Segment();
+	}
+
+	/** Sets the bytes and the time to live (in milliseconds, 0 for none) of the caches created from now on. **/
+	public static void setDefaults(long lMaxBytes, long lTtl) {
+		_lDefaultBytes = lMaxBytes;
+		_lDefaultTtl = lTtl;
+	}
+
+	/** Creates the cache of the template class with the defaults, called by its static initializer.  It replaces the previous one. **/
+	public static FragmentCache create(String sClass) {
+
+		FragmentCache rCache = new FragmentCache(sClass, _lDefaultBytes, _lDefaultTtl);
+		_rRegistry.put(sClass, rCache);
+		return rCache;
+	}
+
+	/** Returns the cache of the template class, null if it has no cached fragments or was not initialized yet. **/
+	public static FragmentCache get(String sClass) {
+		return _rRegistry.get(sClass);
+	}
+
+	/** Returns the caches of all template classes, sorted by class name. **/
+	public static List<FragmentCache> getAll() {
+
+		TreeMap<String, FragmentCache> rSorted = new TreeMap<String, FragmentCache>(_rRegistry);
+		return new ArrayList<FragmentCache>(rSorted.values());
+	}
+
+	/** Returns the bytes of the fragment for the key, null if they are not cached (a null key is never cached). **/
+	public byte[] get(int iFragment, Object rKey) {
+
+		if (rKey == null) {
+			_rMisses.incrementAndGet();
+			return null;
+		}
+
+		Key rEntryKey = new Key(iFragment, rKey);
+		Segment rSegment = getSegment(rEntryKey);
+		synchronized (rSegment) {
+
+			Entry rEntry = rSegment._rEntries.get(rEntryKey);
+			if (rEntry != null && rEntry._lExpires != 0 && rEntry._lExpires - System.nanoTime() < 0) {
+				rSegment._rEntries.remove(rEntryKey);
+				rSegment._lBytes -= rEntry._ab.length;
+				_rExpirations.incrementAndGet();
+				rEntry = null;
+			}
+
+			if (rEntry == null) {
+				_rMisses.incrementAndGet();
+				return null;
+			}
+			_rHits.incrementAndGet();
+			return rEntry._ab;
+		}
+	}
+
+	/**
+	 * Stores the bytes of the fragment for the key, the least recently used entries of the segment make room for them.
+	 * Null bytes or a null key are ignored, and so are fragments larger than a segment.
+	**/
+	public void put(int iFragment, Object rKey, byte[] ab) {
+
+		long lShare = _lMaxBytes / SEGMENTS;
+		if (rKey == null || ab == null || ab.length > lShare)
+			return;
+
+		Key rEntryKey = new Key(iFragment, rKey);
+		Segment rSegment = getSegment(rEntryKey);
+		long lExpires = (_lTtl > 0) ? System.nanoTime() + _lTtl * 1000000L : 0;
+
+		synchronized (rSegment) {
+
+			Entry rOld = rSegment._rEntries.put(rEntryKey, new Entry(ab, lExpires));
+			if (rOld != null)
+				rSegment._lBytes -= rOld._ab.length;
+			rSegment._lBytes += ab.length;
+
+			Iterator<Entry> rIt = rSegment._rEntries.values().iterator();
+			while (rSegment._lBytes > lShare && rIt.hasNext()) {
+				Entry rEntry = rIt.next();
+				rIt.remove();
+				rSegment._lBytes -= rEntry._ab.length;
+				_rEvictions.incrementAndGet();
+			}
+		}
+	}
+
+	private Segment getSegment(Key rKey) {
+
+		int h = rKey.hashCode();
+		h ^= (h >>> 16);
+		return _arSegments[h & (SEGMENTS - 1)];
+	}
+
+	/** Drops all entries, the statistics are kept. **/
+	public void clear() {
+
+		for (Segment rSegment : _arSegments) {
+			synchronized (rSegment) {
+				rSegment._rEntries.clear();
+				rSegment._lBytes = 0;
+			}
+		}
+	}
+
+	/** Returns the name of the template class. **/
+	public String getClassName() {
+		return _sClass;
+	}
+
+	/** Returns the number of cached fragments. **/
+	public int size() {
+
+		int iSize = 0;
+		for (Segment rSegment : _arSegments) {
+			synchronized (rSegment) {
+				iSize += rSegment._rEntries.size();
+			}
+		}
+		return iSize;
+	}
+
+	/** Returns the bytes held by the cached fragments. **/
+	public long getBytes() {
+
+		long lBytes = 0;
+		for (Segment rSegment : _arSegments) {
+			synchronized (rSegment) {
+				lBytes += rSegment._lBytes;
+			}
+		}
+		return lBytes;
+	}
+
+	public long getMaxBytes() {
+		return _lMaxBytes;
+	}
+
+	public long getHits() {
+		return _rHits.get();
+	}
+
+	public long getMisses() {
+		return _rMisses.get();
+	}
+
+	/** Returns the number of entries dropped to make room. **/
+	public long getEvictions() {
+		return _rEvictions.get();
+	}
+
+	/** Returns the number of entries dropped since their time to live was over. **/
+	public long getExpirations() {
+		return _rExpirations.get();
+	}
+
+	/** Returns the share of lookups that were hits, from 0 to 1. **/
+	public double getHitRate() {
+
+		long lHits = _rHits.get();
+		long lTotal = lHits + _rMisses.get();
+		return (lTotal == 0) ? 0 : lHits / (double) lTotal;
+	}
+
+	/** Returns a table of the caches of all template classes. **/
+	public static String report() {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-40s %9s %9s %7s %9s %9s %9s%n", "fragments", "hits", "misses", "hit %", "entries", "kb", "evicted"));
+		for (FragmentCache r : getAll()) {
+			sb.append(String.format("%-40s %9d %9d %6.1f%% %9d %9d %9d%n",
+											r._sClass.substring(r._sClass.lastIndexOf('.') + 1),
+											r.getHits(),
+											r.getMisses(),
+											r.getHitRate() * 100,
+											r.size(),
+											r.getBytes() / 1024,
+											r.getEvictions() + r.getExpirations()));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,18 @@
+package com.munskimii.tengine;
+
+/**
+ * The IndexedMetaRecord interface is the faster contract of a MetaRecord, the object instances are found by the index
+ * of their variable in the MetaContext instead of by name.
+ *
+ * The generated templates check for it once per document and then bind every predefined scriptlet variable with
+ * getObject(int), records that only implement MetaRecord are still bound by name.  getObject(int) must return the same
+ * object as getObject(String) does for the name of the variable at that index.
+ *
+ * Author: Michael Monschke
+**/
+
+public interface IndexedMetaRecord extends MetaRecord {
+
+	/** Returns the object instance of the predefined scriptlet variable at the MetaContext index. **/
+	public Object getObject(int iIndex);
+}
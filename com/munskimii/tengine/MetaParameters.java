@@ -32,5 +32,16 @@ public class MetaParameters {
 			return "";
 		return s;
 	}
+
+	/** Returns a parameter value as an int, or the default if the parameter is missing or not a number. **/
+	public int getIntParameter(String sName, int iDefault) {
+
+		String s = _rProp.getProperty(sName);
+		if (s == null)
+			return iDefault;
+		try {
+			return Integer.parseInt(s.trim());
+		} catch (NumberFormatException x) { return iDefault; }
+	}
 }
 
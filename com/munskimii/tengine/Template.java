@@ -12,19 +12,55 @@ package com.munskimii.tengine;
  * Please note, the actual management or java files, class files, and compilation must be created by a template engine.
  * You can review base/BaseEngine.java for an implementation reference.
  *
+ * A Template can generate documents on many threads at once.  The generated class is shared by all threads as long as it
+ * is stateless (see isStateless()), otherwise every thread gets an instance of its own - so a template that keeps state
+ * in its own fields still works, but that state is per thread.  Classes declared with <%@ %> and shared through static
+ * fields are beyond that check, they must be thread safe themselves.
+ *
+ * An application embedding the engine can take a document as a value with render(), it is rendered into a buffer that
+ * is reused by the thread and sized from the previous documents of the template - rendering allocates nothing for the
+ * output once the buffer is large enough.
+ *
+ * While TemplateMetrics are enabled, the load and every generated document are counted in the metrics of the template.
+ * The stack trace of an exception thrown by a template built in profile mode points at the template lines, see
+ * TemplateProfile.
+ *
  * Author: Michael Monschke
 **/
 
 import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 
 public class Template {
 
+	/** Template class to "is stateless", the check is made once per class (without keeping its class loader alive). **/
+	private static final ClassValue<Boolean> _rStateless = new ClassValue<Boolean>() {
+		protected Boolean computeValue(Class<?> rClass) {
+			return Boolean.valueOf(isStateless(rClass, true));
+		}
+	};
+
 	private TContext _rCtx;
 	private String _sName;
 	private String _sGroup;
 	private String _sExt;
-	private TemplateInterface _rInterface;
+	private volatile TemplateInterface _rInterface;
+	private volatile int _iVersion;
+
+	/** The output render() reuses on the current thread, shared by all templates. **/
+	private static final ThreadLocal<TemplateOutput> _rBuffer = new ThreadLocal<TemplateOutput>();
+
+	/** The running estimate of the document size in bytes, see getSizeEstimate(). **/
+	private volatile int _iEstimate;
+
+	/** The metrics of the template, see TemplateMetrics. **/
+	private TemplateMetrics _rMetrics;
+
+	/** The instance of a stateful template used by the current thread, along with the shared instance it was made for. **/
+	private ThreadLocal<TemplateInterface[]> _rLocal = new ThreadLocal<TemplateInterface[]>();
 
 	/** Constructor. **/
 	public Template(TContext rCtx, String sName, String sGroup, String sExt, TemplateInterface rInterface) {
@@ -34,12 +70,235 @@ public class Template {
 		_sExt = sExt;
 		_rInterface = rInterface;
 		_rInterface.init(rCtx, sName);
+		_rMetrics = TemplateMetrics.get(sGroup, sName);
+	}
+
+	/** Returns the cache of the <%# cache %> fragments of the template, null if it has none (see FragmentCache). **/
+	public FragmentCache getFragments() {
+		return FragmentCache.get(_rInterface.getClass().getName());
+	}
+
+	/** Returns the metrics of the template, they are only collected while TemplateMetrics.isEnabled(). **/
+	public TemplateMetrics getMetrics() {
+		return _rMetrics;
 	}
 
 	/** Generates the document (writes to "out" parm) for the data record "meta", which contains object instances of the actual data. **/
 	public void generate(MetaRecord meta, OutputStreamWriter out) throws IOException {
 
-		_rInterface.generate(meta, out);
+		if (!TemplateMetrics.isEnabled()) {
+			generateText(meta, out);
+			return;
+		}
+
+		TemplateEvents.RenderEvent rEvent = new TemplateEvents.RenderEvent();
+		rEvent.begin();
+		long lStart = System.nanoTime();
+		boolean bFailed = true;
+		try {
+			generateText(meta, out);
+			bFailed = false;
+		} finally { endRender(rEvent, lStart, -1, bFailed); }
+	}
+
+	/** The generate() of the classic output, without metrics. **/
+	private void generateText(MetaRecord meta, OutputStreamWriter out) throws IOException {
+
+		try {
+			getInterface().generate(meta, out);
+		} catch (IOException x) {
+			throw TemplateProfile.translate(x);
+		} catch (RuntimeException x) { throw TemplateProfile.translate(x); }
+	}
+
+	/** 
+	 * Generates the document as bytes for the data record "meta".  Templates built with an output charset write their
+	 * pre-encoded text straight into "out", classic templates write through an OutputStreamWriter in the output's charset.
+	**/
+	public void generate(MetaRecord meta, TemplateOutput out) throws IOException {
+
+		if (!TemplateMetrics.isEnabled()) {
+			generateBytes(meta, out);
+			return;
+		}
+
+		TemplateEvents.RenderEvent rEvent = new TemplateEvents.RenderEvent();
+		rEvent.begin();
+		long lStart = System.nanoTime();
+		long lCount = out.getCount();
+		boolean bFailed = true;
+		try {
+			generateBytes(meta, out);
+			bFailed = false;
+		} finally { endRender(rEvent, lStart, out.getCount() - lCount, bFailed); }
+	}
+
+	/** Adds the rendered document to the metrics, and commits its event if the recording wants it. **/
+	private void endRender(TemplateEvents.RenderEvent rEvent, long lStart, long lBytes, boolean bFailed) {
+
+		_rMetrics.addRender(System.nanoTime() - lStart, lBytes, bFailed);
+		rEvent.end();
+		if (rEvent.shouldCommit()) {
+			rEvent.template = _sGroup + "/" + _sName;
+			rEvent.bytes = lBytes;
+			rEvent.failed = bFailed;
+			rEvent.commit();
+		}
+	}
+
+	/** The generate() of the byte output, without metrics. **/
+	private void generateBytes(MetaRecord meta, TemplateOutput out) throws IOException {
+
+		// read once, a reload() while generating does not mix two versions of the template
+		TemplateInterface rInterface = getInterface();
+		try {
+			if (rInterface instanceof ByteTemplateInterface && 
+					((ByteTemplateInterface) rInterface).getCharset().equals(out.getCharset().name())) {
+				((ByteTemplateInterface) rInterface).generate(meta, out);
+				return;
+			}
+
+			OutputStreamWriter rOut = new OutputStreamWriter(out.getStream(), out.getCharset());
+			rInterface.generate(meta, rOut);
+			rOut.flush();
+		} catch (IOException x) {
+			throw TemplateProfile.translate(x);
+		} catch (RuntimeException x) { throw TemplateProfile.translate(x); }
+	}
+
+	/** 
+	 * Renders the document for the data record "meta" into the buffer of the current thread, and returns a read-only view
+	 * of its bytes in the output charset (see getOutputCharset()).  The view is only valid until the thread renders its
+	 * next document, the bytes must be used or copied before that.
+	**/
+	public ByteBuffer render(MetaRecord meta) throws IOException {
+
+		Charset rCharset = getOutputCharset();
+		TemplateOutput out = _rBuffer.get();
+		if (out == null || !out.getCharset().equals(rCharset)) {
+			out = new TemplateOutput(null, rCharset, Math.max(getSizeEstimate(), 1024));
+			_rBuffer.set(out);
+		}
+		return render(meta, out);
+	}
+
+	/** 
+	 * Renders the document for the data record "meta" into the given output, which is reset first and grown to the
+	 * size estimate.  Returns a read-only view of its bytes, valid until the output is written to again.
+	**/
+	public ByteBuffer render(MetaRecord meta, TemplateOutput out) throws IOException {
+
+		out.reset();
+		out.ensureCapacity(getSizeEstimate());
+		generate(meta, out);
+		out.finish();
+
+		// a running average that leans towards larger documents, a buffer a little too large is cheaper than growing it
+		int iSize = out.size();
+		int iEstimate = _iEstimate;
+		_iEstimate = (iSize > iEstimate) ? iSize : iEstimate - (iEstimate - iSize) / 8;
+
+		return out.getBuffer().asReadOnlyBuffer();
+	}
+
+	/** Renders the document for the data record "meta" as text, see render() - the text is decoded from the bytes once. **/
+	public CharSequence renderText(MetaRecord meta) throws IOException {
+
+		return getOutputCharset().decode(render(meta));
+	}
+
+	/** Returns the size in bytes the next document is expected to have, from the sizes of the previous ones. **/
+	public int getSizeEstimate() {
+		return _iEstimate;
+	}
+
+	/** Returns the charset render() uses, the output charset of a template built with one, UTF-8 otherwise. **/
+	public Charset getOutputCharset() {
+
+		TemplateInterface rInterface = _rInterface;
+		if (rInterface instanceof ByteTemplateInterface)
+			return Charset.forName(((ByteTemplateInterface) rInterface).getCharset());
+		return Charset.forName("UTF-8");
+	}
+
+	/** 
+	 * Swaps in the code base of a rebuilt template, the template object itself stays the same for everyone using it.
+	 *
+	 * Documents being generated at this moment finish with the previous code base, the next ones use the new one.  Once they
+	 * are done, nothing refers to the previous classes anymore, and their class loader (see TemplateCompiler) can be collected
+	 * - as long as no other template still uses that class loader.
+	**/
+	public synchronized void reload(Template rNew) {
+		_rInterface = rNew._rInterface;
+		_iVersion++;
+	}
+
+	/** Returns how often the template has been reloaded, 0 for the code base it was created with. **/
+	public int getVersion() {
+		return _iVersion;
+	}
+
+	/** 
+	 * Returns true if the generated class keeps no state, so one instance can generate documents on many threads at once.
+	 *
+	 * That is the case when it has no fields besides "ctx" and "name" (set once by init()) and the instances of the classes
+	 * it includes (if those are stateless themselves), and neither it nor its nested classes have static fields that are
+	 * not final.  Scriptlet code can only add such fields by closing the generate method.
+	**/
+	public boolean isStateless() {
+		return _rStateless.get(_rInterface.getClass()).booleanValue();
+	}
+
+	/** Returns the instance that generates the documents of the current thread, see isStateless(). **/
+	private TemplateInterface getInterface() throws IOException {
+
+		TemplateInterface rInterface = _rInterface;
+		if (_rStateless.get(rInterface.getClass()).booleanValue())
+			return rInterface;
+
+		// a new instance per thread, made again once the template has been reloaded
+		TemplateInterface[] arInterface = _rLocal.get();
+		if (arInterface == null || arInterface[0] != rInterface) {
+
+			try {
+				TemplateInterface rCopy = rInterface.getClass().getDeclaredConstructor().newInstance();
+				rCopy.init(_rCtx, _sName);
+				arInterface = new TemplateInterface[] { rInterface, rCopy };
+				_rLocal.set(arInterface);
+			} catch (Exception x) { throw new IOException("Cannot create an instance of template " + _sName + " for thread " + Thread.currentThread().getName(), x); }
+		}
+		return arInterface[1];
+	}
+
+	/** The stateless check of isStateless(), for the template class itself (bTemplate) or one of its nested classes. **/
+	private static boolean isStateless(Class<?> rClass, boolean bTemplate) {
+
+		for (Field rField : rClass.getDeclaredFields()) {
+
+			int iMod = rField.getModifiers();
+			if (Modifier.isStatic(iMod)) {
+				if (!Modifier.isFinal(iMod))
+					return false;
+			}
+			else if (bTemplate && rField.getName().startsWith("____inc") && Modifier.isFinal(iMod)) {
+				if (!_rStateless.get(rField.getType()).booleanValue())
+					return false;
+			}
+			else if (bTemplate && !rField.getName().equals("ctx") && !rField.getName().equals("name")) {
+				return false;
+			}
+		}
+
+		for (Class<?> rNested : rClass.getDeclaredClasses()) {
+			if (!isStateless(rNested, false))
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns true if the template was built with an output charset (see TemplateOptions), it then renders bytes directly. **/
+	public boolean isByteTemplate() {
+		return _rInterface instanceof ByteTemplateInterface;
 	}
 
 	/** Returns the name of the template passed in the constructor. **/
@@ -74,273 +333,157 @@ public class Template {
 													String sInterfaceClass, 
 													InputStreamReader rIn) throws IOException {
 
+		return build(rCtx, sName, sInterfaceClass, rIn, null);
+	}
 
-		// assists in parsing and building output
-		boolean bText = false;
-		boolean bScriptlet = false;
-		boolean bScriptletAssign = false;
-		boolean bScriptletDeclare = false;
-		int next = -1;
-
-		// sb is the import statements
-		StringBuilder sb = new StringBuilder(4096);
-		
-		// sb2 contains everything else, you start appending to it in the generate method for the template text
-		StringBuilder sb2 = new StringBuilder(4096);
-
-		// import everything necessary for the class
-		sb.append("package com.munskimii.tengine.gen;\n");
-		sb.append("\n");
-		sb.append("import com.munskimii.tengine.MetaContext;\n");
-		sb.append("import com.munskimii.tengine.MetaRecord;\n");
-		sb.append("import com.munskimii.tengine.TContext;\n");
-		sb.append("import com.munskimii.tengine.MetaParameters;\n");
-		sb.append("import com.munskimii.tengine.TemplateInterface;\n");
-		sb.append("import java.io.IOException;\n");
-		sb.append("import java.io.OutputStreamWriter;\n");
-
-		MetaContext rMeta = rCtx.getMetaContext();
-		for (int i = 0; i < rMeta.size(); i++) {
-			sb.append("import " + rMeta.getClassName(i) + ";\n");
-		}
+	/** 
+	 * Builds the java code base that is an implementation of the template file, see build() above.
+	 *
+	 * Static template text between two scriptlets (new lines included) is written with a single out.write() of a constant.
+	 * Without a pool, the constants are declared in the generated class itself.  With a pool, the constants live in the
+	 * pool's holder classes, which are shared by every template built with the same pool - the holder classes must be
+	 * compiled along with (or before) the generated class, see TemplatePool.
+	 *
+	 * With an output charset, the generated class implements ByteTemplateInterface and its text constants are byte arrays.
+	 *
+	 * The template text is parsed into a tree by TemplateParser, the code is then created from the tree by TemplateGenerator.
+	 *
+	 * @param rOptions the build options (pool, charset, folding), may be null for the classic template class
+	**/
+	public static String build(	
+													TContext rCtx, 
+													String sName,
+													String sInterfaceClass, 
+													InputStreamReader rIn,
+													TemplateOptions rOptions) throws IOException {
 
-		// create the class statements, default constructor, init method, and start the generate method
-		sb2.append("\n");
-		sb2.append("public class " + sInterfaceClass + " implements TemplateInterface {\n");
-		sb2.append("\n");
-		sb2.append("  private TContext ctx;\n");
-		sb2.append("  private String name;\n");
-		sb2.append("\n");
-		sb2.append("  public " + sInterfaceClass + "() {}\n");
-		sb2.append("\n");
-		sb2.append("  public void init(TContext rCtx, String sName) {\n");
-		sb2.append("    ctx = rCtx;\n");
-		sb2.append("    name = sName;\n");
-		sb2.append("  }\n");
-		sb2.append("\n");
-		sb2.append("  public void generate(MetaRecord ____my, OutputStreamWriter out)\n");
-	  sb2.append("                                                  	throws IOException {\n");
-		sb2.append("\n");
-
-		// within the generate method, setup the pre-defined scriptlet variables
-		for (int i = 0; i < rMeta.size(); i++) {
-			sb2.append("    " +  rMeta.getClassName(i) + " " + rMeta.getVariableName(i) + " = ");
-			sb2.append("(" + rMeta.getClassName(i) + ") ");
-			sb2.append("____my.getObject(\"" + rMeta.getVariableName(i) + "\");\n");
-		}
+		TemplateNode rRoot = parse(rCtx, sName, rIn, rOptions);
+		return new TemplateGenerator(rCtx, sName, sInterfaceClass, rOptions).generate(rRoot);
+	}
 
-		// create the string object that will be the final generated java class text
-		sb2.append("\n");
-		sb2.append("    String ____s = \"\";\n");
-
-
-		// start parsing the template text, outputting the hard-coded text as out.write 
-		// commands and the scriptlet code as embedded code in this generated method
-		while ((next = rIn.read()) != -1) {
-
-			// get next char
-			char ch = (char) next;
-			
-			// not fast, but easier to manage
-			String str = "";
-			str = "" + ch; 
-
-			// new line check
-			boolean bNL = false;
-			if (ch == '\r')
-				continue; // just skip the carriage return characters
-
-			if (ch == '\n') 
-				bNL = true;
-
-
-			// we are currently in text mode
-			if (!bScriptlet && !bScriptletAssign && !bScriptletDeclare) {
-
-				if (ch == '<') {
-					int ch2 = rIn.read();
-
-					// if a second <, then that is escape, drop one of the '<' - the next check will just get skipped now
-					if ((ch2 != -1) && (((char)ch2) != '<')) str += (char) ch2;
-					
-					if (((char)ch2) == '%') {
-						int ch3 = rIn.read();
-
-							if (((char)ch3) == '=') {
-								bScriptlet = false;
-								bScriptletAssign = true;
-								bScriptletDeclare = false;
-							}
-							else if (((char)ch3) == '@') {
-								bScriptlet = false;
-								bScriptletAssign = false;
-								bScriptletDeclare = true;
-							}
-							else { // ch3 char should be white space if not "=" or "@"
-								bScriptlet = true;
-								bScriptletAssign = false;
-								bScriptletDeclare = false;
-							}
-
-							if (bText) {
-								sb2.append("\";\n");
-								sb2.append("    out.write(____s);\n");
-								//sb2.append("    ____s = \"\";\n"); // done later now
-								bText = false;
-							}
-
-							if (bScriptletAssign) {
-								sb2.append("    ____s = "); // scriptlet assign code will assign this string
-							}
-							continue;
-					}
-				}
-
-				// we got into here because we are not in a scriptlet mode, either text mode or not in text mode, 
-				// so if we are here and not in text mode, we need to start being in text mode.
-				if (!bText) {
-
-					sb2.append("    ____s = \"");
-					bText = true;
-				}
-
-				// just add the text, if new line, write out the text with the new line character, else, append the character
-				if (bNL) {
-					sb2.append(rCtx.getNLEsc());
-					sb2.append("\";\n");
-					sb2.append("    out.write(____s);\n");
-					//sb2.append("    ____s = \"\";\n");
-					bText = false;
-				}
-				else {
-					// if user put in double-quote in the template text, we have to escape the double-quote
-					if (ch == '"')
-						str = "\\\"";
-					
-					sb2.append(str);
-				}
-			}
+	/** 
+	 * Loads a previously generated/compiled java object.  
+	 *
+	 * @param rCtx the template engine framework
+	 * @param sName the name of the template
+	 * @param sGroup the group name of the template, helps differentiate templates with the same name
+	 * @param sInterfaceClass the name of the class that will be generated from the "template text" - does not contain package name
+	 * @param sExt the extension of the template file
+	**/
+	public static Template load(
+													TContext rCtx, 
+													String sName,
+													String sGroup,
+													String sInterfaceClass,
+													String sExt) 
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
 
+		return load(rCtx, sName, sGroup, sInterfaceClass, sExt, Template.class.getClassLoader());
+	}
 
-			// we are currently in scriptlet mode
-			if (bScriptlet) {
-
-				if (ch == '%') {
-					int ch2 = rIn.read();
-					if (ch2 != -1) str += (char) ch2;
-					
-					if (((char)ch2) == '>') {
-
-						sb2.append("\n");
-						bScriptlet = false;
-						continue;
-					}
-				}
-
-				// since we are in code section, just write whatever they give us
-				if (bNL) {
-					sb2.append("\n");
-				}
-				else {
-					sb2.append(str);
-				}
-			}
+	/** 
+	 * Loads a previously generated/compiled java object from the given class loader.  
+	 *
+	 * @param rCtx the template engine framework
+	 * @param sName the name of the template
+	 * @param sGroup the group name of the template, helps differentiate templates with the same name
+	 * @param sInterfaceClass the name of the class that will be generated from the "template text" - does not contain package name
+	 * @param sExt the extension of the template file
+	 * @param rLoader the class loader holding the compiled class, like the one returned by TemplateCompiler.compile()
+	**/
+	public static Template load(
+													TContext rCtx, 
+													String sName,
+													String sGroup,
+													String sInterfaceClass,
+													String sExt,
+													ClassLoader rLoader) 
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
 
+		String sClass = TemplateCompiler.PACKAGE + "." + sInterfaceClass;
+		TemplateEvents.LoadEvent rEvent = TemplateMetrics.isEnabled() ? new TemplateEvents.LoadEvent() : null;
+		if (rEvent != null)
+			rEvent.begin();
+		long lStart = System.nanoTime();
 
-			// we are currently in scriptlet assign mode
-			if (bScriptletAssign) {
-
-				if (ch == '%') {
-					int ch2 = rIn.read();
-					if (ch2 != -1) str += ch2;
-					
-					if (((char)ch2) == '>') {
-
-						sb2.append(";\n");
-						sb2.append("    out.write(____s);\n");
-						//sb2.append("    ____s = \"\";\n");
-						bScriptletAssign = false;
-						continue;
-					}
-				}
-
-				// we are in code section, just write whatever they give us
-				if (bNL) {
-					sb2.append("\n");
-				}
-				else {
-					sb2.append(str);
-				}
-			}
+		Class rClass = rLoader.loadClass(sClass);
+		TemplateInterface rInterface = (TemplateInterface) rClass.newInstance();
 
-			// we are currently in scriptlet mode
-			if (bScriptletDeclare) {
-
-				if (ch == '%') {
-					int ch2 = rIn.read();
-					if (ch2 != -1) str += (char) ch2;
-					
-					if (((char)ch2) == '>') {
-
-						sb.append("\n");
-						bScriptletDeclare = false;
-						continue;
-					}
-				}
-
-				// we are in code section, just write whatever they give us after last import statements
-				if (bNL) {
-					sb.append("\n");
-				}
-				else {
-					sb.append(str);
-				}
+		Template rTemp = new Template(rCtx, sName, sGroup, sExt, rInterface);
+		if (rEvent != null) {
+			rTemp._rMetrics.addLoad(System.nanoTime() - lStart);
+			rEvent.end();
+			if (rEvent.shouldCommit()) {
+				rEvent.template = sGroup + "/" + sName;
+				rEvent.commit();
 			}
 		}
-
-		// hit end of file, handle appropriately if in mid-state of parsing
-		if (bScriptlet || bScriptletAssign || bScriptletDeclare) {
-			throw new IOException("Hit end of file within scriptlet for template: " + sName);
-		}
-
-		if (bText) {
-			sb2.append("\";\n");
-			sb2.append("    out.write(____s);\n");
-			//sb2.append("    ____s = \"\";\n");
-			bText = false;
-		}
-
-		sb2.append("  }\n");
-		sb2.append("}\n");
-
-		sb.append(sb2);
-		return sb.toString();
+		return rTemp;
 	}
 
 	/** 
-	 * Loads a previously generated/compiled java object.  
+	 * Builds, compiles and loads a template entirely in memory, no java or class files are written.
+	 *
+	 * The compiled class gets its own class loader (see TemplateCompiler), so the same class name can be compiled again later.
 	 *
 	 * @param rCtx the template engine framework
 	 * @param sName the name of the template
 	 * @param sGroup the group name of the template, helps differentiate templates with the same name
 	 * @param sInterfaceClass the name of the class that will be generated from the "template text" - does not contain package name
 	 * @param sExt the extension of the template file
+	 * @param rIn the reader class that contains the "template text"
 	**/
-	public static Template load(
+	public static Template compile(
 													TContext rCtx, 
 													String sName,
 													String sGroup,
 													String sInterfaceClass,
-													String sExt) 
+													String sExt,
+													InputStreamReader rIn) 
 				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
 
-		String sClass = "com.munskimii.tengine.gen." + sInterfaceClass;
+		return compile(rCtx, sName, sGroup, sInterfaceClass, sExt, rIn, null);
+	}
 
-		
-		ClassLoader rLoader = Template.class.getClassLoader();
-		Class rClass = rLoader.loadClass(sClass);
-		TemplateInterface rInterface = (TemplateInterface) rClass.newInstance();
+	/** 
+	 * Builds, compiles and loads a template entirely in memory with the given build options, see compile() above.
+	 *
+	 * When the options allow assembling and the template has no java code, the class file is emitted directly by
+	 * TemplateAssembler - the java compiler is not involved at all and the template is ready in well under a millisecond.
+	 *
+	 * @param rOptions the build options, may be null for the classic template class
+	**/
+	public static Template compile(
+													TContext rCtx, 
+													String sName,
+													String sGroup,
+													String sInterfaceClass,
+													String sExt,
+													InputStreamReader rIn,
+													TemplateOptions rOptions) 
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+		TemplateNode rRoot = parse(rCtx, sName, rIn, rOptions);
+
+		TemplateClassLoader rLoader = null;
+		if (rOptions != null && rOptions.isAssemble() && TemplateAssembler.canAssemble(rRoot, rOptions)) {
+			rLoader = new TemplateClassLoader(Template.class.getClassLoader());
+			rLoader.addClass(TemplateCompiler.PACKAGE + "." + sInterfaceClass, TemplateAssembler.assemble(sInterfaceClass, rRoot, rOptions.getCharset()));
+		}
+		else {
+			String sSource = new TemplateGenerator(rCtx, sName, sInterfaceClass, rOptions).generate(rRoot);
+			rLoader = TemplateCompiler.compile(sInterfaceClass, sSource, Template.class.getClassLoader());
+		}
+
+		return load(rCtx, sName, sGroup, sInterfaceClass, sExt, rLoader);
+	}
+
+	/** Parses the template text, with its parameter lookups folded when the options say so (see TemplateFolder). **/
+	private static TemplateNode parse(TContext rCtx, String sName, InputStreamReader rIn, TemplateOptions rOptions) throws IOException {
 
-		return new Template(rCtx, sName, sGroup, sExt, rInterface);
+		TemplateNode rRoot = TemplateParser.parse(rCtx, sName, rIn);
+		if (rOptions != null && rOptions.isFold())
+			rRoot = TemplateFolder.fold(rCtx, rRoot, new HashMap<String, String>(), rOptions.getEscape());
+		return rRoot;
 	}
 }
@@ -0,0 +1,416 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateAssembler class emits the class file of a template directly, without the java compiler.
+ *
+ * This only works for templates without java code: static text, import declarations (<%@ import ...; %>), and
+ * scriptlet assigns of a string literal or of the "name" scriptlet variable (when they are not escaped).  Everything
+ * else still goes through TemplateGenerator and javac, see canAssemble().  Assembling takes well under a millisecond and works on a plain JRE,
+ * so such templates can be created on demand.
+ *
+ * The class is the same the generated code would compile to (fields "ctx" and "name", init() and generate(), the
+ * ByteTemplateInterface methods when there is an output charset), except that the predefined scriptlet variables of the
+ * MetaContext are not looked up since no code could use them.  The static text constants are held by the class itself,
+ * a TemplatePool is not used.  The methods are straight line code, so the class file needs no stack map frames.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.regex.*;
+
+public class TemplateAssembler {
+
+	private static final Pattern IMPORTS = Pattern.compile("(\\s*import\\s+(static\\s+)?[\\w.]+(\\.\\*)?\\s*;)*\\s*");
+	private static final Pattern LITERAL = Pattern.compile("\\s*\"((?:[^\"\\\\\\n]|\\\\.)*)\"\\s*;?\\s*");
+
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_STATIC = 0x0008;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ALOAD_2 = 0x2c;
+	private static final int ALOAD_3 = 0x2d;
+	private static final int ASTORE_3 = 0x4e;
+	private static final int LDC = 0x12;
+	private static final int LDC_W = 0x13;
+	private static final int DUP = 0x59;
+	private static final int RETURN = 0xb1;
+	private static final int ARETURN = 0xb0;
+	private static final int GETSTATIC = 0xb2;
+	private static final int PUTSTATIC = 0xb3;
+	private static final int GETFIELD = 0xb4;
+	private static final int PUTFIELD = 0xb5;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int NEW = 0xbb;
+
+	/** Returns true if the template can be assembled with the options, its scriptlet assigns are never escaped. **/
+	public static boolean canAssemble(TemplateNode rRoot, TemplateOptions rOptions) {
+
+		if (TemplateEscaper.get(rOptions.getEscape()) != null) {
+			for (TemplateNode rNode : rRoot.getChildren()) {
+				if (rNode.getKind() == TemplateNode.ASSIGN)
+					return false;
+			}
+		}
+		return canAssemble(rRoot);
+	}
+
+	/** Returns true if the template has no java code, so it can be assembled without the java compiler. **/
+	public static boolean canAssemble(TemplateNode rRoot) {
+
+		for (TemplateNode rNode : rRoot.getChildren()) {
+
+			switch (rNode.getKind()) {
+				case TemplateNode.TEXT:
+					break;
+				case TemplateNode.DECLARE:
+					if (!IMPORTS.matcher(rNode.getText()).matches())
+						return false;
+					break;
+				case TemplateNode.ASSIGN:
+					if (!rNode.getText().trim().equals("name") && !LITERAL.matcher(rNode.getText()).matches())
+						return false;
+					break;
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the class file of the template, canAssemble() must be true for the tree.
+	 *
+	 * @param sInterfaceClass the name of the class - does not contain package name
+	 * @param rRoot the parsed template
+	 * @param sCharset the output charset (see TemplateOptions), null for the classic TemplateInterface
+	**/
+	public static byte[] assemble(String sInterfaceClass, TemplateNode rRoot, String sCharset) throws IOException {
+
+		if (sCharset != null)
+			sCharset = Charset.forName(sCharset).name();
+
+		// the document as a list of static text pieces and null for the "name" variable, adjacent text merged
+		List<String> rParts = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (TemplateNode rNode : rRoot.getChildren()) {
+
+			if (rNode.getKind() == TemplateNode.TEXT) {
+				sb.append(rNode.getText());
+			}
+			else if (rNode.getKind() == TemplateNode.ASSIGN) {
+
+				Matcher m = LITERAL.matcher(rNode.getText());
+				if (m.matches()) {
+					sb.append(TemplateParser.unescape(m.group(1)));
+				}
+				else {
+					addText(rParts, sb);
+					rParts.add(null);
+				}
+			}
+			else if (rNode.getKind() != TemplateNode.DECLARE) {
+				throw new IOException("Template class " + sInterfaceClass + " has java code and cannot be assembled");
+			}
+		}
+		addText(rParts, sb);
+
+		String sThis = (TemplateCompiler.PACKAGE + "." + sInterfaceClass).replace('.', '/');
+		ConstantPool cp = new ConstantPool();
+		int iThis = cp.getClass(sThis);
+		int iSuper = cp.getClass("java/lang/Object");
+		int iInterface = cp.getClass((sCharset != null) ? "com/munskimii/tengine/ByteTemplateInterface" : "com/munskimii/tengine/TemplateInterface");
+		int iCtx = cp.getField(sThis, "ctx", "Lcom/munskimii/tengine/TContext;");
+		int iName = cp.getField(sThis, "name", "Ljava/lang/String;");
+		int iCode = cp.getUtf8("Code");
+		int iExceptions = cp.getUtf8("Exceptions");
+		int iIOException = cp.getClass("java/io/IOException");
+
+		List<byte[]> rFields = new ArrayList<byte[]>();
+		rFields.add(member(ACC_PRIVATE, cp.getUtf8("ctx"), cp.getUtf8("Lcom/munskimii/tengine/TContext;"), null));
+		rFields.add(member(ACC_PRIVATE, cp.getUtf8("name"), cp.getUtf8("Ljava/lang/String;"), null));
+
+		List<byte[]> rMethods = new ArrayList<byte[]>();
+
+		// public <init>() { super(); }
+		Code c = new Code();
+		c.op(ALOAD_0).op(INVOKESPECIAL).u2(cp.getMethod("java/lang/Object", "<init>", "()V")).op(RETURN);
+		rMethods.add(method(cp, ACC_PUBLIC, "<init>", "()V", c, 1, 1, iCode, 0, 0));
+
+		// public void init(TContext rCtx, String sName) { ctx = rCtx; name = sName; }
+		c = new Code();
+		c.op(ALOAD_0).op(ALOAD_1).op(PUTFIELD).u2(iCtx);
+		c.op(ALOAD_0).op(ALOAD_2).op(PUTFIELD).u2(iName);
+		c.op(RETURN);
+		rMethods.add(method(cp, ACC_PUBLIC, "init", "(Lcom/munskimii/tengine/TContext;Ljava/lang/String;)V", c, 2, 3, iCode, 0, 0));
+
+		if (sCharset == null) {
+
+			// public void generate(MetaRecord ____my, OutputStreamWriter out) throws IOException
+			int iWrite = cp.getMethod("java/io/OutputStreamWriter", "write", "(Ljava/lang/String;)V");
+			c = new Code();
+			for (String sPart : rParts) {
+				c.op(ALOAD_2);
+				if (sPart != null)
+					c.ldc(cp.getString(sPart));
+				else
+					c.op(ALOAD_0).op(GETFIELD).u2(iName);
+				c.op(INVOKEVIRTUAL).u2(iWrite);
+			}
+			c.op(RETURN);
+			rMethods.add(method(cp, ACC_PUBLIC, "generate", "(Lcom/munskimii/tengine/MetaRecord;Ljava/io/OutputStreamWriter;)V", c, 2, 3, iCode, iExceptions, iIOException));
+		}
+		else {
+
+			String sOutput = "com/munskimii/tengine/TemplateOutput";
+			String sGenerate = "(Lcom/munskimii/tengine/MetaRecord;L" + sOutput + ";)V";
+
+			// private static final byte[] ____t<n>, encoded in the static initializer
+			Code cInit = new Code();
+			int iEncode = cp.getMethod(sOutput, "encode", "(Ljava/lang/String;Ljava/lang/String;)[B");
+			int iCharset = cp.getString(sCharset);
+			Map<String, Integer> rConsts = new HashMap<String, Integer>();
+			for (String sPart : rParts) {
+
+				if (sPart == null || rConsts.containsKey(sPart))
+					continue;
+
+				String sField = "____t" + rConsts.size();
+				rFields.add(member(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, cp.getUtf8(sField), cp.getUtf8("[B"), null));
+				int iField = cp.getField(sThis, sField, "[B");
+				rConsts.put(sPart, iField);
+				cInit.ldc(cp.getString(sPart)).ldc(iCharset).op(INVOKESTATIC).u2(iEncode).op(PUTSTATIC).u2(iField);
+			}
+			cInit.op(RETURN);
+			rMethods.add(method(cp, ACC_STATIC, "<clinit>", "()V", cInit, 2, 0, iCode, 0, 0));
+
+			// public String getCharset() { return ____charset; }
+			c = new Code();
+			c.ldc(iCharset).op(ARETURN);
+			rMethods.add(method(cp, ACC_PUBLIC, "getCharset", "()Ljava/lang/String;", c, 1, 1, iCode, 0, 0));
+
+			// public void generate(MetaRecord ____my, OutputStreamWriter ____out) throws IOException
+			//   renders the bytes and decodes them for the writer
+			c = new Code();
+			c.op(NEW).u2(cp.getClass(sOutput)).op(DUP);
+			c.ldc(iCharset).op(INVOKESTATIC).u2(cp.getMethod("java/nio/charset/Charset", "forName", "(Ljava/lang/String;)Ljava/nio/charset/Charset;"));
+			c.op(INVOKESPECIAL).u2(cp.getMethod(sOutput, "<init>", "(Ljava/nio/charset/Charset;)V")).op(ASTORE_3);
+			c.op(ALOAD_0).op(ALOAD_1).op(ALOAD_3).op(INVOKEVIRTUAL).u2(cp.getMethod(sThis, "generate", sGenerate));
+			c.op(ALOAD_3).op(ALOAD_2).op(INVOKEVIRTUAL).u2(cp.getMethod(sOutput, "writeTo", "(Ljava/io/Writer;)V"));
+			c.op(RETURN);
+			rMethods.add(method(cp, ACC_PUBLIC, "generate", "(Lcom/munskimii/tengine/MetaRecord;Ljava/io/OutputStreamWriter;)V", c, 4, 4, iCode, iExceptions, iIOException));
+
+			// public void generate(MetaRecord ____my, TemplateOutput out) throws IOException
+			int iWriteBytes = cp.getMethod(sOutput, "write", "([B)V");
+			int iWriteString = cp.getMethod(sOutput, "write", "(Ljava/lang/String;)V");
+			c = new Code();
+			for (String sPart : rParts) {
+				c.op(ALOAD_2);
+				if (sPart != null)
+					c.op(GETSTATIC).u2(rConsts.get(sPart)).op(INVOKEVIRTUAL).u2(iWriteBytes);
+				else
+					c.op(ALOAD_0).op(GETFIELD).u2(iName).op(INVOKEVIRTUAL).u2(iWriteString);
+			}
+			c.op(RETURN);
+			rMethods.add(method(cp, ACC_PUBLIC, "generate", sGenerate, c, 2, 3, iCode, iExceptions, iIOException));
+		}
+
+		// the class file itself
+		ByteArrayOutputStream rBytes = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(rBytes);
+		out.writeInt(0xcafebabe);
+		out.writeShort(0);
+		out.writeShort(52);
+		cp.write(out);
+		out.writeShort(ACC_PUBLIC | ACC_SUPER);
+		out.writeShort(iThis);
+		out.writeShort(iSuper);
+		out.writeShort(1);
+		out.writeShort(iInterface);
+		out.writeShort(rFields.size());
+		for (byte[] ab : rFields)
+			out.write(ab);
+		out.writeShort(rMethods.size());
+		for (byte[] ab : rMethods)
+			out.write(ab);
+		out.writeShort(0);
+		out.flush();
+		return rBytes.toByteArray();
+	}
+
+	/** Adds the collected text as a part (cut into pieces that fit a class file string constant) and clears it. **/
+	private static void addText(List<String> rParts, StringBuilder sb) {
+
+		String s = sb.toString();
+		sb.setLength(0);
+		for (int i = 0; i < s.length(); ) {
+			int iEnd = Math.min(s.length(), i + TemplateGenerator.MAX_TEXT);
+			if (iEnd < s.length() && Character.isHighSurrogate(s.charAt(iEnd - 1)))
+				iEnd--;
+			rParts.add(s.substring(i, iEnd));
+			i = iEnd;
+		}
+	}
+
+	/** Returns a field or method entry, with an optional attribute. **/
+	private static byte[] member(int iAccess, int iName, int iDescriptor, byte[] abAttribute) throws IOException {
+
+		ByteArrayOutputStream rBytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(rBytes);
+		out.writeShort(iAccess);
+		out.writeShort(iName);
+		out.writeShort(iDescriptor);
+		out.writeShort((abAttribute != null) ? 1 : 0);
+		if (abAttribute != null)
+			out.write(abAttribute);
+		out.flush();
+		return rBytes.toByteArray();
+	}
+
+	/** Returns a method entry with its Code attribute, and an Exceptions attribute if iException is not 0. **/
+	private static byte[] method(
+													ConstantPool cp,
+													int iAccess,
+													String sName,
+													String sDescriptor,
+													Code c,
+													int iMaxStack,
+													int iMaxLocals,
+													int iCode,
+													int iExceptions,
+													int iException) throws IOException {
+
+		byte[] abCode = c.toByteArray();
+		if (abCode.length > 65535)
+			throw new IOException("Method " + sName + " is too large to be assembled");
+
+		ByteArrayOutputStream rBytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(rBytes);
+		out.writeShort(iAccess);
+		out.writeShort(cp.getUtf8(sName));
+		out.writeShort(cp.getUtf8(sDescriptor));
+		out.writeShort((iException != 0) ? 2 : 1);
+
+		out.writeShort(iCode);
+		out.writeInt(12 + abCode.length);
+		out.writeShort(iMaxStack);
+		out.writeShort(iMaxLocals);
+		out.writeInt(abCode.length);
+		out.write(abCode);
+		out.writeShort(0);
+		out.writeShort(0);
+
+		if (iException != 0) {
+			out.writeShort(iExceptions);
+			out.writeInt(4);
+			out.writeShort(1);
+			out.writeShort(iException);
+		}
+		out.flush();
+		return rBytes.toByteArray();
+	}
+
+	/** The bytecode of a method. **/
+	private static class Code {
+
+		private ByteArrayOutputStream _rBytes = new ByteArrayOutputStream(256);
+
+		Code op(int iOp) {
+			_rBytes.write(iOp);
+			return this;
+		}
+
+		Code u2(int i) {
+			_rBytes.write(i >> 8);
+			_rBytes.write(i);
+			return this;
+		}
+
+		Code ldc(int iIndex) {
+			if (iIndex < 256)
+				return op(LDC).op(iIndex);
+			return op(LDC_W).u2(iIndex);
+		}
+
+		byte[] toByteArray() {
+			return _rBytes.toByteArray();
+		}
+	}
+
+	/** The constant pool of the class, every entry is only added once. **/
+	private static class ConstantPool {
+
+		private ByteArrayOutputStream _rBytes = new ByteArrayOutputStream(1024);
+		private DataOutputStream _rOut = new DataOutputStream(_rBytes);
+		private Map<String, Integer> _rIndex = new HashMap<String, Integer>();
+		private int _iNext = 1;
+
+		int getUtf8(String s) throws IOException {
+
+			Integer i = _rIndex.get("U" + s);
+			if (i == null) {
+				_rOut.writeByte(1);
+				_rOut.writeUTF(s);
+				i = add("U" + s);
+			}
+			return i.intValue();
+		}
+
+		int getString(String s) throws IOException {
+			return getRef("S" + s, 8, getUtf8(s), -1);
+		}
+
+		int getClass(String sInternalName) throws IOException {
+			return getRef("C" + sInternalName, 7, getUtf8(sInternalName), -1);
+		}
+
+		int getField(String sClass, String sName, String sDescriptor) throws IOException {
+			return getRef("F" + sClass + "." + sName + ":" + sDescriptor, 9, getClass(sClass), getNameAndType(sName, sDescriptor));
+		}
+
+		int getMethod(String sClass, String sName, String sDescriptor) throws IOException {
+			return getRef("M" + sClass + "." + sName + ":" + sDescriptor, 10, getClass(sClass), getNameAndType(sName, sDescriptor));
+		}
+
+		private int getNameAndType(String sName, String sDescriptor) throws IOException {
+			return getRef("N" + sName + ":" + sDescriptor, 12, getUtf8(sName), getUtf8(sDescriptor));
+		}
+
+		/** Adds an entry made of one or two constant pool indexes. **/
+		private int getRef(String sKey, int iTag, int i1, int i2) throws IOException {
+
+			Integer i = _rIndex.get(sKey);
+			if (i == null) {
+				_rOut.writeByte(iTag);
+				_rOut.writeShort(i1);
+				if (i2 >= 0)
+					_rOut.writeShort(i2);
+				i = add(sKey);
+			}
+			return i.intValue();
+		}
+
+		private Integer add(String sKey) throws IOException {
+
+			if (_iNext > 65534)
+				throw new IOException("Too many constants to assemble the template class");
+			Integer i = Integer.valueOf(_iNext++);
+			_rIndex.put(sKey, i);
+			return i;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			_rOut.flush();
+			out.writeShort(_iNext);
+			_rBytes.writeTo(out);
+		}
+	}
+}
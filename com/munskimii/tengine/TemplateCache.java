@@ -0,0 +1,252 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateCache class keeps the compiled classes of templates on disk, so a template that did not change is never
+ * parsed or compiled again.
+ *
+ * Every template is stored under an id (typically the path of the template file) together with its key, the hash of
+ * everything its classes depend on: the template text and the default charset it is read in, the MetaContext variables
+ * and classes, the build options and the generator version (see getKey()).  A template whose key still matches gets its classes straight from the cache.
+ *
+ * The cache directory holds one file per template with its class files, and an "index.prop" file mapping the ids to
+ * their keys.  An entry is replaced when its template changes, and dropped (see retain()) when the template is gone.
+ *
+ * The entry also keeps the dependencies of the template (see TemplateUnit.getDependencies()), the entry is only used
+ * while every dependency still has the value it was built with - a template with folded parameters is built again
+ * once one of them changes, the other templates stay cached.
+ *
+ * Templates are cached one by one, so a cached template must not depend on classes of other templates - the base
+ * engine does not use its text pools (see TemplatePool) while the cache is on.  Included files are the exception, they
+ * are cached as templates of their own, and the templates including them depend on their key (see setDependency()).
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TemplateCache {
+
+	private static final int MAGIC = 0x7e6c0002;
+	private static final String INDEX = "index.prop";
+	private static final String TEMPLATE = "template.";
+
+	private File _rDir;
+	private Properties _rIndex = new Properties();
+	private boolean _bChanged;
+	private Map<String, String> _rCurrent = new ConcurrentHashMap<String, String>();
+
+	/** Constructor. The directory is created if needed, an existing index is read. **/
+	public TemplateCache(File rDir) throws IOException {
+
+		_rDir = rDir;
+		if (!_rDir.isDirectory() && !_rDir.mkdirs())
+			throw new IOException("Cannot create template cache directory: " + _rDir.getPath());
+
+		File rIndex = new File(_rDir, INDEX);
+		if (rIndex.isFile()) {
+			FileInputStream in = new FileInputStream(rIndex);
+			try {
+				_rIndex.load(in);
+			} finally { in.close(); }
+		}
+	}
+
+	/**
+	 * Returns the cache key of a template, the SHA-256 of everything the generated classes depend on.
+	 *
+	 * @param rCtx the template engine framework, its new line and MetaContext are part of the key
+	 * @param sInterfaceClass the name of the generated class - does not contain package name
+	 * @param abText the template text exactly as read from its file, it is decoded in the default charset (part of the key)
+	 * @param rOptions the build options, may be null
+	**/
+	public static String getKey(TContext rCtx, String sInterfaceClass, byte[] abText, TemplateOptions rOptions) throws IOException {
+
+		MessageDigest rDigest = null;
+		try {
+			rDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException x) { throw new IOException("SHA-256 is not available", x); }
+
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("generator=" + TemplateGenerator.VERSION + "\n");
+		sb.append("java=" + System.getProperty("java.specification.version") + "\n");
+		sb.append("class=" + TemplateCompiler.PACKAGE + "." + sInterfaceClass + "\n");
+		sb.append("nl=" + rCtx.getNLEsc() + "\n");
+		sb.append("source=" + Charset.defaultCharset().name() + "\n");
+		if (rOptions != null) {
+			sb.append("charset=" + rOptions.getCharset() + "\n");
+			sb.append("assemble=" + rOptions.isAssemble() + "\n");
+			sb.append("resolver=" + rOptions.getResolver() + "\n");
+			sb.append("fold=" + rOptions.isFold() + "\n");
+			sb.append("profile=" + rOptions.isProfile() + "\n");
+			sb.append("split=" + rOptions.isSplit() + "\n");
+			sb.append("escape=" + rOptions.getEscape() + "\n");
+		}
+
+		MetaContext rMeta = rCtx.getMetaContext();
+		for (int i = 0; i < rMeta.size(); i++)
+			sb.append("var=" + rMeta.getVariableName(i) + " " + rMeta.getClassName(i) + "\n");
+
+		rDigest.update(sb.toString().getBytes("UTF-8"));
+		rDigest.update(abText);
+
+		StringBuilder sbHex = new StringBuilder(64);
+		for (byte b : rDigest.digest())
+			sbHex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sbHex.toString();
+	}
+
+	/**
+	 * Looks up the template, on a hit its cached classes are added to the unit (see TemplateUnit.isCached()).
+	 * A damaged entry, or one with a dependency that changed (see isCurrent()), counts as a miss.
+	 *
+	 * @param rCtx the template engine framework, holding the current values of the dependencies
+	 * @return true if the unit got its classes from the cache
+	**/
+	public boolean load(TContext rCtx, TemplateUnit rUnit, String sId, String sKey) {
+
+		if (!sKey.equals(_rIndex.getProperty(TEMPLATE + sId)))
+			return false;
+
+		File rEntry = new File(_rDir, sKey + ".cls");
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(rEntry)));
+			try {
+				if (in.readInt() != MAGIC)
+					return false;
+
+				Map<String, byte[]> rClasses = new LinkedHashMap<String, byte[]>();
+				int iCount = in.readInt();
+				for (int i = 0; i < iCount; i++) {
+					String sClass = in.readUTF();
+					byte[] ab = new byte[in.readInt()];
+					in.readFully(ab);
+					rClasses.put(sClass, ab);
+				}
+
+				Map<String, String> rDepends = new TreeMap<String, String>();
+				int iDepends = in.readInt();
+				for (int i = 0; i < iDepends; i++) {
+					String sDepend = in.readUTF();
+					byte[] ab = new byte[in.readInt()];
+					in.readFully(ab);
+					rDepends.put(sDepend, new String(ab, "UTF-8"));
+				}
+
+				if (!rClasses.containsKey(TemplateCompiler.PACKAGE + "." + rUnit.getInterfaceClass()))
+					return false;
+				for (Map.Entry<String, String> e : rDepends.entrySet()) {
+					if (!isCurrent(rCtx, e.getKey(), e.getValue()))
+						return false;
+				}
+
+				for (Map.Entry<String, byte[]> e : rClasses.entrySet())
+					rUnit.addClass(e.getKey(), e.getValue());
+				for (Map.Entry<String, String> e : rDepends.entrySet())
+					rUnit.addDependency(e.getKey(), e.getValue());
+				rUnit.setCached(true);
+				return true;
+			} finally { in.close(); }
+		} catch (IOException x) {
+			return false;
+		}
+	}
+
+	/** Stores the classes of a successfully compiled template, replacing its previous entry. **/
+	public synchronized void store(TemplateUnit rUnit, String sId, String sKey) throws IOException {
+
+		Map<String, byte[]> rClasses = rUnit.getClasses();
+		if (rUnit.hasErrors() || rClasses.isEmpty())
+			return;
+
+		// written under a temporary name first, so a crash never leaves half an entry behind
+		File rEntry = new File(_rDir, sKey + ".cls");
+		File rTemp = new File(_rDir, sKey + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rTemp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(rClasses.size());
+			for (Map.Entry<String, byte[]> e : rClasses.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeInt(e.getValue().length);
+				out.write(e.getValue());
+			}
+
+			Map<String, String> rDepends = rUnit.getDependencies();
+			out.writeInt(rDepends.size());
+			for (Map.Entry<String, String> e : rDepends.entrySet()) {
+				byte[] ab = e.getValue().getBytes("UTF-8");
+				out.writeUTF(e.getKey());
+				out.writeInt(ab.length);
+				out.write(ab);
+			}
+		} finally { out.close(); }
+
+		if (rEntry.exists() && !rEntry.delete() || !rTemp.renameTo(rEntry))
+			throw new IOException("Cannot write template cache entry: " + rEntry.getPath());
+
+		String sOld = (String) _rIndex.setProperty(TEMPLATE + sId, sKey);
+		if (sOld != null && !sOld.equals(sKey))
+			evict(sOld);
+		_bChanged = true;
+	}
+
+	/** 
+	 * Sets the current value of a dependency the cache cannot look up itself, like the key of an included file (see
+	 * TemplateGenerator.INCLUDE).  It must be set before the templates depending on it are loaded.
+	**/
+	public void setDependency(String sDependency, String sValue) {
+		_rCurrent.put(sDependency, sValue);
+	}
+
+	/** 
+	 * Returns true if the dependency still has the value the template was built with.  Parameters (see TemplateFolder)
+	 * are checked against the MetaParameters, the others against the values given to setDependency().  Unknown
+	 * dependencies never match.
+	**/
+	protected boolean isCurrent(TContext rCtx, String sDependency, String sValue) {
+
+		if (sDependency.startsWith(TemplateFolder.PARAMETER))
+			return rCtx.getMetaParameters().getParameter(sDependency.substring(TemplateFolder.PARAMETER.length())).equals(sValue);
+		String sCurrent = _rCurrent.get(sDependency);
+		return sCurrent != null && sCurrent.equals(sValue);
+	}
+
+	/** Drops the entries of all templates not in the given ids, like templates whose file was deleted. **/
+	public synchronized void retain(Collection<String> rIds) {
+
+		Set<String> rKeep = new HashSet<String>(rIds);
+		for (String sProp : new ArrayList<String>(_rIndex.stringPropertyNames())) {
+
+			if (!sProp.startsWith(TEMPLATE) || rKeep.contains(sProp.substring(TEMPLATE.length())))
+				continue;
+
+			String sKey = (String) _rIndex.remove(sProp);
+			evict(sKey);
+			_bChanged = true;
+		}
+	}
+
+	/** Deletes the entry file of the key, unless another template still uses it. **/
+	private void evict(String sKey) {
+
+		if (!_rIndex.containsValue(sKey))
+			new File(_rDir, sKey + ".cls").delete();
+	}
+
+	/** Writes the index if anything changed. **/
+	public synchronized void save() throws IOException {
+
+		if (!_bChanged)
+			return;
+
+		FileOutputStream out = new FileOutputStream(new File(_rDir, INDEX));
+		try {
+			_rIndex.store(out, "tengine template cache, id to key");
+		} finally { out.close(); }
+		_bChanged = false;
+	}
+}
@@ -0,0 +1,65 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateClassLoader class holds the bytecode of generated template classes in memory and defines them on demand.
+ *
+ * Each compilation gets its own TemplateClassLoader, so the generated classes never have to be written to the
+ * "classes" directory and they can be dropped along with the loader once no template references them anymore.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+
+public class TemplateClassLoader extends ClassLoader {
+
+	private Map<String, byte[]> _rClasses = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>());
+
+	/** Constructor. The parent loader must be able to see the tengine framework and all MetaContext classes. **/
+	public TemplateClassLoader(ClassLoader rParent) {
+		super(rParent);
+	}
+
+	/** Adds the bytecode for a fully qualified class name, the class is defined the first time it is requested. **/
+	public void addClass(String sClass, byte[] abClass) {
+		_rClasses.put(sClass, abClass);
+	}
+
+	/** Returns the bytecode for a fully qualified class name, or null if this loader does not hold the class. **/
+	public byte[] getClassBytes(String sClass) {
+		return _rClasses.get(sClass);
+	}
+
+	/** Returns the fully qualified names of all classes held by this loader. **/
+	public Set<String> getClassNames() {
+		synchronized (_rClasses) {
+			return new LinkedHashSet<String>(_rClasses.keySet());
+		}
+	}
+
+	/** Held classes are defined by this loader first, so a stale copy in the "classes" directory never shadows a fresh build. **/
+	protected Class<?> loadClass(String sClass, boolean bResolve) throws ClassNotFoundException {
+
+		synchronized (getClassLoadingLock(sClass)) {
+
+			Class<?> rClass = findLoadedClass(sClass);
+			if (rClass == null && _rClasses.containsKey(sClass))
+				rClass = findClass(sClass);
+			if (rClass == null)
+				return super.loadClass(sClass, bResolve);
+
+			if (bResolve)
+				resolveClass(rClass);
+			return rClass;
+		}
+	}
+
+	/** Defines the class from the held bytecode. **/
+	protected Class<?> findClass(String sClass) throws ClassNotFoundException {
+
+		byte[] ab = _rClasses.get(sClass);
+		if (ab == null)
+			throw new ClassNotFoundException(sClass);
+		return defineClass(sClass, ab, 0, ab.length);
+	}
+}
@@ -0,0 +1,372 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateCompiler class compiles the java code created by Template.build() entirely in memory.
+ *
+ * The generated source is handed to the system java compiler through an in-memory file manager, the resulting
+ * bytecode never touches the disk and is defined by a new TemplateClassLoader.  This is the path to use when the
+ * template engine runs in an environment where the "com/munskimii/tengine/gen" and "classes" directories cannot
+ * be written (or when the disk round trip is just too slow).
+ *
+ * Many templates can be compiled at once (see TemplateUnit), which pays the compiler startup only once per batch.
+ * Units that already have their classes (assembled by TemplateAssembler, or from a TemplateCache) skip the java
+ * compiler, their classes are only defined.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.tools.*;
+
+public class TemplateCompiler {
+
+	/** The package every generated template class is created in (see Template.build()). **/
+	public static final String PACKAGE = "com.munskimii.tengine.gen";
+
+	/**
+	 * Compiles a single generated template class in memory.
+	 *
+	 * @param sInterfaceClass the name of the generated class - does not contain package name
+	 * @param sSource the java code returned by Template.build()
+	 * @param rParent the parent class loader, it must see the tengine framework and all MetaContext classes
+	 * @return a new class loader holding the compiled class (and any inner classes)
+	**/
+	public static TemplateClassLoader compile(
+													String sInterfaceClass,
+													String sSource,
+													ClassLoader rParent) throws IOException {
+
+		TemplateUnit rUnit = new TemplateUnit(sInterfaceClass, "", "", sInterfaceClass, sInterfaceClass);
+		rUnit.setSource(sSource);
+		compile(Arrays.asList(rUnit), rParent, 1, null);
+
+		if (rUnit.hasErrors()) {
+			StringBuilder sb = new StringBuilder("Compile failed for template class " + sInterfaceClass + ":\n");
+			for (String s : rUnit.getDiagnostics())
+				sb.append("  " + s + "\n");
+			throw new IOException(sb.toString());
+		}
+		return rUnit.getLoader();
+	}
+
+	/**
+	 * Compiles a batch of templates, paying the compiler startup cost once per shard instead of once per template.
+	 *
+	 * All parsed units without errors are compiled by one compiler task per shard, the shards run in parallel.  Every unit of
+	 * a shard shares the shard's class loader.  Compile errors are handed back to the unit they belong to, a template that
+	 * does not compile does not keep the other templates of its shard from compiling.
+	 *
+	 * Units that already have their classes (see TemplateUnit.getClasses()) all share one class loader and need no compiler.
+	 * The compiled units get their class files added, so they can be cached.
+	 *
+	 * @param rUnits the templates, Template.build() output must already be set (units without source are skipped)
+	 * @param rParent the parent class loader, it must see the tengine framework and all MetaContext classes.  If it is a
+	 *                TemplateClassLoader, its classes can be used by the generated code (see TemplatePool)
+	 * @param iShards the number of compiler tasks to split the batch into
+	 * @param rClassDir if not null, the compiled class files are also written below this directory
+	**/
+	public static void compile(
+													List<TemplateUnit> rUnits,
+													final ClassLoader rParent,
+													int iShards,
+													final File rClassDir) throws IOException {
+
+		List<TemplateUnit> rPending = new ArrayList<TemplateUnit>();
+		List<TemplateUnit> rBuilt = new ArrayList<TemplateUnit>();
+		for (TemplateUnit rUnit : rUnits) {
+			if (rUnit.hasErrors())
+				continue;
+			if (!rUnit.getClasses().isEmpty())
+				rBuilt.add(rUnit);
+			else if (rUnit.getSource() != null)
+				rPending.add(rUnit);
+		}
+
+		if (!rBuilt.isEmpty()) {
+
+			TemplateClassLoader rLoader = new TemplateClassLoader(rParent);
+			for (TemplateUnit rUnit : rBuilt) {
+				for (Map.Entry<String, byte[]> e : rUnit.getClasses().entrySet())
+					rLoader.addClass(e.getKey(), e.getValue());
+				rUnit.setLoader(rLoader);
+			}
+			if (rClassDir != null)
+				writeClasses(rLoader, rClassDir);
+		}
+
+		if (rPending.isEmpty())
+			return;
+
+		JavaCompiler rCmplr = ToolProvider.getSystemJavaCompiler();
+		if (rCmplr == null)
+			throw new IOException("No system java compiler available, templates with java code can only be compiled when running on a JDK");
+
+		iShards = Math.max(1, Math.min(iShards, rPending.size()));
+		if (iShards == 1) {
+			compileShard(rCmplr, rPending, rParent, rClassDir);
+			return;
+		}
+
+		// deal the units round robin, so large and small templates spread evenly over the shards
+		List<List<TemplateUnit>> rShards = new ArrayList<List<TemplateUnit>>();
+		for (int i = 0; i < iShards; i++)
+			rShards.add(new ArrayList<TemplateUnit>());
+		for (int i = 0; i < rPending.size(); i++)
+			rShards.get(i % iShards).add(rPending.get(i));
+
+		final JavaCompiler rShared = rCmplr;
+		ExecutorService rExec = Executors.newFixedThreadPool(iShards);
+		try {
+
+			List<Future<Void>> rFutures = new ArrayList<Future<Void>>();
+			for (final List<TemplateUnit> rShard : rShards) {
+				rFutures.add(rExec.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						compileShard(rShared, rShard, rParent, rClassDir);
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> rFuture : rFutures) {
+				try {
+					rFuture.get();
+				} catch (InterruptedException x) {
+					throw new InterruptedIOException("Interrupted while compiling templates");
+				} catch (ExecutionException x) {
+					if (x.getCause() instanceof IOException)
+						throw (IOException) x.getCause();
+					throw new IOException("Compiling templates failed", x.getCause());
+				}
+			}
+		} finally { rExec.shutdown(); }
+	}
+
+	/** Compiles one shard in a single compiler task, templates with errors are dropped and the rest compiled again. **/
+	private static void compileShard(
+													JavaCompiler rCmplr,
+													List<TemplateUnit> rShard,
+													ClassLoader rParent,
+													File rClassDir) throws IOException {
+
+		List<TemplateUnit> rPending = new ArrayList<TemplateUnit>(rShard);
+		while (!rPending.isEmpty()) {
+
+			TemplateClassLoader rLoader = new TemplateClassLoader(rParent);
+			DiagnosticCollector<JavaFileObject> rDiag = new DiagnosticCollector<JavaFileObject>();
+			MemoryFileManager fileManager = new MemoryFileManager(rCmplr.getStandardFileManager(rDiag, null, null), rLoader);
+
+			List<JavaFileObject> rFiles = new ArrayList<JavaFileObject>();
+			for (TemplateUnit rUnit : rPending)
+				rFiles.add(new SourceFile(rUnit));
+
+			TemplateEvents.CompileEvent rEvent = TemplateMetrics.isEnabled() ? new TemplateEvents.CompileEvent() : null;
+			if (rEvent != null)
+				rEvent.begin();
+			long lStart = System.nanoTime();
+
+			boolean bOk = rCmplr.getTask(null, fileManager, rDiag, null, null, rFiles).call();
+			fileManager.close();
+
+			// every template of the task waited for all of it
+			if (rEvent != null) {
+				for (TemplateUnit rUnit : rPending)
+					TemplateMetrics.get(rUnit.getGroup(), rUnit.getName()).addCompile(System.nanoTime() - lStart);
+				rEvent.end();
+				if (rEvent.shouldCommit()) {
+					rEvent.templates = rPending.size();
+					rEvent.failed = !bOk;
+					rEvent.commit();
+				}
+			}
+
+			// hand each diagnostic to the template it came from
+			boolean bAssigned = false;
+			for (Diagnostic<? extends JavaFileObject> d : rDiag.getDiagnostics()) {
+				if (d.getKind() != Diagnostic.Kind.ERROR && d.getKind() != Diagnostic.Kind.WARNING)
+					continue;
+				if (!(d.getSource() instanceof SourceFile))
+					continue;
+
+				// warnings are only kept from the pass that succeeds, a retry would report them again
+				boolean bError = (d.getKind() == Diagnostic.Kind.ERROR);
+				if (!bError && !bOk)
+					continue;
+
+				TemplateUnit rUnit = ((SourceFile) d.getSource()).getUnit();
+				rUnit.addDiagnostic(rUnit.getLocation() + " (generated line " + d.getLineNumber() + "): " + d.getMessage(null), bError);
+				bAssigned |= bError;
+			}
+
+			if (bOk) {
+
+				for (TemplateUnit rUnit : rPending)
+					rUnit.setLoader(rLoader);
+				if (rClassDir != null)
+					writeClasses(rLoader, rClassDir);
+				return;
+			}
+
+			// an error javac could not pin on a template, nothing left to retry
+			if (!bAssigned) {
+				for (TemplateUnit rUnit : rPending)
+					rUnit.addDiagnostic(rUnit.getLocation() + ": compile failed", true);
+				return;
+			}
+
+			List<TemplateUnit> rRetry = new ArrayList<TemplateUnit>();
+			for (TemplateUnit rUnit : rPending) {
+				if (!rUnit.hasErrors())
+					rRetry.add(rUnit);
+			}
+			rPending = rRetry;
+		}
+	}
+
+	/** Writes every class held by the loader below the class directory, in its package directory. **/
+	private static void writeClasses(TemplateClassLoader rLoader, File rClassDir) throws IOException {
+
+		for (String sClass : rLoader.getClassNames()) {
+
+			File rOut = new File(rClassDir, sClass.replace('.', File.separatorChar) + ".class");
+			rOut.getParentFile().mkdirs();
+
+			FileOutputStream out = new FileOutputStream(rOut);
+			try {
+				out.write(rLoader.getClassBytes(sClass));
+			} finally { out.close(); }
+		}
+	}
+
+	/** The java source of a template unit, held in a string. **/
+	static class SourceFile extends SimpleJavaFileObject {
+
+		private TemplateUnit _rUnit;
+
+		SourceFile(TemplateUnit rUnit) {
+			super(URI.create("string:///" + (PACKAGE + "." + rUnit.getInterfaceClass()).replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+			_rUnit = rUnit;
+		}
+
+		TemplateUnit getUnit() {
+			return _rUnit;
+		}
+
+		public CharSequence getCharContent(boolean bIgnoreEncodingErrors) {
+			return _rUnit.getSource();
+		}
+	}
+
+	/** A class file that hands its bytecode to the class loader (and to its template unit) once javac closes it. **/
+	static class ClassFile extends SimpleJavaFileObject {
+
+		private String _sClass;
+		private TemplateClassLoader _rLoader;
+		private TemplateUnit _rUnit;
+
+		ClassFile(String sClass, TemplateClassLoader rLoader, TemplateUnit rUnit) {
+			super(URI.create("mem:///" + sClass.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			_sClass = sClass;
+			_rLoader = rLoader;
+			_rUnit = rUnit;
+		}
+
+		public OutputStream openOutputStream() {
+			return new ByteArrayOutputStream() {
+				public void close() throws IOException {
+					super.close();
+					_rLoader.addClass(_sClass, toByteArray());
+					if (_rUnit != null)
+						_rUnit.addClass(_sClass, toByteArray());
+				}
+			};
+		}
+	}
+
+	/** A class held by a parent TemplateClassLoader, handed to javac so generated code can use it. **/
+	static class LibraryFile extends SimpleJavaFileObject {
+
+		private String _sClass;
+		private byte[] _abClass;
+
+		LibraryFile(String sClass, byte[] abClass) {
+			super(URI.create("mem:///" + sClass.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			_sClass = sClass;
+			_abClass = abClass;
+		}
+
+		String getClassName() {
+			return _sClass;
+		}
+
+		public InputStream openInputStream() {
+			return new ByteArrayInputStream(_abClass);
+		}
+	}
+
+	/** 
+	 * File manager that reads everything from the standard locations but keeps the compiled classes in memory. 
+	 *
+	 * Classes of the generated package held by TemplateClassLoaders up the parent chain (like TemplatePool holder classes
+	 * compiled earlier) are added to the class path, a class held by a nearer loader hides the same class further up.
+	**/
+	static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+		private TemplateClassLoader _rLoader;
+
+		MemoryFileManager(StandardJavaFileManager rStd, TemplateClassLoader rLoader) {
+			super(rStd);
+			_rLoader = rLoader;
+		}
+
+		public Iterable<JavaFileObject> list(
+													Location rLocation,
+													String sPackage,
+													Set<JavaFileObject.Kind> rKinds,
+													boolean bRecurse) throws IOException {
+
+			Iterable<JavaFileObject> rStd = super.list(rLocation, sPackage, rKinds, bRecurse);
+			if (rLocation != StandardLocation.CLASS_PATH || !sPackage.equals(PACKAGE) || !rKinds.contains(JavaFileObject.Kind.CLASS))
+				return rStd;
+
+			Set<String> rSeen = new HashSet<String>();
+			List<JavaFileObject> rFiles = new ArrayList<JavaFileObject>();
+			for (ClassLoader r = _rLoader.getParent(); r instanceof TemplateClassLoader; r = r.getParent()) {
+
+				TemplateClassLoader rLibrary = (TemplateClassLoader) r;
+				for (String sClass : rLibrary.getClassNames()) {
+					if (rSeen.add(sClass))
+						rFiles.add(new LibraryFile(sClass, rLibrary.getClassBytes(sClass)));
+				}
+			}
+
+			for (JavaFileObject rFile : rStd) {
+				if (!rSeen.contains(super.inferBinaryName(rLocation, rFile)))
+					rFiles.add(rFile);
+			}
+			return rFiles;
+		}
+
+		public String inferBinaryName(Location rLocation, JavaFileObject rFile) {
+
+			if (rFile instanceof LibraryFile)
+				return ((LibraryFile) rFile).getClassName();
+			return super.inferBinaryName(rLocation, rFile);
+		}
+
+		public JavaFileObject getJavaFileForOutput(
+													Location rLocation,
+													String sClass,
+													JavaFileObject.Kind rKind,
+													FileObject rSibling) throws IOException {
+
+			// javac passes the source file as sibling, which tells the template every class belongs to
+			if (rKind == JavaFileObject.Kind.CLASS)
+				return new ClassFile(sClass, _rLoader, (rSibling instanceof SourceFile) ? ((SourceFile) rSibling).getUnit() : null);
+			return super.getJavaFileForOutput(rLocation, sClass, rKind, rSibling);
+		}
+	}
+}
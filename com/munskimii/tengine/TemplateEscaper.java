@@ -0,0 +1,142 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateEscaper class writes the values of <%= %> sections escaped for the kind of document a template produces,
+ * see the <%# escape mode %> directive in TemplateParser and TemplateOptions.setEscape().
+ *
+ * The modes are:
+ *   html   & < > " ' become entities
+ *   xml    the same, with &apos; for the apostrophe
+ *   json   the value is escaped for a JSON string: " \ and the control characters
+ *   csv    a value with a separator, quote or new line is quoted, its quotes are doubled
+ *   none   values are written as they are
+ *
+ * Every mode is a table of the ASCII characters that need escaping and their replacement.  A value is scanned once, when
+ * no character needs escaping it is written in one piece, otherwise the runs in between and the replacements are written
+ * straight to the output - no string is created either way.  There is one shared instance per mode, see get().
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.util.*;
+
+public class TemplateEscaper {
+
+	/** The mode of values written as they are. **/
+	public static final String NONE = "none";
+
+	private static final Map<String, TemplateEscaper> _rModes = new HashMap<String, TemplateEscaper>();
+
+	static {
+		TemplateEscaper r = new TemplateEscaper("html", false);
+		r.set('&', "&amp;").set('<', "&lt;").set('>', "&gt;").set('"', "&quot;").set('\'', "&#39;");
+
+		r = new TemplateEscaper("xml", false);
+		r.set('&', "&amp;").set('<', "&lt;").set('>', "&gt;").set('"', "&quot;").set('\'', "&apos;");
+
+		r = new TemplateEscaper("json", false);
+		for (char c = 0; c < 0x20; c++)
+			r.set(c, String.format("\\u%04x", Integer.valueOf(c)));
+		r.set('"', "\\\"").set('\\', "\\\\").set('\b', "\\b").set('\f', "\\f").set('\n', "\\n").set('\r', "\\r").set('\t', "\\t");
+
+		r = new TemplateEscaper("csv", true);
+		r.set('"', "\"\"").set(',', null).set('\r', null).set('\n', null);
+	}
+
+	private String _sMode;
+
+	/** The replacement of every ASCII character, null for one that is written as it is. **/
+	private String[] _asTable = new String[128];
+
+	/** The ASCII characters that need escaping, including the ones that only make a csv value quoted. **/
+	private boolean[] _abSpecial = new boolean[128];
+
+	/** True if a value needing escaping is quoted as a whole (csv). **/
+	private boolean _bQuote;
+
+	private TemplateEscaper(String sMode, boolean bQuote) {
+
+		_sMode = sMode;
+		_bQuote = bQuote;
+		_rModes.put(sMode, this);
+	}
+
+	/** Marks the character as one that needs escaping, with its replacement (null to keep it, only with quoting). **/
+	private TemplateEscaper set(char c, String sReplacement) {
+
+		_abSpecial[c] = true;
+		_asTable[c] = sReplacement;
+		return this;
+	}
+
+	/** Returns the escaper of the mode, null for "none" (or no mode) and for an unknown mode - see isMode(). **/
+	public static TemplateEscaper get(String sMode) {
+
+		if (sMode == null)
+			return null;
+		return _rModes.get(sMode);
+	}
+
+	/** Returns true if the mode is known, "none" included. **/
+	public static boolean isMode(String sMode) {
+		return sMode.equals(NONE) || _rModes.containsKey(sMode);
+	}
+
+	/** Returns the names of the modes, "none" excluded. **/
+	public static Set<String> getModes() {
+		return new TreeSet<String>(_rModes.keySet());
+	}
+
+	/** Returns the name of the mode. **/
+	public String getMode() {
+		return _sMode;
+	}
+
+	/** Writes the value escaped, a value without any character to escape is written as it is. **/
+	public void write(Writer out, String s) throws IOException {
+
+		int iLen = s.length();
+		int i = 0;
+		for (; i < iLen; i++) {
+			char c = s.charAt(i);
+			if (c < 128 && _abSpecial[c])
+				break;
+		}
+		if (i == iLen) {
+			out.write(s, 0, iLen);
+			return;
+		}
+
+		if (_bQuote)
+			out.write('"');
+
+		// the run up to each replacement is written from the value itself
+		int iStart = 0;
+		for (; i < iLen; i++) {
+
+			char c = s.charAt(i);
+			if (c >= 128 || _asTable[c] == null)
+				continue;
+			if (i > iStart)
+				out.write(s, iStart, i - iStart);
+			out.write(_asTable[c]);
+			iStart = i + 1;
+		}
+		if (iStart < iLen)
+			out.write(s, iStart, iLen - iStart);
+
+		if (_bQuote)
+			out.write('"');
+	}
+
+	/** Returns the value escaped, for values escaped once when the template is built (see TemplateFolder). **/
+	public String escape(String s) {
+
+		StringWriter out = new StringWriter(s.length() + 16);
+		try {
+			write(out, s);
+		} catch (IOException x) { throw new IllegalStateException(x); }
+		return out.toString();
+	}
+}
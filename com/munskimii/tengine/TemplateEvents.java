@@ -0,0 +1,55 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateEvents class holds the JFR events of the engine, they show up under "tengine" in a flight recording.
+ *
+ * The events are only created while TemplateMetrics.isEnabled(), and only committed when the recording asks for them.
+ * Start a recording with:  java -XX:StartFlightRecording=filename=tengine.jfr,settings=profile ...
+ *
+ * Author: Michael Monschke
+**/
+
+import jdk.jfr.*;
+
+public class TemplateEvents {
+
+	@Name("tengine.Compile")
+	@Label("Template Compile")
+	@Category("tengine")
+	@Description("A batch of templates compiled by the java compiler, one compiler task")
+	public static class CompileEvent extends Event {
+
+		@Label("Templates")
+		public int templates;
+
+		@Label("Failed")
+		public boolean failed;
+	}
+
+	@Name("tengine.Load")
+	@Label("Template Load")
+	@Category("tengine")
+	@Description("A template class loaded and instantiated")
+	public static class LoadEvent extends Event {
+
+		@Label("Template")
+		public String template;
+	}
+
+	@Name("tengine.Render")
+	@Label("Template Render")
+	@Category("tengine")
+	@Description("A document generated by a template")
+	public static class RenderEvent extends Event {
+
+		@Label("Template")
+		public String template;
+
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+
+		@Label("Failed")
+		public boolean failed;
+	}
+}
@@ -0,0 +1,112 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateFolder class evaluates the MetaParameters lookups of a parsed template once, when the template is built.
+ *
+ * The parameters are loaded once by the template engine and never change while it runs, so every
+ * ctx.getMetaParameters().getParameter("name") with a literal name can be replaced by the value itself:
+ *   - a <%= %> section that is nothing but such a lookup becomes static text, merged with the text around it (escaped
+ *     when the section would have escaped the value, see TemplateEscaper)
+ *   - a lookup within other code becomes a string literal
+ *
+ * The folded parameters are the dependencies of the template, a template engine must build it again once one of their
+ * values changes (TemplateCache does that for the dependencies of a TemplateUnit).
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+import java.util.regex.*;
+
+public class TemplateFolder {
+
+	/** The prefix of a parameter dependency, see TemplateUnit.addDependency(). **/
+	public static final String PARAMETER = "param:";
+
+	/** A parameter lookup with a literal name (no escapes). **/
+	private static final Pattern PARAMETER_GET = Pattern.compile("(?<![\\w.])ctx\\s*\\.\\s*getMetaParameters\\s*\\(\\s*\\)\\s*\\.\\s*getParameter\\s*\\(\\s*\"([^\"\\\\]*)\"\\s*\\)");
+
+	/**
+	 * Returns the tree with the parameter lookups folded into constants, the given tree is left as is.
+	 *
+	 * @param rCtx the template engine framework, holding the parameter values
+	 * @param rRoot the parsed template
+	 * @param rUsed gets the name and value of every folded parameter
+	**/
+	public static TemplateNode fold(TContext rCtx, TemplateNode rRoot, Map<String, String> rUsed) {
+		return fold(rCtx, rRoot, rUsed, null);
+	}
+
+	/** Returns the tree with the parameter lookups folded into constants, see above - sEscape is the escape mode the template starts with. **/
+	public static TemplateNode fold(TContext rCtx, TemplateNode rRoot, Map<String, String> rUsed, String sEscape) {
+
+		TemplateEscaper rEscaper = TemplateEscaper.get(sEscape);
+		MetaParameters rParams = rCtx.getMetaParameters();
+		TemplateNode rFolded = new TemplateNode(TemplateNode.TEMPLATE, null, rRoot.getLine(), rRoot.getColumn());
+		TemplateNode rText = null;
+
+		for (TemplateNode rNode : rRoot.getChildren()) {
+
+			// the escape directives are still needed by the generator, the text just follows them
+			if (rNode.getKind() == TemplateNode.DIRECTIVE) {
+				String[] as = rNode.getText().trim().split("\\s+", 2);
+				if (as[0].equals("escape") && as.length == 2)
+					rEscaper = TemplateEscaper.get(as[1].trim());
+			}
+
+			if (rNode.getKind() == TemplateNode.ASSIGN) {
+
+				// the whole expression is a lookup, its value is static text
+				String sExpr = rNode.getText().trim();
+				if (sExpr.endsWith(";"))
+					sExpr = sExpr.substring(0, sExpr.length() - 1).trim();
+				Matcher rMatch = PARAMETER_GET.matcher(sExpr);
+				if (rMatch.matches()) {
+					String sValue = rParams.getParameter(rMatch.group(1));
+					rUsed.put(rMatch.group(1), sValue);
+					rNode = new TemplateNode(TemplateNode.TEXT, (rEscaper != null) ? rEscaper.escape(sValue) : sValue, rNode.getLine(), rNode.getColumn());
+				}
+			}
+
+			if (rNode.getKind() == TemplateNode.SCRIPTLET || rNode.getKind() == TemplateNode.ASSIGN)
+				rNode = new TemplateNode(rNode.getKind(), fold(rParams, rNode.getText(), rUsed), rNode.getLine(), rNode.getColumn(), rNode.getCodeLine());
+
+			if (rNode.getKind() != TemplateNode.TEXT) {
+				rFolded.add(rNode);
+				rText = null;
+			}
+			else if (rNode.getText().length() == 0) {
+				continue;
+			}
+			else if (rText == null) {
+				rText = new TemplateNode(TemplateNode.TEXT, rNode.getText(), rNode.getLine(), rNode.getColumn());
+				rFolded.add(rText);
+			}
+			else {
+				// merged into the text before it, the node keeps where that text starts
+				TemplateNode rMerged = new TemplateNode(TemplateNode.TEXT, rText.getText() + rNode.getText(), rText.getLine(), rText.getColumn());
+				List<TemplateNode> rChildren = rFolded.getChildren();
+				rChildren.set(rChildren.size() - 1, rMerged);
+				rText = rMerged;
+			}
+		}
+		return rFolded;
+	}
+
+	/** Returns the java code with every parameter lookup replaced by a string literal of its value. **/
+	private static String fold(MetaParameters rParams, String sCode, Map<String, String> rUsed) {
+
+		if (sCode.indexOf("getMetaParameters") < 0)
+			return sCode;
+
+		Matcher rMatch = PARAMETER_GET.matcher(sCode);
+		StringBuffer sb = new StringBuffer(sCode.length());
+		while (rMatch.find()) {
+			String sValue = rParams.getParameter(rMatch.group(1));
+			rUsed.put(rMatch.group(1), sValue);
+			rMatch.appendReplacement(sb, Matcher.quoteReplacement("\"" + TemplateGenerator.toLiteral(sValue) + "\""));
+		}
+		rMatch.appendTail(sb);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,653 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateGenerator class creates the java code base of a template from the tree built by TemplateParser.
+ *
+ * The generated class implements TemplateInterface (or ByteTemplateInterface when an output charset is set, see TemplateOptions):
+ *   - the <%@ %> code goes right after the import statements
+ *   - every predefined scriptlet variable of the MetaContext is a local variable of the generate method, bound by its
+ *     index when the record is an IndexedMetaRecord, by its name otherwise
+ *   - static text is written with one out.write() of a text constant, <% %> code is copied as is, and the value
+ *     of a <%= %> expression is written with out.write()
+ *   - with a FieldResolver (see TemplateOptions), var.get("field") calls in the code read the field by its slot
+ *   - a <%# include "file" %> calls the generate method of the class built from that file (see getIncludeClass()), the
+ *     class keeps one instance of every class it includes
+ *   - with an escape mode (see TemplateEscaper), the value of a <%= %> expression is written through the escaper
+ *     of the mode, the <%# escape mode %> directive changes the mode for the sections after it
+ *   - a <%# cache expr %> fragment replays its bytes from the FragmentCache of the class on a hit, and captures them
+ *     on a miss (with an output charset, without one the directives are left out)
+ *   - in profile mode, a timer step goes in front of every section and the class declares its TemplateProfile
+ *   - the generate method of a large template is split into chunk methods the JIT still compiles, see TemplateSplitter
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.regex.*;
+
+public class TemplateGenerator {
+
+	/** The version of the generated code, raise it whenever the code (or the TemplateAssembler output) changes - see TemplateCache. **/
+	public static final int VERSION = 4;
+
+	/** Longest static text (in chars) held by a single constant, longer text is cut at a new line if possible. **/
+	public static final int MAX_TEXT = 8192;
+
+	/** A get() call with a literal field name (no escapes) on a variable, see resolve(). **/
+	private static final Pattern FIELD_GET = Pattern.compile("(?<![\\w.])([A-Za-z_$][\\w$]*)\\.get\\(\\s*\"([^\"\\\\]*)\"\\s*\\)");
+
+	/** Scriptlet code ending with a jump, a timer step right after it would not compile (unreachable statement). **/
+	protected static final Pattern JUMP_END = Pattern.compile("(?:^|[;{}])\\s*(?:return|break|continue|throw)\\b[^;{}]*;\\s*(?://[^\\n]*\\s*)?$");
+
+	/** The dependency of a template on a file it includes, see TemplateUnit.getDependencies(). **/
+	public static final String INCLUDE = "include:";
+
+	/** The argument of the include directive, a string literal naming the file. **/
+	private static final Pattern INCLUDE_FILE = Pattern.compile("\"([^\"\\\\]+)\"");
+
+	/** Longest chunk of region descriptors held by a single string constant of the generated class. **/
+	private static final int MAX_REGIONS = 16384;
+
+	protected TContext _rCtx;
+	protected String _sName;
+	protected String _sInterfaceClass;
+	protected TemplateOptions _rOptions;
+	protected TemplatePool _rPool;
+	protected String _sCharset;
+	protected FieldResolver _rResolver;
+	protected boolean _bProfile;
+
+	/** The escape mode of the <%= %> values at the current section (null writes them as they are), and all modes used. **/
+	protected String _sEscape;
+	protected Set<String> _rEscapes = new TreeSet<String>();
+
+	/** The names of the predefined scriptlet variables. **/
+	protected Set<String> _rVars = new HashSet<String>();
+
+	/** The package and import statements, plus the <%@ %> code. **/
+	protected StringBuilder _sbHead = new StringBuilder(1024);
+
+	/** The class itself. **/
+	protected StringBuilder _sbBody = new StringBuilder(4096);
+
+	/** The text constants declared in the generated class (java literal to constant name), when there is no pool. **/
+	protected Map<String, String> _rConsts = new LinkedHashMap<String, String>();
+
+	/** The included files, to the name of the field holding the instance of their class. **/
+	protected Map<String, String> _rIncludes = new LinkedHashMap<String, String>();
+
+	/** The number of cached fragments, and the cache directives still open. **/
+	protected int _iFragments;
+	protected LinkedList<TemplateNode> _rOpen = new LinkedList<TemplateNode>();
+	protected LinkedList<Integer> _rOpenFragments = new LinkedList<Integer>();
+
+	/** The sections the chunks of the generate method start at (see TemplateSplitter), and the warnings about them. **/
+	protected int[] _aiSplits = new int[0];
+	protected List<String> _rWarnings = new ArrayList<String>();
+
+	/** Profile mode: the nodes with a region, their first and last generated lines, and if they are in the head. **/
+	protected List<TemplateNode> _rRegions = new ArrayList<TemplateNode>();
+	protected List<int[]> _rRegionLines = new ArrayList<int[]>();
+	protected boolean _bJumped;
+
+	/** The newlines counted in the head and the body so far, and up to which position, see getLine(). **/
+	private int[] _aiHeadLines = new int[2];
+	private int[] _aiBodyLines = new int[2];
+
+	/** Constructor. The options may be null for the classic template class. **/
+	public TemplateGenerator(TContext rCtx, String sName, String sInterfaceClass, TemplateOptions rOptions) throws IOException {
+
+		_rCtx = rCtx;
+		_sName = sName;
+		_sInterfaceClass = sInterfaceClass;
+		_rOptions = (rOptions != null) ? rOptions : new TemplateOptions();
+		_rPool = _rOptions.getPool();
+		_sCharset = _rOptions.getCharset();
+		_rResolver = _rOptions.getResolver();
+		_bProfile = _rOptions.isProfile();
+		_sEscape = getEscape(_rOptions.getEscape());
+
+		MetaContext rMeta = rCtx.getMetaContext();
+		for (int i = 0; i < rMeta.size(); i++)
+			_rVars.add(rMeta.getVariableName(i));
+
+		if (_sCharset != null)
+			_sCharset = Charset.forName(_sCharset).name();
+		if (_rPool != null && !String.valueOf(_rPool.getCharset()).equals(String.valueOf(_sCharset)))
+			throw new IOException("Text pool charset " + _rPool.getCharset() + " does not match the output charset " + _sCharset + " of template: " + sName);
+	}
+
+	/** Returns the java code for the parsed template. **/
+	public String generate(TemplateNode rRoot) throws IOException {
+
+		collectIncludes(rRoot);
+		List<TemplateNode> rNodes = rRoot.getChildren();
+		if (_rOptions.isSplit())
+			_aiSplits = TemplateSplitter.split(_sName, rNodes, _bProfile, _rWarnings);
+
+		writeHead();
+		writeClassStart();
+		writeGenerateStart();
+
+		int iChunk = 0;
+		for (int i = 0; i < rNodes.size(); i++) {
+			if (iChunk < _aiSplits.length && _aiSplits[iChunk] == i)
+				writeChunkStart(++iChunk);
+			writeNode(rNodes.get(i));
+		}
+		if (!_rOpen.isEmpty())
+			throw new IOException("Missing <%# endcache %> for the cache directive at line " + _rOpen.getFirst().getLine() + " of template: " + _sName);
+
+		writeGenerateEnd();
+		writeClassEnd();
+
+		return _sbHead.toString() + _sbBody.toString();
+	}
+
+	/** Returns the warnings about the generated code, like code too large for the JIT that could not be split. **/
+	public List<String> getWarnings() {
+		return _rWarnings;
+	}
+
+	/** Returns the files the template includes, in the order of their first include directive. **/
+	public List<String> getIncludes() {
+		return new ArrayList<String>(_rIncludes.keySet());
+	}
+
+	/** 
+	 * Returns the name of the class an included file is built into - does not contain package name.  The template engine
+	 * builds every included file as a template of its own under this name, it must be compiled before (or along with)
+	 * the templates including it.
+	**/
+	public static String getIncludeClass(String sFile) {
+
+		StringBuilder sb = new StringBuilder("miiinc_");
+		for (int i = 0; i < sFile.length(); i++) {
+			char ch = sFile.charAt(i);
+			sb.append(Character.isLetterOrDigit(ch) && ch < 0x80 ? Character.toLowerCase(ch) : '_');
+		}
+		return sb.toString() + "_" + Integer.toHexString(sFile.hashCode());
+	}
+
+	/** Finds the include directives, the fields for the included classes are declared before the nodes are written. **/
+	protected void collectIncludes(TemplateNode rRoot) throws IOException {
+
+		for (TemplateNode rNode : rRoot.getChildren()) {
+
+			if (rNode.getKind() != TemplateNode.DIRECTIVE)
+				continue;
+			String sFile = getInclude(rNode);
+			if (sFile != null && !_rIncludes.containsKey(sFile))
+				_rIncludes.put(sFile, "____inc" + _rIncludes.size());
+		}
+	}
+
+	/** Returns the file named by an include directive, null for any other directive. **/
+	private String getInclude(TemplateNode rNode) throws IOException {
+
+		String sText = rNode.getText().trim();
+		if (!sText.startsWith("include") || (sText.length() > 7 && !Character.isWhitespace(sText.charAt(7)) && sText.charAt(7) != '"'))
+			return null;
+
+		Matcher rMatch = INCLUDE_FILE.matcher(sText.substring(7).trim());
+		if (!rMatch.matches())
+			throw new IOException("The include directive at line " + rNode.getLine() + " needs a file name in double-quotes in template: " + _sName);
+		return rMatch.group(1);
+	}
+
+	/** Imports everything necessary for the class. **/
+	protected void writeHead() {
+
+		StringBuilder sb = _sbHead;
+		sb.append("package " + TemplateCompiler.PACKAGE + ";\n");
+		sb.append("\n");
+		sb.append("import com.munskimii.tengine.MetaContext;\n");
+		sb.append("import com.munskimii.tengine.MetaRecord;\n");
+		sb.append("import com.munskimii.tengine.IndexedMetaRecord;\n");
+		sb.append("import com.munskimii.tengine.TContext;\n");
+		sb.append("import com.munskimii.tengine.MetaParameters;\n");
+		sb.append("import com.munskimii.tengine.TemplateInterface;\n");
+		if (_sCharset != null) {
+			sb.append("import com.munskimii.tengine.ByteTemplateInterface;\n");
+			sb.append("import com.munskimii.tengine.TemplateOutput;\n");
+		}
+		sb.append("import java.io.IOException;\n");
+		sb.append("import java.io.OutputStreamWriter;\n");
+
+		MetaContext rMeta = _rCtx.getMetaContext();
+		for (int i = 0; i < rMeta.size(); i++) {
+			sb.append("import " + rMeta.getClassName(i) + ";\n");
+		}
+	}
+
+	/** Creates the class statements, default constructor and init method. **/
+	protected void writeClassStart() {
+
+		StringBuilder sb = _sbBody;
+		sb.append("\n");
+		sb.append("public class " + _sInterfaceClass + " implements " + ((_sCharset != null) ? "ByteTemplateInterface" : "TemplateInterface") + " {\n");
+		sb.append("\n");
+		if (_sCharset != null)
+			sb.append("  private static final String ____charset = \"" + _sCharset + "\";\n");
+		sb.append("  private TContext ctx;\n");
+		sb.append("  private String name;\n");
+		for (Map.Entry<String, String> e : _rIncludes.entrySet())
+			sb.append("  private final " + getIncludeClass(e.getKey()) + " " + e.getValue() + " = new " + getIncludeClass(e.getKey()) + "();\n");
+		sb.append("\n");
+		sb.append("  public " + _sInterfaceClass + "() {}\n");
+		sb.append("\n");
+		sb.append("  public void init(TContext rCtx, String sName) {\n");
+		sb.append("    ctx = rCtx;\n");
+		sb.append("    name = sName;\n");
+		for (String sField : _rIncludes.values())
+			sb.append("    " + sField + ".init(rCtx, sName);\n");
+		sb.append("  }\n");
+		sb.append("\n");
+	}
+
+	/** Starts the generate method and sets up the predefined scriptlet variables. **/
+	protected void writeGenerateStart() {
+
+		StringBuilder sb = _sbBody;
+		if (_sCharset != null) {
+
+			// the classic contract renders the bytes and decodes them for the writer
+			sb.append("  public String getCharset() {\n");
+			sb.append("    return ____charset;\n");
+			sb.append("  }\n");
+			sb.append("\n");
+			sb.append("  public void generate(MetaRecord ____my, OutputStreamWriter ____out)\n");
+			sb.append("                                                  	throws IOException {\n");
+			sb.append("    TemplateOutput out = new TemplateOutput(java.nio.charset.Charset.forName(____charset));\n");
+			sb.append("    generate(____my, out);\n");
+			sb.append("    out.writeTo(____out);\n");
+			sb.append("  }\n");
+			sb.append("\n");
+			sb.append("  public void generate(MetaRecord ____my, TemplateOutput out)\n");
+		}
+		else {
+			sb.append("  public void generate(MetaRecord ____my, OutputStreamWriter out)\n");
+		}
+		sb.append("                                                  	throws IOException {\n");
+		sb.append("\n");
+
+		// an indexed record binds the variables without comparing their names
+		MetaContext rMeta = _rCtx.getMetaContext();
+		if (rMeta.size() > 0)
+			sb.append("    IndexedMetaRecord ____ix = (____my instanceof IndexedMetaRecord) ? (IndexedMetaRecord) ____my : null;\n");
+		for (int i = 0; i < rMeta.size(); i++) {
+			sb.append("    " +  rMeta.getClassName(i) + " " + rMeta.getVariableName(i) + " = ");
+			sb.append("(" + rMeta.getClassName(i) + ") ");
+			sb.append("((____ix != null) ? ____ix.getObject(" + i + ") : ____my.getObject(\"" + rMeta.getVariableName(i) + "\"));\n");
+		}
+
+		sb.append("\n");
+		sb.append("    String ____s = \"\";\n");
+		if (_bProfile) {
+			sb.append("    long ____pt = System.nanoTime();\n");
+			sb.append("    int ____pr = -1;\n");
+		}
+	}
+
+	/** 
+	 * Ends the method of the previous chunk and starts the method of the next one, see TemplateSplitter.  The generate
+	 * method calls all the other chunks in order once its own part is done, they get the predefined scriptlet variables.
+	**/
+	protected void writeChunkStart(int iChunk) {
+
+		StringBuilder sb = _sbBody;
+		MetaContext rMeta = _rCtx.getMetaContext();
+		if (_bProfile && !_bJumped)
+			sb.append("    ____prof.step(____pr, ____pt);\n");
+		if (iChunk == 1) {
+			for (int i = 1; i <= _aiSplits.length; i++) {
+				sb.append("    ____generate" + i + "(____my, out");
+				for (int j = 0; j < rMeta.size(); j++)
+					sb.append(", " + rMeta.getVariableName(j));
+				sb.append(");\n");
+			}
+		}
+		sb.append("  }\n");
+		sb.append("\n");
+
+		sb.append("  private void ____generate" + iChunk + "(MetaRecord ____my, " + ((_sCharset != null) ? "TemplateOutput" : "OutputStreamWriter") + " out");
+		for (int j = 0; j < rMeta.size(); j++)
+			sb.append(", " + rMeta.getClassName(j) + " " + rMeta.getVariableName(j));
+		sb.append(")\n");
+		sb.append("                                                  	throws IOException {\n");
+		sb.append("\n");
+		sb.append("    String ____s = \"\";\n");
+		if (_bProfile) {
+			sb.append("    long ____pt = System.nanoTime();\n");
+			sb.append("    int ____pr = -1;\n");
+		}
+		_bJumped = false;
+	}
+
+	/** Writes the code for a single node. **/
+	protected void writeNode(TemplateNode rNode) throws IOException {
+
+		if (_bProfile)
+			startRegion(rNode);
+
+		switch (rNode.getKind()) {
+			case TemplateNode.TEXT:      writeText(rNode); break;
+			case TemplateNode.SCRIPTLET: writeScriptlet(rNode); break;
+			case TemplateNode.ASSIGN:    writeAssign(rNode); break;
+			case TemplateNode.DECLARE:   writeDeclare(rNode); break;
+			case TemplateNode.DIRECTIVE: writeDirective(rNode); break;
+			default: throw new IOException("Unexpected " + rNode + " in template: " + _sName);
+		}
+
+		if (_bProfile)
+			endRegion(rNode);
+	}
+
+	/** 
+	 * Starts the region of the node in profile mode, sections in the generate method are preceded by a timer step.  There
+	 * is no step right after code that ends with a jump, the time of the next region then counts for the previous one.
+	**/
+	protected void startRegion(TemplateNode rNode) {
+
+		boolean bHead = (rNode.getKind() == TemplateNode.DECLARE);
+		if (!bHead && !_bJumped)
+			_sbBody.append("    ____pt = ____prof.step(____pr, ____pt); ____pr = " + _rRegions.size() + ";\n");
+
+		_rRegions.add(rNode);
+		_rRegionLines.add(new int[] { getLine(bHead) + 1, 0, bHead ? 1 : 0 });
+	}
+
+	/** Ends the region of the node in profile mode, at the last line written for it (an assign ends before its out.write()). **/
+	protected void endRegion(TemplateNode rNode) {
+
+		boolean bHead = (rNode.getKind() == TemplateNode.DECLARE);
+		_rRegionLines.get(_rRegionLines.size() - 1)[1] = getLine(bHead) - ((rNode.getKind() == TemplateNode.ASSIGN) ? 1 : 0);
+		if (!bHead)
+			_bJumped = (rNode.getKind() == TemplateNode.SCRIPTLET && JUMP_END.matcher(rNode.getText()).find());
+	}
+
+	/** Returns the number of complete lines of the head or body written so far. **/
+	private int getLine(boolean bHead) {
+
+		StringBuilder sb = bHead ? _sbHead : _sbBody;
+		int[] ai = bHead ? _aiHeadLines : _aiBodyLines;
+		for (int i = ai[0]; i < sb.length(); i++) {
+			if (sb.charAt(i) == '\n')
+				ai[1]++;
+		}
+		ai[0] = sb.length();
+		return ai[1];
+	}
+
+	/** Writes static text, one out.write() per constant. **/
+	protected void writeText(TemplateNode rNode) {
+
+		String sText = rNode.getText();
+		int iStart = 0;
+		while (iStart < sText.length()) {
+
+			int iEnd = iStart + MAX_TEXT;
+			if (iEnd >= sText.length()) {
+				iEnd = sText.length();
+			}
+			else {
+				int iNL = sText.lastIndexOf('\n', iEnd - 1);
+				if (iNL > iStart)
+					iEnd = iNL + 1;
+				else if (Character.isHighSurrogate(sText.charAt(iEnd - 1)))
+					iEnd--;
+			}
+
+			_sbBody.append("    out.write(" + getTextConstant(sText.substring(iStart, iEnd)) + ");\n");
+			iStart = iEnd;
+		}
+	}
+
+	/** Returns the java expression of the constant holding the text, from the pool or declared in this class. **/
+	protected String getTextConstant(String sText) {
+
+		String sLiteral = toLiteral(sText);
+		if (_rPool != null)
+			return _rPool.getReference(sLiteral);
+
+		String sRef = _rConsts.get(sLiteral);
+		if (sRef == null) {
+			sRef = "____t" + _rConsts.size();
+			_rConsts.put(sLiteral, sRef);
+		}
+		return sRef;
+	}
+
+	/** Copies the scriptlet code as is. **/
+	protected void writeScriptlet(TemplateNode rNode) {
+
+		_sbBody.append(resolve(rNode.getText()));
+		_sbBody.append("\n");
+	}
+
+	/** Writes the value of the scriptlet assign expression. **/
+	protected void writeAssign(TemplateNode rNode) {
+
+		_sbBody.append("    ____s = "); // scriptlet assign code will assign this string
+		_sbBody.append(resolve(rNode.getText()));
+		_sbBody.append(";\n");
+		if (_sEscape == null) {
+			_sbBody.append("    out.write(____s);\n");
+		}
+		else {
+			_rEscapes.add(_sEscape);
+			_sbBody.append("    ____e_" + _sEscape + ".write(out, ____s);\n");
+		}
+	}
+
+	/** 
+	 * Returns the scriptlet code with every var.get("field") of a predefined scriptlet variable rewritten into 
+	 * var.get(slot, "field"), for the fields the resolver knows.  The code is returned as is without a resolver.
+	**/
+	protected String resolve(String sCode) {
+
+		if (_rResolver == null || sCode.indexOf(".get(") < 0)
+			return sCode;
+
+		Matcher rMatch = FIELD_GET.matcher(sCode);
+		StringBuffer sb = null;
+		while (rMatch.find()) {
+
+			if (!_rVars.contains(rMatch.group(1)))
+				continue;
+			int iSlot = _rResolver.getSlot(rMatch.group(1), rMatch.group(2));
+			if (iSlot < 0)
+				continue;
+
+			if (sb == null)
+				sb = new StringBuffer(sCode.length() + 16);
+			rMatch.appendReplacement(sb, Matcher.quoteReplacement(rMatch.group(1) + ".get(" + iSlot + ", \"" + rMatch.group(2) + "\")"));
+		}
+
+		if (sb == null)
+			return sCode;
+		rMatch.appendTail(sb);
+		return sb.toString();
+	}
+
+	/** Returns the escape mode, null for "none" (or no mode at all). **/
+	protected String getEscape(String sMode) throws IOException {
+
+		if (sMode == null || sMode.equals(TemplateEscaper.NONE))
+			return null;
+		if (!TemplateEscaper.isMode(sMode))
+			throw new IOException("Unknown escape mode \"" + sMode + "\" (one of " + TemplateEscaper.getModes() + " or none) in template: " + _sName);
+		return sMode;
+	}
+
+	/** Writes the code of a directive, "include", "cache expr", "endcache" and "escape mode" are known. **/
+	protected void writeDirective(TemplateNode rNode) throws IOException {
+
+		String sFile = getInclude(rNode);
+		if (sFile != null) {
+			_sbBody.append("    " + _rIncludes.get(sFile) + ".generate(____my, out);\n");
+			return;
+		}
+
+		String sText = rNode.getText().trim();
+		String sDirective = sText.split("\\s+", 2)[0];
+		String sArgs = sText.substring(sDirective.length()).trim();
+
+		if (sDirective.equals("cache")) {
+			if (sArgs.length() == 0)
+				throw new IOException("The cache directive at line " + rNode.getLine() + " has no key expression in template: " + _sName);
+			writeCacheStart(rNode, sArgs);
+		}
+		else if (sDirective.equals("escape")) {
+			if (sArgs.length() == 0)
+				throw new IOException("The escape directive at line " + rNode.getLine() + " has no mode in template: " + _sName);
+			_sEscape = getEscape(sArgs);
+		}
+		else if (sDirective.equals("endcache")) {
+			if (_rOpen.isEmpty())
+				throw new IOException("The endcache directive at line " + rNode.getLine() + " has no cache directive in template: " + _sName);
+			writeCacheEnd(rNode);
+		}
+		else {
+			throw new IOException("Unknown directive \"" + sDirective + "\" at line " + rNode.getLine() + " of template: " + _sName);
+		}
+	}
+
+	/** Starts a cached fragment: writes the cached bytes on a hit, captures the output of the fragment on a miss. **/
+	protected void writeCacheStart(TemplateNode rNode, String sKey) {
+
+		int i = _iFragments++;
+		_rOpen.addFirst(rNode);
+		_rOpenFragments.addFirst(Integer.valueOf(i));
+		if (_sCharset == null)
+			return;
+
+		StringBuilder sb = _sbBody;
+		sb.append("    Object ____k" + i + " = " + resolve(sKey) + ";\n");
+		sb.append("    byte[] ____f" + i + " = ____fc.get(" + i + ", ____k" + i + ");\n");
+		sb.append("    if (____f" + i + " != null) {\n");
+		sb.append("      out.write(____f" + i + ");\n");
+		sb.append("    }\n");
+		sb.append("    else {\n");
+		sb.append("      int ____c" + i + " = out.beginCapture();\n");
+	}
+
+	/** Ends a cached fragment, the captured output is stored. **/
+	protected void writeCacheEnd(TemplateNode rNode) {
+
+		_rOpen.removeFirst();
+		int i = _rOpenFragments.removeFirst().intValue();
+		if (_sCharset == null)
+			return;
+
+		_sbBody.append("      ____fc.put(" + i + ", ____k" + i + ", out.endCapture(____c" + i + "));\n");
+		_sbBody.append("    }\n");
+	}
+
+	/** Copies the scriptlet declare code in front of the class. **/
+	protected void writeDeclare(TemplateNode rNode) {
+
+		_sbHead.append(rNode.getText());
+		_sbHead.append("\n");
+	}
+
+	/** Ends the generate method. **/
+	protected void writeGenerateEnd() {
+
+		if (_bProfile && !_bJumped)
+			_sbBody.append("    ____prof.step(____pr, ____pt);\n");
+		_sbBody.append("  }\n");
+	}
+
+	/** Declares the text constants of this class and ends it, compile time constants are inlined by javac where they are used. **/
+	protected void writeClassEnd() {
+
+		StringBuilder sb = _sbBody;
+		if (_bProfile)
+			writeProfile();
+		if (_rEscapes.size() > 0)
+			sb.append("\n");
+		for (String sMode : _rEscapes)
+			sb.append("  private static final com.munskimii.tengine.TemplateEscaper ____e_" + sMode + " = com.munskimii.tengine.TemplateEscaper.get(\"" + sMode + "\");\n");
+		if (_iFragments > 0 && _sCharset != null) {
+			sb.append("\n");
+			sb.append("  private static final com.munskimii.tengine.FragmentCache ____fc = com.munskimii.tengine.FragmentCache.create(\"" + TemplateCompiler.PACKAGE + "." + _sInterfaceClass + "\");\n");
+		}
+		if (_rConsts.size() > 0)
+			sb.append("\n");
+		for (Map.Entry<String, String> e : _rConsts.entrySet()) {
+			if (_sCharset != null)
+				sb.append("  private static final byte[] " + e.getValue() + " = TemplateOutput.encode(\"" + e.getKey() + "\", ____charset);\n");
+			else
+				sb.append("  private static final String " + e.getValue() + " = \"" + e.getKey() + "\";\n");
+		}
+		sb.append("}\n");
+	}
+
+	/** 
+	 * Declares the TemplateProfile of the class in profile mode, with a descriptor per region: its kind, the template line
+	 * of its code and its column, and its first and last line in the generated class ("scriptlet@12:5>140-142").  The head is complete by now, so the lines of the body
+	 * are known as well.
+	**/
+	protected void writeProfile() {
+
+		int iHeadLines = getLine(true);
+		List<String> rChunks = new ArrayList<String>();
+		StringBuilder sbChunk = new StringBuilder();
+		for (int i = 0; i < _rRegions.size(); i++) {
+
+			int[] ai = _rRegionLines.get(i);
+			int iOffset = (ai[2] == 1) ? 0 : iHeadLines;
+			TemplateNode rNode = _rRegions.get(i);
+			String sRegion = rNode.toString().substring(0, rNode.toString().indexOf('@')) + "@" + rNode.getCodeLine() + ":" + rNode.getColumn() + ">" + (ai[0] + iOffset) + "-" + Math.max(ai[1] + iOffset, ai[0] + iOffset);
+
+			if (sbChunk.length() + sRegion.length() >= MAX_REGIONS) {
+				rChunks.add(sbChunk.toString());
+				sbChunk.setLength(0);
+			}
+			if (sbChunk.length() > 0)
+				sbChunk.append(',');
+			sbChunk.append(sRegion);
+		}
+		rChunks.add(sbChunk.toString());
+
+		StringBuilder sb = _sbBody;
+		sb.append("\n");
+		sb.append("  private static final com.munskimii.tengine.TemplateProfile ____prof = com.munskimii.tengine.TemplateProfile.register(\n");
+		sb.append("    \"" + TemplateCompiler.PACKAGE + "." + _sInterfaceClass + "\", \"" + toLiteral(_sName) + "\", new String[] {\n");
+		for (int i = 0; i < rChunks.size(); i++)
+			sb.append("      \"" + rChunks.get(i) + "\"" + ((i + 1 < rChunks.size()) ? ",\n" : "\n"));
+		sb.append("    });\n");
+	}
+
+	/** Returns the text as the content of a java string literal (without the double-quotes), anything but printable ASCII is escaped. **/
+	public static String toLiteral(String sText) {
+
+		StringBuilder sb = new StringBuilder(sText.length() + 16);
+		for (int i = 0; i < sText.length(); i++) {
+
+			char ch = sText.charAt(i);
+			switch (ch) {
+				case '"':  sb.append("\\\""); continue;
+				case '\\': sb.append("\\\\"); continue;
+				case '\n': sb.append("\\n"); continue;
+				case '\r': sb.append("\\r"); continue;
+				case '\t': sb.append("\\t"); continue;
+			}
+
+			if (ch < 0x20 || ch > 0x7e) {
+				String sHex = Integer.toHexString(ch);
+				sb.append("\\u");
+				for (int j = sHex.length(); j < 4; j++)
+					sb.append('0');
+				sb.append(sHex);
+			}
+			else {
+				sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -30,6 +30,8 @@ public interface TemplateInterface {
 	 * The method that will generate documents is found here (the core function).  The actual implementation is found in generated
 	 * java files though, the generated java files are created from Template.build().
 	 *
+	 * The method may be called by many threads at once, unless the instance keeps state (see Template.isStateless()).
+	 *
 	 * @param java object instances representing the data records the template is to use to build documents
 	 * @param out the output stream the template should use to write the document
 	**/
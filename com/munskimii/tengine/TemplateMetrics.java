@@ -0,0 +1,218 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateMetrics class collects how a template performs: how long it took to compile and load, how long its
+ * documents take to render (a latency histogram), how many bytes they have and how many failed.
+ *
+ * The metrics of all templates are kept in one registry, keyed by template group and name, so they survive a reload of
+ * the template (see Template.reload()).  A template engine queries them with get() and getAll(), or prints report().
+ *
+ * Collecting is off by default, the render path then only checks isEnabled().  While it is on, every compile, load and
+ * render is also emitted as a JFR event (see TemplateEvents), which JFR only records when it is told to.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class TemplateMetrics {
+
+	/** The histogram has 4 buckets per power of two of nanoseconds, the reported latencies are within 19% of the real ones. **/
+	private static final int SUB_BITS = 2;
+	private static final int BUCKETS = 64 << SUB_BITS;
+
+	private static volatile boolean _bEnabled = Boolean.getBoolean("tengine.metrics");
+	private static final Map<String, TemplateMetrics> _rRegistry = new ConcurrentHashMap<String, TemplateMetrics>();
+
+	private String _sGroup;
+	private String _sName;
+	private AtomicLong _rCompileNanos = new AtomicLong();
+	private AtomicLong _rLoadNanos = new AtomicLong();
+	private AtomicLong _rLoads = new AtomicLong();
+	private AtomicLong _rRenders = new AtomicLong();
+	private AtomicLong _rRenderNanos = new AtomicLong();
+	private AtomicLong _rBytes = new AtomicLong();
+	private AtomicLong _rErrors = new AtomicLong();
+	private AtomicLongArray _rHistogram = new AtomicLongArray(BUCKETS);
+
+	private TemplateMetrics(String sGroup, String sName) {
+		_sGroup = sGroup;
+		_sName = sName;
+	}
+
+	/** Returns true if metrics are collected, the "tengine.metrics" system property turns them on at startup. **/
+	public static boolean isEnabled() {
+		return _bEnabled;
+	}
+
+	/** Turns collecting metrics (and emitting their JFR events) on or off. **/
+	public static void setEnabled(boolean bEnabled) {
+		_bEnabled = bEnabled;
+	}
+
+	/** Returns the metrics of the template, they are created on first use. **/
+	public static TemplateMetrics get(String sGroup, String sName) {
+
+		String sKey = sGroup + "/" + sName;
+		TemplateMetrics rMetrics = _rRegistry.get(sKey);
+		if (rMetrics == null) {
+			TemplateMetrics rNew = new TemplateMetrics(sGroup, sName);
+			rMetrics = _rRegistry.putIfAbsent(sKey, rNew);
+			if (rMetrics == null)
+				rMetrics = rNew;
+		}
+		return rMetrics;
+	}
+
+	/** Returns the metrics of every template, sorted by group and name. **/
+	public static List<TemplateMetrics> getAll() {
+
+		TreeMap<String, TemplateMetrics> rSorted = new TreeMap<String, TemplateMetrics>(_rRegistry);
+		return new ArrayList<TemplateMetrics>(rSorted.values());
+	}
+
+	/** Drops all metrics. **/
+	public static void clear() {
+		_rRegistry.clear();
+	}
+
+	/** Returns a table of the templates with rendered documents, the slowest (by total render time) first. **/
+	public static String report() {
+
+		List<TemplateMetrics> rAll = getAll();
+		Collections.sort(rAll, new Comparator<TemplateMetrics>() {
+			public int compare(TemplateMetrics r1, TemplateMetrics r2) {
+				return Long.compare(r2.getRenderNanos(), r1.getRenderNanos());
+			}
+		});
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-30s %9s %9s %9s %9s %9s %11s %7s %9s %9s%n",
+											"template", "documents", "mean us", "p50 us", "p99 us", "max us", "kb", "errors", "compile", "load us"));
+		for (TemplateMetrics r : rAll) {
+
+			if (r.getRenders() == 0)
+				continue;
+			sb.append(String.format("%-30s %9d %9.1f %9.1f %9.1f %9.1f %11d %7d %7dms %9.1f%n",
+											r._sGroup + "/" + r._sName,
+											r.getRenders(),
+											r.getMeanNanos() / 1000.0,
+											r.getPercentile(50) / 1000.0,
+											r.getPercentile(99) / 1000.0,
+											r.getPercentile(100) / 1000.0,
+											r.getBytes() / 1024,
+											r.getErrors(),
+											r.getCompileNanos() / 1000000,
+											(r.getLoads() > 0) ? r.getLoadNanos() / 1000.0 / r.getLoads() : 0.0));
+		}
+		return sb.toString();
+	}
+
+	public String getGroup() {
+		return _sGroup;
+	}
+
+	public String getName() {
+		return _sName;
+	}
+
+	/** Adds the time the template spent in the java compiler (or assembler), for every build of it. **/
+	public void addCompile(long lNanos) {
+		_rCompileNanos.addAndGet(lNanos);
+	}
+
+	/** Adds the time it took to load the template class and create its instance. **/
+	public void addLoad(long lNanos) {
+		_rLoadNanos.addAndGet(lNanos);
+		_rLoads.incrementAndGet();
+	}
+
+	/** Adds a rendered document, its bytes are -1 if they are not known (like for a classic OutputStreamWriter). **/
+	public void addRender(long lNanos, long lBytes, boolean bFailed) {
+
+		_rRenders.incrementAndGet();
+		_rRenderNanos.addAndGet(lNanos);
+		if (lBytes > 0)
+			_rBytes.addAndGet(lBytes);
+		if (bFailed)
+			_rErrors.incrementAndGet();
+		_rHistogram.incrementAndGet(getBucket(lNanos));
+	}
+
+	public long getCompileNanos() {
+		return _rCompileNanos.get();
+	}
+
+	public long getLoadNanos() {
+		return _rLoadNanos.get();
+	}
+
+	public long getLoads() {
+		return _rLoads.get();
+	}
+
+	public long getRenders() {
+		return _rRenders.get();
+	}
+
+	public long getRenderNanos() {
+		return _rRenderNanos.get();
+	}
+
+	public long getBytes() {
+		return _rBytes.get();
+	}
+
+	public long getErrors() {
+		return _rErrors.get();
+	}
+
+	/** Returns the mean render time in nanoseconds. **/
+	public double getMeanNanos() {
+
+		long lRenders = _rRenders.get();
+		return (lRenders == 0) ? 0 : _rRenderNanos.get() / (double) lRenders;
+	}
+
+	/** Returns the render time in nanoseconds the given percent of the documents stay within (the upper bound of its bucket). **/
+	public long getPercentile(double dPercent) {
+
+		long lTotal = 0;
+		long[] alCounts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			lTotal += (alCounts[i] = _rHistogram.get(i));
+		if (lTotal == 0)
+			return 0;
+
+		long lRank = (long) Math.ceil(lTotal * Math.min(dPercent, 100) / 100.0);
+		long lSeen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			lSeen += alCounts[i];
+			if (lSeen >= Math.max(lRank, 1))
+				return getBucketLimit(i);
+		}
+		return getBucketLimit(BUCKETS - 1);
+	}
+
+	/** Returns the histogram bucket of the nanoseconds, the power of two plus the next SUB_BITS bits. **/
+	private static int getBucket(long lNanos) {
+
+		if (lNanos < (1 << SUB_BITS))
+			return (int) Math.max(lNanos, 0);
+		int iPower = 63 - Long.numberOfLeadingZeros(lNanos);
+		int iSub = (int) (lNanos >>> (iPower - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return Math.min(((iPower - SUB_BITS + 1) << SUB_BITS) + iSub, BUCKETS - 1);
+	}
+
+	/** Returns the largest nanoseconds of the bucket. **/
+	private static long getBucketLimit(int iBucket) {
+
+		if (iBucket < (1 << SUB_BITS))
+			return iBucket;
+		int iPower = (iBucket >> SUB_BITS) + SUB_BITS - 1;
+		long lSub = iBucket & ((1 << SUB_BITS) - 1);
+		return ((((1L << SUB_BITS) | lSub) + 1) << (iPower - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,95 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateNode class is one node of the parsed "template text", TemplateParser creates the tree and TemplateGenerator
+ * turns it into the java code base.
+ *
+ * The root node (TEMPLATE) holds the sections of the template in order:
+ *   TEXT      static text, getText() is the text exactly as it is written to the document
+ *   SCRIPTLET the java code of a <% %> section
+ *   ASSIGN    the java expression of a <%= %> section
+ *   DECLARE   the java code of a <%@ %> section, placed in front of the class (import statements)
+ *   DIRECTIVE the text of a <%# %> section, an instruction to the generator like "cache key" (see TemplateParser)
+ *
+ * Every node knows the line and column (both starting at 1) of the template text where it starts, and the line its text
+ * starts at (the next one when a scriptlet starts with a new line, see TemplateParser).
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+
+public class TemplateNode {
+
+	public static final int TEMPLATE = 0;
+	public static final int TEXT = 1;
+	public static final int SCRIPTLET = 2;
+	public static final int ASSIGN = 3;
+	public static final int DECLARE = 4;
+	public static final int DIRECTIVE = 5;
+
+	private int _iKind;
+	private String _sText;
+	private int _iLine;
+	private int _iColumn;
+	private int _iCodeLine;
+	private List<TemplateNode> _rChildren;
+
+	/** Constructor. **/
+	public TemplateNode(int iKind, String sText, int iLine, int iColumn) {
+		this(iKind, sText, iLine, iColumn, iLine);
+	}
+
+	/** Constructor, for a node whose text starts on another line than the node itself. **/
+	public TemplateNode(int iKind, String sText, int iLine, int iColumn, int iCodeLine) {
+		_iKind = iKind;
+		_sText = sText;
+		_iLine = iLine;
+		_iColumn = iColumn;
+		_iCodeLine = iCodeLine;
+	}
+
+	/** Returns the kind of the node, one of the constants above. **/
+	public int getKind() {
+		return _iKind;
+	}
+
+	/** Returns the static text (TEXT) or the java code (all scriptlet kinds), null for the root. **/
+	public String getText() {
+		return _sText;
+	}
+
+	/** Returns the template line the node starts at. **/
+	public int getLine() {
+		return _iLine;
+	}
+
+	/** Returns the template line the first line of getText() comes from. **/
+	public int getCodeLine() {
+		return _iCodeLine;
+	}
+
+	/** Returns the template column the node starts at. **/
+	public int getColumn() {
+		return _iColumn;
+	}
+
+	/** Returns the child nodes in template order, never null. **/
+	public List<TemplateNode> getChildren() {
+		if (_rChildren == null)
+			return Collections.emptyList();
+		return _rChildren;
+	}
+
+	/** Adds a child node. **/
+	public void add(TemplateNode rNode) {
+		if (_rChildren == null)
+			_rChildren = new ArrayList<TemplateNode>();
+		_rChildren.add(rNode);
+	}
+
+	public String toString() {
+		String[] asKind = { "template", "text", "scriptlet", "assign", "declare", "directive" };
+		return asKind[_iKind] + "@" + _iLine + ":" + _iColumn;
+	}
+}
@@ -0,0 +1,132 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateOptions class holds the optional settings of Template.build(), the defaults build the classic template class.
+ *
+ * Author: Michael Monschke
+**/
+
+public class TemplateOptions {
+
+	private TemplatePool _rPool;
+	private String _sCharset;
+	private boolean _bAssemble;
+	private FieldResolver _rResolver;
+	private boolean _bFold;
+	private boolean _bProfile;
+	private boolean _bSplit = true;
+	private String _sEscape;
+
+	/** Constructor. **/
+	public TemplateOptions() {}
+
+	/** Copy constructor. **/
+	public TemplateOptions(TemplateOptions rOptions) {
+		_rPool = rOptions._rPool;
+		_sCharset = rOptions._sCharset;
+		_bAssemble = rOptions._bAssemble;
+		_rResolver = rOptions._rResolver;
+		_bFold = rOptions._bFold;
+		_bProfile = rOptions._bProfile;
+		_bSplit = rOptions._bSplit;
+		_sEscape = rOptions._sEscape;
+	}
+
+	/** Returns the pool holding the static text constants, null keeps the constants in the generated class. **/
+	public TemplatePool getPool() {
+		return _rPool;
+	}
+
+	/** Sets the pool holding the static text constants, it must have been created with the same charset as these options. **/
+	public void setPool(TemplatePool rPool) {
+		_rPool = rPool;
+	}
+
+	/** Returns the output charset, null if the template only implements the classic TemplateInterface. **/
+	public String getCharset() {
+		return _sCharset;
+	}
+
+	/** 
+	 * Sets the output charset.  The generated class then implements ByteTemplateInterface, its static text is encoded 
+	 * in this charset once, and its "out" scriptlet variable is a TemplateOutput.
+	**/
+	public void setCharset(String sCharset) {
+		_sCharset = sCharset;
+	}
+
+	/** 
+	 * Returns true if templates without java code are assembled directly into a class file, see TemplateAssembler.  Never
+	 * in profile mode, the profile lives in the java code.
+	**/
+	public boolean isAssemble() {
+		return _bAssemble && !_bProfile;
+	}
+
+	/** 
+	 * Sets if templates without java code skip the java compiler, TemplateAssembler then emits their class file directly.
+	 * Templates with java code are still built into source code, so this is always safe to turn on.
+	**/
+	public void setAssemble(boolean bAssemble) {
+		_bAssemble = bAssemble;
+	}
+
+	/** Returns the resolver of the fields of the predefined scriptlet variables, null if fields are looked up by name. **/
+	public FieldResolver getResolver() {
+		return _rResolver;
+	}
+
+	/** Sets the resolver, the generated code then reads the fields it knows by slot - see FieldResolver. **/
+	public void setResolver(FieldResolver rResolver) {
+		_rResolver = rResolver;
+	}
+
+	/** Returns true if the parameter lookups with a literal name are evaluated when the template is built, see TemplateFolder. **/
+	public boolean isFold() {
+		return _bFold;
+	}
+
+	/** 
+	 * Sets if parameter lookups are folded into constants.  The template must then be built again whenever one of the
+	 * folded parameters changes, see TemplateUnit.getDependencies().
+	**/
+	public void setFold(boolean bFold) {
+		_bFold = bFold;
+	}
+
+	/** Returns true if the template is built in profile mode, see TemplateProfile. **/
+	public boolean isProfile() {
+		return _bProfile;
+	}
+
+	/** 
+	 * Sets the profile mode, the generated code then times every section of the template and maps its lines back to the
+	 * template.  Scriptlet code must not close the generate method in this mode, the timers are local to it.
+	**/
+	public void setProfile(boolean bProfile) {
+		_bProfile = bProfile;
+	}
+
+	/** Returns true if the generate method of a large template is split into chunks the JIT can compile, see TemplateSplitter. **/
+	public boolean isSplit() {
+		return _bSplit;
+	}
+
+	/** Sets if large generate methods are split, on by default. **/
+	public void setSplit(boolean bSplit) {
+		_bSplit = bSplit;
+	}
+
+	/** Returns the escape mode of the <%= %> values, null if they are written as they are. **/
+	public String getEscape() {
+		return _sEscape;
+	}
+
+	/** 
+	 * Sets the escape mode of the <%= %> values (html, xml, json or csv, see TemplateEscaper), until an escape directive
+	 * of the template sets another one.  Null or "none" writes them as they are.
+	**/
+	public void setEscape(String sEscape) {
+		_sEscape = sEscape;
+	}
+}
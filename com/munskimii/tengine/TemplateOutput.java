@@ -0,0 +1,516 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateOutput class is the "out" scriptlet variable of templates built with an output charset (see TemplateOptions).
+ *
+ * It is a Writer, so scriptlets can keep using out.write("...") as usual, but it encodes straight into a byte buffer.
+ * Static template text is encoded once when the generated class is initialized and copied in with write(byte[]), only the
+ * values written at runtime go through the charset.  Pure ASCII values are copied byte for byte when the charset is ASCII
+ * compatible and keeps no state (UTF-8, ISO-8859-1, windows-1252 and the like), UTF-8 is encoded by hand, any other
+ * charset uses its encoder.  A charset with shift states (like ISO-2022-JP) is brought back to its initial state before
+ * static text is copied in, since the text was encoded on its own, starting and ending in that state.
+ *
+ * The output either drains into an OutputStream whenever the buffer is full, or (without a stream) simply grows, in which
+ * case the document can be taken from the buffer afterwards.  Like any Writer, an instance must not be shared by threads.
+ *
+ * The bytes of a part of the document can be captured (see beginCapture()), the buffer then holds on to them until the
+ * capture ends - that is how cached fragments are stored, see FragmentCache.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TemplateOutput extends Writer {
+
+	/** Charset name to "is ASCII compatible", every charset is only checked once. **/
+	private static final Map<String, Boolean> _rAscii = new ConcurrentHashMap<String, Boolean>();
+
+	/** Charset name to the byte order mark its encoder writes first (empty for most charsets), see getMark(). **/
+	private static final Map<String, byte[]> _rMarks = new ConcurrentHashMap<String, byte[]>();
+
+	private OutputStream _rOut;
+	private Charset _rCharset;
+	private boolean _bUtf8;
+	private boolean _bFast;
+	private boolean _bCapture;
+	private boolean _bShift;
+	private CharsetEncoder _rEncoder;
+	private byte[] _abMark;
+	private boolean _bMarked;
+	private byte[] _abBuf;
+	private int _iPos;
+	private long _lDrained;
+	private char _cHigh;
+	private int _iCaptures;
+
+	/** Constructor. The output is kept in a growing buffer. **/
+	public TemplateOutput(Charset rCharset) {
+		this(null, rCharset, 8192);
+	}
+
+	/** Constructor. The output drains into the stream whenever the buffer is full, and on flush(). **/
+	public TemplateOutput(OutputStream rOut, Charset rCharset) {
+		this(rOut, rCharset, 8192);
+	}
+
+	/** Constructor. The stream may be null, the output is then kept in a buffer starting at the given size. **/
+	public TemplateOutput(OutputStream rOut, Charset rCharset, int iSize) {
+
+		_rOut = rOut;
+		_rCharset = rCharset;
+		_bUtf8 = rCharset.name().equals("UTF-8");
+		_abMark = getMark(rCharset);
+
+		// bytes written in the middle of a document are the same no matter what was written before
+		_bCapture = _bUtf8 || (isAsciiCompatible(rCharset) && _abMark.length == 0 && rCharset.newEncoder().maxBytesPerChar() == 1);
+
+		// ASCII may only skip the encoder where the encoder keeps no state
+		_bFast = _bCapture;
+		_abBuf = new byte[Math.max(iSize, 16)];
+	}
+
+	/** 
+	 * Encodes static template text, generated classes call this once per text constant when they are initialized.
+	 * The text is a piece of a document, so a byte order mark (UTF-16) is left out, the output writes it once per document.
+	**/
+	public static byte[] encode(String sText, String sCharset) {
+
+		Charset rCharset = Charset.forName(sCharset);
+		byte[] ab = sText.getBytes(rCharset);
+		int iMark = getMark(rCharset).length;
+		if (iMark > 0 && ab.length >= iMark)
+			ab = Arrays.copyOfRange(ab, iMark, ab.length);
+		return ab;
+	}
+
+	/** Returns the byte order mark the charset's encoder writes in front of the first char, every charset is only checked once. **/
+	private static byte[] getMark(Charset rCharset) {
+
+		byte[] ab = _rMarks.get(rCharset.name());
+		if (ab == null) {
+
+			// whatever one char takes more than its share of two chars is the mark
+			byte[] ab1 = "a".getBytes(rCharset);
+			byte[] ab2 = "aa".getBytes(rCharset);
+			int iMark = 2 * ab1.length - ab2.length;
+			ab = (iMark > 0) ? Arrays.copyOf(ab1, iMark) : new byte[0];
+			_rMarks.put(rCharset.name(), ab);
+		}
+		return ab;
+	}
+
+	/** Returns true if the charset encodes every char below 128 as that very byte. **/
+	private static boolean isAsciiCompatible(Charset rCharset) {
+
+		Boolean b = _rAscii.get(rCharset.name());
+		if (b == null) {
+
+			char[] ac = new char[128];
+			for (int i = 0; i < ac.length; i++)
+				ac[i] = (char) i;
+
+			byte[] ab = new String(ac).getBytes(rCharset);
+			boolean bAscii = (ab.length == ac.length);
+			for (int i = 0; bAscii && i < ab.length; i++)
+				bAscii = (ab[i] == i);
+
+			b = Boolean.valueOf(bAscii);
+			_rAscii.put(rCharset.name(), b);
+		}
+		return b.booleanValue();
+	}
+
+	/** Returns the charset the output is encoded in. **/
+	public Charset getCharset() {
+		return _rCharset;
+	}
+
+	/** Writes bytes that are already encoded in the output charset, like the static text of a template. **/
+	public void write(byte[] ab) throws IOException {
+		write(ab, 0, ab.length);
+	}
+
+	/** Writes bytes that are already encoded in the output charset. **/
+	public void write(byte[] ab, int iOff, int iLen) throws IOException {
+
+		flushHigh();
+		if (_bShift)
+			unshift();
+		if (!_bMarked && iLen > 0)
+			mark();
+		if (_abBuf.length - _iPos < iLen) {
+
+			// large blocks go straight to the stream instead of through the buffer
+			if (_rOut != null && _iCaptures == 0 && iLen >= _abBuf.length) {
+				drain();
+				_rOut.write(ab, iOff, iLen);
+				_lDrained += iLen;
+				return;
+			}
+			makeRoom(iLen);
+		}
+		System.arraycopy(ab, iOff, _abBuf, _iPos, iLen);
+		_iPos += iLen;
+	}
+
+	public void write(String s) throws IOException {
+		write(s, 0, s.length());
+	}
+
+	public void write(String s, int iOff, int iLen) throws IOException {
+		encode(s, iOff, iOff + iLen);
+	}
+
+	public void write(char[] ac, int iOff, int iLen) throws IOException {
+		encode(CharBuffer.wrap(ac), iOff, iOff + iLen);
+	}
+
+	public void write(int c) throws IOException {
+
+		if (c < 0x80 && _bFast && _cHigh == 0) {
+			if (_iPos == _abBuf.length)
+				makeRoom(1);
+			_abBuf[_iPos++] = (byte) c;
+			return;
+		}
+		encode(String.valueOf((char) c), 0, 1);
+	}
+
+	/** Encodes the chars, the ASCII run is copied directly and the rest goes through the charset. **/
+	private void encode(CharSequence cs, int iStart, int iEnd) throws IOException {
+
+		int i = iStart;
+
+		// a high surrogate left over from the previous write pairs up with the first char of this one
+		if (_cHigh != 0 && i < iEnd) {
+
+			if (Character.isLowSurrogate(cs.charAt(i))) {
+				char[] ac = { _cHigh, cs.charAt(i) };
+				_cHigh = 0;
+				encodeSlow(CharBuffer.wrap(ac), 0, 2);
+				i++;
+			}
+			else {
+				flushHigh();
+			}
+		}
+
+		while (i < iEnd) {
+
+			if (_bFast) {
+
+				if (_iPos == _abBuf.length)
+					makeRoom(1);
+
+				byte[] ab = _abBuf;
+				int iPos = _iPos;
+				int iStop = Math.min(iEnd, i + (ab.length - iPos));
+				for (; i < iStop; i++) {
+					char c = cs.charAt(i);
+					if (c >= 0x80)
+						break;
+					ab[iPos++] = (byte) c;
+				}
+				_iPos = iPos;
+
+				if (i == iEnd || i == iStop && cs.charAt(i) < 0x80)
+					continue;
+			}
+
+			i = encodeSlow(cs, i, iEnd);
+		}
+	}
+
+	/** Encodes at least one char from position i on (up to the next ASCII char if the fast path applies), returns the new position. **/
+	private int encodeSlow(CharSequence cs, int i, int iEnd) throws IOException {
+
+		if (_bUtf8) {
+
+			for (; i < iEnd; i++) {
+
+				char c = cs.charAt(i);
+				if (c < 0x80) {
+					if (_bFast)
+						return i;
+					if (_iPos == _abBuf.length)
+						makeRoom(1);
+					_abBuf[_iPos++] = (byte) c;
+					continue;
+				}
+
+				if (_abBuf.length - _iPos < 4)
+					makeRoom(4);
+
+				if (c < 0x800) {
+					_abBuf[_iPos++] = (byte) (0xc0 | (c >> 6));
+					_abBuf[_iPos++] = (byte) (0x80 | (c & 0x3f));
+				}
+				else if (Character.isHighSurrogate(c)) {
+
+					if (i + 1 == iEnd) {
+						_cHigh = c;
+						continue;
+					}
+
+					char c2 = cs.charAt(i + 1);
+					if (!Character.isLowSurrogate(c2)) {
+						_abBuf[_iPos++] = (byte) '?';
+						continue;
+					}
+
+					int cp = Character.toCodePoint(c, c2);
+					_abBuf[_iPos++] = (byte) (0xf0 | (cp >> 18));
+					_abBuf[_iPos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					_abBuf[_iPos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					_abBuf[_iPos++] = (byte) (0x80 | (cp & 0x3f));
+					i++;
+				}
+				else if (Character.isLowSurrogate(c)) {
+					_abBuf[_iPos++] = (byte) '?';
+				}
+				else {
+					_abBuf[_iPos++] = (byte) (0xe0 | (c >> 12));
+					_abBuf[_iPos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					_abBuf[_iPos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return i;
+		}
+
+		// any other charset, a trailing high surrogate is held back until the next write
+		int iStop = iEnd;
+		if (Character.isHighSurrogate(cs.charAt(iStop - 1))) {
+			_cHigh = cs.charAt(--iStop);
+			if (i == iStop)
+				return iEnd;
+		}
+
+		// the encoder keeps its state for the whole document (a byte order mark is only written once), see finish()
+		CharsetEncoder rEncoder = getEncoder();
+		CharBuffer rIn = CharBuffer.wrap(cs, i, iStop);
+		_bMarked = true;
+		_bShift = (_abMark.length == 0);
+		while (true) {
+			ByteBuffer rBytes = ByteBuffer.wrap(_abBuf, _iPos, _abBuf.length - _iPos);
+			CoderResult r = rEncoder.encode(rIn, rBytes, false);
+			_iPos = rBytes.position();
+			if (!r.isOverflow())
+				break;
+			makeRoom(Math.max(16, (int) (rIn.remaining() * rEncoder.maxBytesPerChar())));
+		}
+		return iEnd;
+	}
+
+	private CharsetEncoder getEncoder() {
+
+		if (_rEncoder == null) {
+			_rEncoder = _rCharset.newEncoder()
+										.onMalformedInput(CodingErrorAction.REPLACE)
+										.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		return _rEncoder;
+	}
+
+	/** 
+	 * Writes the byte order mark (if the charset has one) in front of the first pre-encoded bytes of the document.  The
+	 * encoder then encodes one char into a scratch buffer, so it is past its own mark as well.
+	**/
+	private void mark() throws IOException {
+
+		_bMarked = true;
+		if (_abMark.length > 0) {
+			getEncoder().encode(CharBuffer.wrap("a"), ByteBuffer.allocate(16), false);
+			write(_abMark, 0, _abMark.length);
+		}
+	}
+
+	/** A high surrogate that never got its low surrogate is written as replacement before anything else. **/
+	private void flushHigh() throws IOException {
+
+		if (_cHigh != 0) {
+			_cHigh = 0;
+			if (_iPos == _abBuf.length)
+				makeRoom(1);
+			_abBuf[_iPos++] = (byte) '?';
+		}
+	}
+
+	/** 
+	 * Makes room for at least iLen more bytes, by draining into the stream first (unless bytes are captured) and by growing
+	 * the buffer if that is not enough.
+	**/
+	private void makeRoom(int iLen) throws IOException {
+
+		if (_rOut != null && _iCaptures == 0)
+			drain();
+		if (_abBuf.length - _iPos < iLen)
+			_abBuf = Arrays.copyOf(_abBuf, Math.max(_abBuf.length * 2, _iPos + iLen));
+	}
+
+	/** Writes the buffered bytes to the stream. **/
+	private void drain() throws IOException {
+
+		if (_iPos > 0) {
+			_rOut.write(_abBuf, 0, _iPos);
+			_lDrained += _iPos;
+			_iPos = 0;
+		}
+	}
+
+	/** Drains the buffer into the stream and flushes the stream, without a stream the output stays in the buffer. **/
+	public void flush() throws IOException {
+
+		if (_rOut != null) {
+			flushHigh();
+			drain();
+			_rOut.flush();
+		}
+	}
+
+	/** Ends the document, a stateful charset (like ISO-2022-JP) writes its closing sequence, the encoder starts over after this. **/
+	public void finish() throws IOException {
+
+		flushHigh();
+		if (_rEncoder != null)
+			unshift();
+		_bMarked = false;
+	}
+
+	/** 
+	 * Writes the sequence that brings the encoder back to its initial state (ISO-2022-JP: back to ASCII) and resets it.
+	 * Also called in the middle of a document before pre-encoded bytes, unless the charset has a byte order mark - the
+	 * encoder would then write the mark again.
+	**/
+	private void unshift() throws IOException {
+
+		_bShift = false;
+		CharBuffer rIn = CharBuffer.allocate(0);
+		_rEncoder.encode(rIn, ByteBuffer.wrap(_abBuf, _iPos, 0), true);
+		while (true) {
+			ByteBuffer rBytes = ByteBuffer.wrap(_abBuf, _iPos, _abBuf.length - _iPos);
+			CoderResult r = _rEncoder.flush(rBytes);
+			_iPos = rBytes.position();
+			if (!r.isOverflow())
+				break;
+			makeRoom(16);
+		}
+		_rEncoder.reset();
+	}
+
+	/** Finishes the document, flushes and closes the stream. **/
+	public void close() throws IOException {
+
+		finish();
+		if (_rOut != null) {
+			flush();
+			_rOut.close();
+		}
+	}
+
+	/** Returns the number of bytes held in the buffer. **/
+	public int size() {
+		return _iPos;
+	}
+
+	/** Returns the number of bytes written since the output was created or reset, the drained ones included. **/
+	public long getCount() {
+		return _lDrained + _iPos;
+	}
+
+	/** 
+	 * Starts capturing the bytes written from now on, returns the mark to pass to endCapture(), or -1 if the charset keeps
+	 * state between chars (only UTF-8 and single byte ASCII compatible charsets are captured).  Captures may be nested.
+	**/
+	public int beginCapture() throws IOException {
+
+		if (!_bCapture)
+			return -1;
+		flushHigh();
+		_iCaptures++;
+		return _iPos;
+	}
+
+	/** Ends the capture started at the mark and returns a copy of the bytes written since, null for the mark -1. **/
+	public byte[] endCapture(int iMark) throws IOException {
+
+		if (iMark < 0)
+			return null;
+		flushHigh();
+		_iCaptures--;
+		return Arrays.copyOfRange(_abBuf, iMark, _iPos);
+	}
+
+	/** Drops the buffered bytes, the buffer itself is kept for the next document. **/
+	public void reset() {
+		_iPos = 0;
+		_lDrained = 0;
+		_iCaptures = 0;
+		_cHigh = 0;
+		_bMarked = false;
+		_bShift = false;
+		if (_rEncoder != null)
+			_rEncoder.reset();
+	}
+
+	/** Returns the buffered bytes without copying them, the buffer is only valid until the output is written to again. **/
+	public ByteBuffer getBuffer() {
+		flushHighQuietly();
+		return ByteBuffer.wrap(_abBuf, 0, _iPos);
+	}
+
+	/** Grows the buffer to hold at least iSize bytes, so a document of that size is rendered without growing it again. **/
+	public void ensureCapacity(int iSize) {
+		if (_abBuf.length < iSize)
+			_abBuf = Arrays.copyOf(_abBuf, iSize);
+	}
+
+	/** Returns the capacity of the buffer, a pool can drop outputs that grew too large (see DocumentSink). **/
+	public int capacity() {
+		return _abBuf.length;
+	}
+
+	/** Returns a copy of the buffered bytes. **/
+	public byte[] toByteArray() {
+		flushHighQuietly();
+		return Arrays.copyOf(_abBuf, _iPos);
+	}
+
+	/** Writes the buffered output, decoded again, to a Writer. **/
+	public void writeTo(Writer rOut) throws IOException {
+		finish();
+		rOut.write(toString());
+	}
+
+	/** Returns the buffered output decoded as a string. **/
+	public String toString() {
+		flushHighQuietly();
+		return new String(_abBuf, 0, _iPos, _rCharset);
+	}
+
+	private void flushHighQuietly() {
+		try {
+			flushHigh();
+		} catch (IOException x) { throw new IllegalStateException(x); }
+	}
+
+	/** Returns an OutputStream writing raw bytes into this output, for code that has to produce the bytes itself. **/
+	public OutputStream getStream() {
+
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				TemplateOutput.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+			public void write(byte[] ab, int iOff, int iLen) throws IOException {
+				TemplateOutput.this.write(ab, iOff, iLen);
+			}
+			public void flush() throws IOException {
+				TemplateOutput.this.flush();
+			}
+		};
+	}
+}
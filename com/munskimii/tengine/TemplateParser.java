@@ -0,0 +1,313 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateParser class turns the "template text" into a tree of TemplateNodes in a single pass.
+ *
+ * The syntax is the one Template.build() has always understood:
+ *   <% code %>     scriptlet, the character right after "<%" is expected to be white space and is dropped
+ *   <%= expr %>    scriptlet assign, the value of the expression is written to the document
+ *   <%@ code %>    scriptlet declare, the code goes in front of the generated class (import statements)
+ *   <%# include "file" %>
+ *                  writes the document of another template file here, with the same record.  The file is built once
+ *                  into a class of its own that every template including it calls (see TemplateGenerator)
+ *   <%# cache expr %> ... <%# endcache %>
+ *                  cached fragment, the output in between is rendered once per value of the key expression and then
+ *                  replayed from the FragmentCache of the template (templates with an output charset only, the others
+ *                  render it every time).  Variables declared within a fragment are local to it.
+ *   <%# escape html %>
+ *                  the <%= %> values from here on are escaped for html (or xml, json, csv), "none" writes them as they
+ *                  are again.  The default comes from the build options, see TemplateEscaper
+ *   <<             outside of a scriptlet, this is written as a single "<"
+ *
+ * Carriage returns are dropped everywhere.  A new line in static text is written as the new line of the template context
+ * (see TContext.getNLEsc()), and a backslash in static text starts an escape sequence just like in a java string literal.
+ * Within a scriptlet, a "%" always takes the character after it along, so "%%>" does not end the scriptlet.
+ *
+ * The whole template is read through a buffer first, the scan itself only creates the node texts.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+
+public class TemplateParser {
+
+	private String _sName;
+	private String _sNLEsc;
+	private String _sNL;
+	private char[] _ac;
+	private int _iLen;
+	private int _iPos;
+	private int _iLine = 1;
+	private int _iColumn = 1;
+	private StringBuilder _sb = new StringBuilder(1024);
+
+	private TemplateParser(TContext rCtx, String sName, char[] ac, int iLen) {
+		_sName = sName;
+		_sNLEsc = rCtx.getNLEsc();
+		_sNL = unescape(_sNLEsc);
+		_ac = ac;
+		_iLen = iLen;
+	}
+
+	/**
+	 * Parses the "template text".
+	 *
+	 * @param rCtx the template engine framework
+	 * @param sName the name of the template, used in error messages
+	 * @param rIn the reader that contains the "template text", it is read to the end but not closed
+	 * @return the root node of the template
+	**/
+	public static TemplateNode parse(TContext rCtx, String sName, Reader rIn) throws IOException {
+
+		char[] ac = new char[8192];
+		int iLen = 0;
+		int n = 0;
+		while ((n = rIn.read(ac, iLen, ac.length - iLen)) != -1) {
+			iLen += n;
+			if (iLen == ac.length) {
+				char[] ac2 = new char[ac.length * 2];
+				System.arraycopy(ac, 0, ac2, 0, iLen);
+				ac = ac2;
+			}
+		}
+		return new TemplateParser(rCtx, sName, ac, iLen).parse();
+	}
+
+	/** Scans the template, collecting static text until the next "<%". **/
+	private TemplateNode parse() throws IOException {
+
+		TemplateNode rRoot = new TemplateNode(TemplateNode.TEMPLATE, null, 1, 1);
+		char[] ac = _ac;
+
+		int iStart = _iPos;
+		int iLine = _iLine;
+		int iColumn = _iColumn;
+
+		while (_iPos < _iLen) {
+
+			char ch = ac[_iPos];
+			if (ch == '<' && _iPos + 1 < _iLen) {
+
+				char ch2 = ac[_iPos + 1];
+				if (ch2 == '%') {
+
+					addText(rRoot, iStart, _iPos, iLine, iColumn);
+					rRoot.add(readScriptlet());
+
+					iStart = _iPos;
+					iLine = _iLine;
+					iColumn = _iColumn;
+					continue;
+				}
+
+				// the escape, skip the second "<" (the text is put together in addText())
+				if (ch2 == '<') {
+					_iPos += 2;
+					_iColumn += 2;
+					continue;
+				}
+			}
+			advance(ch);
+		}
+
+		addText(rRoot, iStart, _iPos, iLine, iColumn);
+		return rRoot;
+	}
+
+	/** Moves past a character, keeping track of line and column (carriage returns take no column). **/
+	private void advance(char ch) {
+
+		_iPos++;
+		if (ch == '\n') {
+			_iLine++;
+			_iColumn = 1;
+		}
+		else if (ch != '\r') {
+			_iColumn++;
+		}
+	}
+
+	/** Adds a text node for the static text between the two positions, if there is any. **/
+	private void addText(TemplateNode rRoot, int iStart, int iEnd, int iLine, int iColumn) {
+
+		if (iStart == iEnd)
+			return;
+
+		char[] ac = _ac;
+		StringBuilder sb = _sb;
+		sb.setLength(0);
+
+		boolean bEscapes = false;
+		for (int i = iStart; i < iEnd; i++) {
+
+			char ch = ac[i];
+			if (ch == '\r')
+				continue;
+
+			if (ch == '<' && i + 1 < iEnd && ac[i + 1] == '<')
+				i++;
+			else if (ch == '\\')
+				bEscapes = true;
+
+			sb.append(ch);
+		}
+
+		if (sb.length() == 0)
+			return;
+
+		String sText = null;
+		if (!bEscapes) {
+
+			// the usual case, only the new lines need replacing
+			if (_sNL.equals("\n")) {
+				sText = sb.toString();
+			}
+			else {
+				sText = sb.toString().replace("\n", _sNL);
+			}
+		}
+		else {
+
+			// the text used to be pasted into a java string literal as is, so backslash escapes (even one swallowing
+			// the escaped new line right after it) keep working the way they always did
+			StringBuilder sbLiteral = new StringBuilder(sb.length() + 16);
+			for (int i = 0; i < sb.length(); i++) {
+				char ch = sb.charAt(i);
+				if (ch == '\n')
+					sbLiteral.append(_sNLEsc);
+				else if (ch == '"')
+					sbLiteral.append("\\\"");
+				else
+					sbLiteral.append(ch);
+			}
+			sText = unescape(sbLiteral.toString());
+		}
+
+		rRoot.add(new TemplateNode(TemplateNode.TEXT, sText, iLine, iColumn));
+	}
+
+	/** Reads a scriptlet section starting at "<%", up to and including the closing "%>". **/
+	private TemplateNode readScriptlet() throws IOException {
+
+		int iLine = _iLine;
+		int iColumn = _iColumn;
+		_iPos += 2;
+		_iColumn += 2;
+
+		int iKind = TemplateNode.SCRIPTLET;
+		if (_iPos < _iLen) {
+
+			char ch3 = _ac[_iPos];
+			if (ch3 == '=')
+				iKind = TemplateNode.ASSIGN;
+			else if (ch3 == '@')
+				iKind = TemplateNode.DECLARE;
+			else if (ch3 == '#')
+				iKind = TemplateNode.DIRECTIVE;
+
+			// the "=", "@" or "#" is dropped, and so is the white space character following a plain "<%"
+			advance(ch3);
+		}
+		int iCodeLine = _iLine;
+
+		char[] ac = _ac;
+		StringBuilder sb = _sb;
+		sb.setLength(0);
+
+		while (_iPos < _iLen) {
+
+			char ch = ac[_iPos];
+			if (ch == '%' && _iPos + 1 < _iLen) {
+
+				char ch2 = ac[_iPos + 1];
+				if (ch2 == '>') {
+					_iPos += 2;
+					_iColumn += 2;
+					return new TemplateNode(iKind, sb.toString(), iLine, iColumn, iCodeLine);
+				}
+
+				sb.append(ch);
+				advance(ch);
+				ch = ch2;
+			}
+
+			if (ch != '\r')
+				sb.append(ch);
+			advance(ch);
+		}
+
+		throw new IOException("Hit end of file within scriptlet (started at line " + iLine + ", column " + iColumn + ") for template: " + _sName);
+	}
+
+	/**
+	 * Resolves the escape sequences of a java string literal (without the double-quotes).  A backslash that does not
+	 * start a valid escape sequence is kept as it is.
+	**/
+	public static String unescape(String s) {
+
+		if (s.indexOf('\\') < 0)
+			return s;
+
+		StringBuilder sb = new StringBuilder(s.length());
+		int iLen = s.length();
+		for (int i = 0; i < iLen; i++) {
+
+			char ch = s.charAt(i);
+			if (ch != '\\' || i + 1 == iLen) {
+				sb.append(ch);
+				continue;
+			}
+
+			char ch2 = s.charAt(i + 1);
+			switch (ch2) {
+				case 'b':  sb.append('\b'); i++; continue;
+				case 't':  sb.append('\t'); i++; continue;
+				case 'n':  sb.append('\n'); i++; continue;
+				case 'f':  sb.append('\f'); i++; continue;
+				case 'r':  sb.append('\r'); i++; continue;
+				case 's':  sb.append(' '); i++; continue;
+				case '"':  sb.append('"'); i++; continue;
+				case '\'': sb.append('\''); i++; continue;
+				case '\\': sb.append('\\'); i++; continue;
+			}
+
+			// octal escape, up to three digits (the first one no higher than 3 for three digits)
+			if (ch2 >= '0' && ch2 <= '7') {
+
+				int iEnd = i + 2;
+				int iMax = (ch2 <= '3') ? i + 4 : i + 3;
+				while (iEnd < iMax && iEnd < iLen && s.charAt(iEnd) >= '0' && s.charAt(iEnd) <= '7')
+					iEnd++;
+				sb.append((char) Integer.parseInt(s.substring(i + 1, iEnd), 8));
+				i = iEnd - 1;
+				continue;
+			}
+
+			// unicode escape, any number of "u" followed by four hex digits
+			if (ch2 == 'u') {
+
+				int j = i + 1;
+				while (j < iLen && s.charAt(j) == 'u')
+					j++;
+				if (j + 4 <= iLen && isHex(s, j, j + 4)) {
+					sb.append((char) Integer.parseInt(s.substring(j, j + 4), 16));
+					i = j + 3;
+					continue;
+				}
+			}
+
+			sb.append(ch);
+		}
+		return sb.toString();
+	}
+
+	private static boolean isHex(String s, int iStart, int iEnd) {
+
+		for (int i = iStart; i < iEnd; i++) {
+			if (Character.digit(s.charAt(i), 16) < 0)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,108 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplatePool class collects the static text constants of a group of templates, so identical text is held only once.
+ *
+ * Template.build() asks the pool for a reference to each piece of static text, the pool hands back a field of one of
+ * its holder classes.  Once all templates of the group are built, the holder classes (see getClassNames() and getSource())
+ * must be compiled before or together with the templates.
+ *
+ * The holder fields are assigned in a static block on purpose.  A "static final" field with a literal initializer is a
+ * compile time constant, javac would copy the text into the constant pool of every class using it and nothing would be shared.
+ *
+ * The pool can be used by several threads building templates of the same group at the same time.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.nio.charset.*;
+import java.util.*;
+
+public class TemplatePool {
+
+	/** Most constants per holder class, keeps the static block far below the 64k method limit. **/
+	public static final int CLASS_SIZE = 2000;
+
+	private String _sClassPrefix;
+	private String _sCharset;
+	private Map<String, String> _rRefs = new HashMap<String, String>();
+	private List<String> _rLiterals = new ArrayList<String>();
+
+	/** Constructor. The holder classes are named by the prefix followed by a number - does not contain package name. **/
+	public TemplatePool(String sClassPrefix) {
+		this(sClassPrefix, null);
+	}
+
+	/** Constructor. With a charset, the constants are byte arrays encoded once in that charset (see TemplateOptions). **/
+	public TemplatePool(String sClassPrefix, String sCharset) {
+		_sClassPrefix = sClassPrefix;
+		_sCharset = (sCharset != null) ? Charset.forName(sCharset).name() : null;
+	}
+
+	/** Returns the charset of the constants, null if they are strings. **/
+	public String getCharset() {
+		return _sCharset;
+	}
+
+	/**
+	 * Returns the java expression referencing the constant for the given text, the constant is added if it is new.
+	 *
+	 * @param sLiteral the text as it appears between the double-quotes of a java string literal (already escaped)
+	**/
+	public synchronized String getReference(String sLiteral) {
+
+		String sRef = _rRefs.get(sLiteral);
+		if (sRef == null) {
+
+			int i = _rLiterals.size();
+			sRef = _sClassPrefix + (i / CLASS_SIZE) + ".T" + i;
+			_rLiterals.add(sLiteral);
+			_rRefs.put(sLiteral, sRef);
+		}
+		return sRef;
+	}
+
+	/** Returns the number of distinct constants in the pool. **/
+	public synchronized int size() {
+		return _rLiterals.size();
+	}
+
+	/** Returns the names of the holder classes - does not contain package name. **/
+	public synchronized List<String> getClassNames() {
+
+		List<String> rNames = new ArrayList<String>();
+		for (int i = 0; i * CLASS_SIZE < _rLiterals.size(); i++)
+			rNames.add(_sClassPrefix + i);
+		return rNames;
+	}
+
+	/** Returns the java code of a holder class, this code must be compiled like the templates themselves. **/
+	public synchronized String getSource(String sClass) {
+
+		int iClass = Integer.parseInt(sClass.substring(_sClassPrefix.length()));
+		int iEnd = Math.min(_rLiterals.size(), (iClass + 1) * CLASS_SIZE);
+
+		StringBuilder sb = new StringBuilder(4096);
+		sb.append("package " + TemplateCompiler.PACKAGE + ";\n");
+		sb.append("\n");
+		sb.append("public final class " + sClass + " {\n");
+		sb.append("\n");
+		for (int i = iClass * CLASS_SIZE; i < iEnd; i++)
+			sb.append("  public static final " + ((_sCharset != null) ? "byte[]" : "String") + " T" + i + ";\n");
+
+		sb.append("\n");
+		sb.append("  static {\n");
+		for (int i = iClass * CLASS_SIZE; i < iEnd; i++) {
+			if (_sCharset != null)
+				sb.append("    T" + i + " = com.munskimii.tengine.TemplateOutput.encode(\"" + _rLiterals.get(i) + "\", \"" + _sCharset + "\");\n");
+			else
+				sb.append("    T" + i + " = \"" + _rLiterals.get(i) + "\";\n");
+		}
+		sb.append("  }\n");
+
+		sb.append("\n");
+		sb.append("  private " + sClass + "() {}\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,312 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateProfile class holds the scriptlet timers and the line map of a template built in profile mode (see
+ * TemplateOptions.setProfile()).
+ *
+ * Every section of the template (static text, <% %> and <%= %>) is a region.  The generated code takes the time at the
+ * start of every region, and step() adds the time since the previous start to the previous region - so the time of a
+ * region is the time spent in its own code, including the loop and branch code it closes or opens.
+ *
+ * The profile also maps the lines of the generated class back to the lines of the template.  Exceptions thrown by a
+ * profiled template are translated by Template before they reach the caller, the frames of the generated class then
+ * name the template and its line.  A profiler's samples can be translated the same way with translate() or
+ * getTemplateLine().
+ *
+ * The profile is created by the static initializer of the generated class, it is kept in one registry keyed by the
+ * class name, and report() lists the hottest regions of all templates.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class TemplateProfile {
+
+	private static final Map<String, TemplateProfile> _rRegistry = new ConcurrentHashMap<String, TemplateProfile>();
+
+	private String _sClass;
+	private String _sName;
+	private String[] _asRegions;
+	private String[] _asKind;
+	private int[] _aiLine;
+	private int[] _aiColumn;
+	private int[] _aiFirst;
+	private int[] _aiLast;
+
+	/** The regions sorted by their first generated line, for the line map. **/
+	private int[] _aiByLine;
+
+	private AtomicLongArray _rNanos;
+	private AtomicLongArray _rCounts;
+
+	private TemplateProfile(String sClass, String sName, String[] asRegions) {
+
+		_sClass = sClass;
+		_sName = sName;
+		_asRegions = asRegions;
+
+		int n = asRegions.length;
+		_asKind = new String[n];
+		_aiLine = new int[n];
+		_aiColumn = new int[n];
+		_aiFirst = new int[n];
+		_aiLast = new int[n];
+		_rNanos = new AtomicLongArray(n);
+		_rCounts = new AtomicLongArray(n);
+
+		// "kind@line:column>first-last", see TemplateGenerator.writeProfile()
+		Integer[] aiOrder = new Integer[n];
+		for (int i = 0; i < n; i++) {
+
+			String s = asRegions[i];
+			int iAt = s.indexOf('@');
+			int iColon = s.indexOf(':', iAt);
+			int iGt = s.indexOf('>', iColon);
+			int iDash = s.indexOf('-', iGt);
+			_asKind[i] = s.substring(0, iAt);
+			_aiLine[i] = Integer.parseInt(s.substring(iAt + 1, iColon));
+			_aiColumn[i] = Integer.parseInt(s.substring(iColon + 1, iGt));
+			_aiFirst[i] = Integer.parseInt(s.substring(iGt + 1, iDash));
+			_aiLast[i] = Integer.parseInt(s.substring(iDash + 1));
+			aiOrder[i] = Integer.valueOf(i);
+		}
+
+		Arrays.sort(aiOrder, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return Integer.compare(_aiFirst[i1.intValue()], _aiFirst[i2.intValue()]);
+			}
+		});
+		_aiByLine = new int[n];
+		for (int i = 0; i < n; i++)
+			_aiByLine[i] = aiOrder[i].intValue();
+	}
+
+	/**
+	 * Returns the profile of the generated class, called by its static initializer.  The regions are given in chunks of
+	 * comma separated descriptors, so a large template does not hit the limits of a class file constant.  A class loaded
+	 * again with the same regions (a reload) keeps counting in the same profile.
+	**/
+	public static TemplateProfile register(String sClass, String sName, String[] asChunks) {
+
+		List<String> rRegions = new ArrayList<String>();
+		for (String sChunk : asChunks) {
+			if (sChunk.length() > 0)
+				rRegions.addAll(Arrays.asList(sChunk.split(",")));
+		}
+		String[] asRegions = rRegions.toArray(new String[rRegions.size()]);
+
+		synchronized (_rRegistry) {
+			TemplateProfile rProfile = _rRegistry.get(sClass);
+			if (rProfile == null || !rProfile._sName.equals(sName) || !Arrays.equals(rProfile._asRegions, asRegions)) {
+				rProfile = new TemplateProfile(sClass, sName, asRegions);
+				_rRegistry.put(sClass, rProfile);
+			}
+			return rProfile;
+		}
+	}
+
+	/** Returns the profile of the generated class (or one of its nested classes), null if it was not built in profile mode. **/
+	public static TemplateProfile get(String sClass) {
+
+		int i = sClass.indexOf('$');
+		return _rRegistry.get((i < 0) ? sClass : sClass.substring(0, i));
+	}
+
+	/** Returns the profiles of all templates, sorted by class name. **/
+	public static List<TemplateProfile> getAll() {
+
+		TreeMap<String, TemplateProfile> rSorted = new TreeMap<String, TemplateProfile>(_rRegistry);
+		return new ArrayList<TemplateProfile>(rSorted.values());
+	}
+
+	/** Drops all profiles. **/
+	public static void clear() {
+		_rRegistry.clear();
+	}
+
+	/**
+	 * The timer of the generated code: adds the nanoseconds since the start of the previous region (if there is one) to it
+	 * and returns the start of the next region.
+	**/
+	public long step(int iRegion, long lStart) {
+
+		long lNow = System.nanoTime();
+		if (iRegion >= 0) {
+			_rNanos.addAndGet(iRegion, lNow - lStart);
+			_rCounts.incrementAndGet(iRegion);
+		}
+		return lNow;
+	}
+
+	/** Returns the name of the generated class. **/
+	public String getClassName() {
+		return _sClass;
+	}
+
+	/** Returns the name of the template. **/
+	public String getName() {
+		return _sName;
+	}
+
+	/** Returns the number of regions, one for every section of the template. **/
+	public int size() {
+		return _asRegions.length;
+	}
+
+	/** Returns the kind of the region: text, scriptlet, assign or declare (see TemplateNode). **/
+	public String getKind(int iRegion) {
+		return _asKind[iRegion];
+	}
+
+	/** Returns the template line the code of the region starts at. **/
+	public int getLine(int iRegion) {
+		return _aiLine[iRegion];
+	}
+
+	/** Returns the template column the region starts at. **/
+	public int getColumn(int iRegion) {
+		return _aiColumn[iRegion];
+	}
+
+	/** Returns the nanoseconds spent in the region so far. **/
+	public long getNanos(int iRegion) {
+		return _rNanos.get(iRegion);
+	}
+
+	/** Returns how often the region ran so far. **/
+	public long getCount(int iRegion) {
+		return _rCounts.get(iRegion);
+	}
+
+	/** Returns the region the line of the generated class belongs to, -1 for the code around the regions. **/
+	public int getRegion(int iGenLine) {
+
+		int iLow = 0;
+		int iHigh = _aiByLine.length - 1;
+		while (iLow <= iHigh) {
+
+			int iMid = (iLow + iHigh) >>> 1;
+			int iRegion = _aiByLine[iMid];
+			if (iGenLine < _aiFirst[iRegion])
+				iHigh = iMid - 1;
+			else if (iGenLine > _aiLast[iRegion])
+				iLow = iMid + 1;
+			else
+				return iRegion;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the template line of the line of the generated class, -1 for the code around the regions.  Java code is
+	 * copied line by line, so a line within a multi line scriptlet maps to its own template line.
+	**/
+	public int getTemplateLine(int iGenLine) {
+
+		int iRegion = getRegion(iGenLine);
+		if (iRegion < 0)
+			return -1;
+		if (_asKind[iRegion].equals("text"))
+			return _aiLine[iRegion];
+		return _aiLine[iRegion] + (iGenLine - _aiFirst[iRegion]);
+	}
+
+	/** Returns the line map as text, one "generated lines -> template line:column kind" line per region, in generated order. **/
+	public String getLineMap() {
+
+		StringBuilder sb = new StringBuilder(_asRegions.length * 32);
+		for (int iRegion : _aiByLine)
+			sb.append(_aiFirst[iRegion] + "-" + _aiLast[iRegion] + " -> " + _aiLine[iRegion] + ":" + _aiColumn[iRegion] + " " + _asKind[iRegion] + "\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the stack frame with the template as its file and the template line as its line, when the frame is within
+	 * the regions of a profiled template.  Any other frame is returned as it is.
+	**/
+	public static StackTraceElement translate(StackTraceElement rFrame) {
+
+		TemplateProfile rProfile = get(rFrame.getClassName());
+		if (rProfile == null)
+			return rFrame;
+		int iLine = rProfile.getTemplateLine(rFrame.getLineNumber());
+		if (iLine < 0)
+			return rFrame;
+		return new StackTraceElement(rFrame.getClassName(), rFrame.getMethodName(), rProfile._sName, iLine);
+	}
+
+	/** Translates the frames of the exception, its causes and suppressed exceptions (see above), and returns it. **/
+	public static <T extends Throwable> T translate(T x) {
+
+		if (_rRegistry.isEmpty())
+			return x;
+		translate(x, Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>()));
+		return x;
+	}
+
+	private static void translate(Throwable x, Set<Throwable> rSeen) {
+
+		if (x == null || !rSeen.add(x))
+			return;
+
+		StackTraceElement[] arFrames = x.getStackTrace();
+		boolean bChanged = false;
+		for (int i = 0; i < arFrames.length; i++) {
+			StackTraceElement rFrame = translate(arFrames[i]);
+			if (rFrame != arFrames[i]) {
+				arFrames[i] = rFrame;
+				bChanged = true;
+			}
+		}
+		if (bChanged)
+			x.setStackTrace(arFrames);
+
+		translate(x.getCause(), rSeen);
+		for (Throwable rSuppressed : x.getSuppressed())
+			translate(rSuppressed, rSeen);
+	}
+
+	/** Returns a table of the iTop regions of all templates that took the most time, with their share of the total. **/
+	public static String report(int iTop) {
+
+		List<long[]> rRegions = new ArrayList<long[]>();
+		final List<TemplateProfile> rAll = getAll();
+		long lTotal = 0;
+		for (int p = 0; p < rAll.size(); p++) {
+			TemplateProfile rProfile = rAll.get(p);
+			for (int i = 0; i < rProfile.size(); i++) {
+				long lNanos = rProfile.getNanos(i);
+				lTotal += lNanos;
+				if (rProfile.getCount(i) > 0)
+					rRegions.add(new long[] { lNanos, p, i });
+			}
+		}
+
+		Collections.sort(rRegions, new Comparator<long[]>() {
+			public int compare(long[] al1, long[] al2) {
+				return Long.compare(al2[0], al1[0]);
+			}
+		});
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-40s %-9s %11s %11s %9s %6s%n", "region", "kind", "count", "total ms", "mean us", "share"));
+		for (int i = 0; i < Math.min(iTop, rRegions.size()); i++) {
+
+			long[] al = rRegions.get(i);
+			TemplateProfile rProfile = rAll.get((int) al[1]);
+			int iRegion = (int) al[2];
+			long lCount = rProfile.getCount(iRegion);
+			sb.append(String.format("%-40s %-9s %11d %11.1f %9.2f %5.1f%%%n",
+											rProfile._sName + ":" + rProfile.getLine(iRegion) + ":" + rProfile.getColumn(iRegion),
+											rProfile.getKind(iRegion),
+											lCount,
+											al[0] / 1000000.0,
+											al[0] / 1000.0 / lCount,
+											(lTotal > 0) ? al[0] * 100.0 / lTotal : 0.0));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,334 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateRegistry class finds the templates of an application by group and name, and loads each one the first
+ * time it is asked for.  Registering a template costs nothing but its names, so a run that uses a few templates out of
+ * many only loads those few.
+ *
+ * The templates are loaded by Template.load() from the class loader they were registered with.  Threads asking for a
+ * template that is not loaded yet wait for one of them to load it, it is loaded once no matter how many ask at the same
+ * time.  Once loaded, getting a template takes no lock.
+ *
+ * A registry created with eviction keeps the loaded templates only softly reachable, the JVM then drops the ones not
+ * used for the longest time when memory runs low, and they are loaded again on their next use.  Every template class
+ * is then defined in a class loader of its own, so the class goes along with the template (its bytes are read again
+ * from the loader it was registered with).  A template class loaded that way no longer comes from a shared class
+ * archive.
+ *
+ * The registry counts the loads, their time, the uses of every template and the evictions, see getSummary() and report().
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class TemplateRegistry {
+
+	private TContext _rCtx;
+	private boolean _bEvict;
+	private Map<String, Entry> _rEntries = new ConcurrentHashMap<String, Entry>();
+
+	private AtomicLong _rLoads = new AtomicLong();
+	private AtomicLong _rLoadNanos = new AtomicLong();
+	private AtomicLong _rFailures = new AtomicLong();
+	private AtomicLong _rEvictions = new AtomicLong();
+
+	/** A registered template, with the template itself once it is loaded. **/
+	private class Entry {
+
+		private String _sGroup;
+		private String _sName;
+		private String _sExt;
+		private String _sInterfaceClass;
+		private ClassLoader _rLoader;
+
+		private volatile Template _rTemp;
+		private volatile SoftReference<Template> _rSoft;
+		private AtomicLong _rUses = new AtomicLong();
+		private long _lLoads;
+		private long _lLoadNanos;
+
+		Entry(String sGroup, String sName, String sExt, String sInterfaceClass, ClassLoader rLoader) {
+
+			_sGroup = sGroup;
+			_sName = sName;
+			_sExt = sExt;
+			_sInterfaceClass = sInterfaceClass;
+			_rLoader = rLoader;
+		}
+
+		/** Returns the template if it is loaded (and was not evicted), without loading it. **/
+		Template peek() {
+
+			if (!_bEvict)
+				return _rTemp;
+			SoftReference<Template> rSoft = _rSoft;
+			return (rSoft == null) ? null : rSoft.get();
+		}
+
+		Template get() throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+			Template rTemp = peek();
+			if (rTemp == null) {
+				synchronized (this) {
+
+					rTemp = peek();
+					if (rTemp == null) {
+
+						// a template loaded before is only gone when the JVM dropped it
+						if (_lLoads > 0)
+							_rEvictions.incrementAndGet();
+						rTemp = load();
+					}
+				}
+			}
+			_rUses.incrementAndGet();
+			return rTemp;
+		}
+
+		/** Loads the template, called with the lock of the entry held. **/
+		private Template load() throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+			long lStart = System.nanoTime();
+			boolean bLoaded = false;
+			try {
+				ClassLoader rLoader = _rLoader;
+				if (_bEvict)
+					rLoader = new EntryLoader(_rLoader, TemplateCompiler.PACKAGE + "." + _sInterfaceClass);
+
+				Template rTemp = Template.load(_rCtx, _sName, _sGroup, _sInterfaceClass, _sExt, rLoader);
+				if (_bEvict)
+					_rSoft = new SoftReference<Template>(rTemp);
+				else
+					_rTemp = rTemp;
+				bLoaded = true;
+				return rTemp;
+			} finally {
+				long lNanos = System.nanoTime() - lStart;
+				if (bLoaded) {
+					_lLoads++;
+					_lLoadNanos += lNanos;
+					_rLoads.incrementAndGet();
+					_rLoadNanos.addAndGet(lNanos);
+				}
+				else
+					_rFailures.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * The class loader of a template that can be evicted: it defines the template class and its nested classes itself,
+	 * from the bytes of the registered loader, and leaves every other class to that loader.
+	**/
+	private static class EntryLoader extends ClassLoader {
+
+		private String _sClass;
+
+		EntryLoader(ClassLoader rParent, String sClass) {
+			super(rParent);
+			_sClass = sClass;
+		}
+
+		protected Class<?> loadClass(String sClass, boolean bResolve) throws ClassNotFoundException {
+
+			if (!sClass.equals(_sClass) && !sClass.startsWith(_sClass + "$"))
+				return super.loadClass(sClass, bResolve);
+
+			synchronized (getClassLoadingLock(sClass)) {
+
+				Class<?> rClass = findLoadedClass(sClass);
+				if (rClass == null) {
+
+					byte[] ab = getClassBytes(sClass);
+					if (ab == null)
+						return super.loadClass(sClass, bResolve);
+					rClass = defineClass(sClass, ab, 0, ab.length);
+				}
+				if (bResolve)
+					resolveClass(rClass);
+				return rClass;
+			}
+		}
+
+		/** Returns the bytes of the class, held by a TemplateClassLoader or read from the class path of the parent. **/
+		private byte[] getClassBytes(String sClass) throws ClassNotFoundException {
+
+			if (getParent() instanceof TemplateClassLoader)
+				return ((TemplateClassLoader) getParent()).getClassBytes(sClass);
+
+			InputStream in = getParent().getResourceAsStream(sClass.replace('.', '/') + ".class");
+			if (in == null)
+				return null;
+			try {
+				try {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] ab = new byte[8192];
+					int iRead;
+					while ((iRead = in.read(ab)) > 0)
+						out.write(ab, 0, iRead);
+					return out.toByteArray();
+				} finally { in.close(); }
+			} catch (IOException x) { throw new ClassNotFoundException(sClass, x); }
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bEvict true to let the JVM drop loaded templates under memory pressure, see above
+	**/
+	public TemplateRegistry(TContext rCtx, boolean bEvict) {
+
+		_rCtx = rCtx;
+		_bEvict = bEvict;
+	}
+
+	/** Returns the key of a template in the registry, "group/name". **/
+	public static String getKey(String sGroup, String sName) {
+		return sGroup + "/" + sName;
+	}
+
+	/**
+	 * Registers a template, it is loaded on its first use.  A template registered again under the same group and name
+	 * replaces the previous one, which is then loaded again on its next use.
+	 *
+	 * @param sGroup the group name of the template, helps differentiate templates with the same name
+	 * @param sName the name of the template
+	 * @param sExt the extension of the template file
+	 * @param sInterfaceClass the name of the generated class - does not contain package name
+	 * @param rLoader the class loader holding the compiled class
+	**/
+	public void register(String sGroup, String sName, String sExt, String sInterfaceClass, ClassLoader rLoader) {
+		_rEntries.put(getKey(sGroup, sName), new Entry(sGroup, sName, sExt, sInterfaceClass, rLoader));
+	}
+
+	/** Removes a template from the registry, returns false if it was not registered. **/
+	public boolean remove(String sGroup, String sName) {
+		return _rEntries.remove(getKey(sGroup, sName)) != null;
+	}
+
+	/** Returns true if the template is registered. **/
+	public boolean contains(String sGroup, String sName) {
+		return _rEntries.containsKey(getKey(sGroup, sName));
+	}
+
+	/** Returns true if the template is loaded right now. **/
+	public boolean isLoaded(String sGroup, String sName) {
+
+		Entry rEntry = _rEntries.get(getKey(sGroup, sName));
+		return rEntry != null && rEntry.peek() != null;
+	}
+
+	/** Returns the template, loading it if this is its first use.  Returns null if it is not registered. **/
+	public Template get(String sGroup, String sName)
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+		Entry rEntry = _rEntries.get(getKey(sGroup, sName));
+		return (rEntry == null) ? null : rEntry.get();
+	}
+
+	/** Returns the template for its key, "group/name" (see getKey()).  Returns null if it is not registered. **/
+	public Template get(String sKey)
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+		Entry rEntry = _rEntries.get(sKey);
+		return (rEntry == null) ? null : rEntry.get();
+	}
+
+	/** Returns the keys of all registered templates, sorted. **/
+	public List<String> getKeys() {
+		return new ArrayList<String>(new TreeSet<String>(_rEntries.keySet()));
+	}
+
+	/** Returns all registered templates, sorted by key, every one not loaded yet is loaded now. **/
+	public ArrayList<Template> getAll()
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+		ArrayList<Template> rTemps = new ArrayList<Template>();
+		for (String sKey : getKeys()) {
+
+			Template rTemp = get(sKey);
+			if (rTemp != null)
+				rTemps.add(rTemp);
+		}
+		return rTemps;
+	}
+
+	/** Returns the number of registered templates. **/
+	public int size() {
+		return _rEntries.size();
+	}
+
+	/** Returns the number of templates loaded right now. **/
+	public int getLoaded() {
+
+		int iLoaded = 0;
+		for (Entry rEntry : _rEntries.values()) {
+			if (rEntry.peek() != null)
+				iLoaded++;
+		}
+		return iLoaded;
+	}
+
+	/** Returns the number of template loads, a template evicted and loaded again counts twice. **/
+	public long getLoads() {
+		return _rLoads.get();
+	}
+
+	/** Returns the nanoseconds spent loading templates. **/
+	public long getLoadNanos() {
+		return _rLoadNanos.get();
+	}
+
+	/** Returns the number of loads that failed. **/
+	public long getFailures() {
+		return _rFailures.get();
+	}
+
+	/** Returns the number of templates that were dropped by the JVM and loaded again. **/
+	public long getEvictions() {
+		return _rEvictions.get();
+	}
+
+	/** Returns one line with the loaded templates, the loads and their time, failures and evictions. **/
+	public String getSummary() {
+
+		long lLoads = getLoads();
+		return String.format("Loaded %d of %d templates, %d loads in %.1f ms (%.2f ms each), %d failed, %d evicted%n",
+											getLoaded(),
+											size(),
+											lLoads,
+											getLoadNanos() / 1000000.0,
+											(lLoads == 0) ? 0.0 : getLoadNanos() / 1000000.0 / lLoads,
+											getFailures(),
+											getEvictions());
+	}
+
+	/** Returns the summary of the registry and a table of the templates loaded so far. **/
+	public String report() {
+
+		StringBuilder sb = new StringBuilder(getSummary());
+		sb.append(String.format("%-40s %7s %11s %11s%n", "template", "loads", "load ms", "uses"));
+		for (String sKey : getKeys()) {
+
+			Entry rEntry = _rEntries.get(sKey);
+			if (rEntry == null)
+				continue;
+			long lUses = rEntry._rUses.get();
+			long lEntryLoads;
+			long lEntryNanos;
+			synchronized (rEntry) {
+				lEntryLoads = rEntry._lLoads;
+				lEntryNanos = rEntry._lLoadNanos;
+			}
+			if (lEntryLoads > 0)
+				sb.append(String.format("%-40s %7d %11.2f %11d%n", sKey, lEntryLoads, lEntryNanos / 1000000.0, lUses));
+		}
+		return sb.toString();
+	}
+}
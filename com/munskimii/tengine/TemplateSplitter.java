@@ -0,0 +1,369 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateSplitter class decides where TemplateGenerator splits the generate method of a large template.
+ *
+ * HotSpot never compiles a method of more than 8000 bytes of bytecode (HugeMethodLimit), it runs interpreted forever,
+ * and javac does not compile a method of more than 64 kb at all.  When the code of a template is estimated to be larger
+ * than MAX_CHUNK, it is split into chunks: the generate method runs the first one itself and then calls a private method
+ * for each of the others, the predefined scriptlet variables are passed along.
+ *
+ * A chunk only starts between two sections of the template where that does not change what the code means:
+ *   - no block of the scriptlet code and no cached fragment is open
+ *   - no local variable (or local class) declared by the scriptlet code before is used after
+ *   - the scriptlet before does not end with a jump, the calls after it would not be reachable
+ *   - a scriptlet with a return statement stays in the first or the last chunk, it must leave the generate method
+ *
+ * The locals are found by looking at the statements of the scriptlet code outside of any block, so the rules err on the
+ * safe side.  Code that still cannot be split below HUGE_METHOD is reported with a warning, the template works but is
+ * never compiled by the JIT.  A template whose scriptlet code closes the generate method is never split.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+import java.util.regex.*;
+
+public class TemplateSplitter {
+
+	/** The largest estimated bytecode size of a chunk, well below HUGE_METHOD since the estimate is rough. **/
+	public static final int MAX_CHUNK = 4000;
+
+	/** HotSpot's HugeMethodLimit, larger methods are never compiled by the JIT. **/
+	public static final int HUGE_METHOD = 8000;
+
+	/** A local variable declaration: the modifiers, the type, the first name and the rest. **/
+	private static final Pattern LOCAL = Pattern.compile("(?:(?:final|@[\\w$.]+)\\s+)*([A-Za-z_$][\\w$.]*\\s*(?:<.*>)?(?:\\s*\\[\\s*\\])*)\\s+([A-Za-z_$][\\w$]*)\\s*(=.*)?", Pattern.DOTALL);
+
+	/** The other names of a declaration of several variables, within its rest. **/
+	private static final Pattern MORE_LOCALS = Pattern.compile(",\\s*([A-Za-z_$][\\w$]*)\\s*(?==|,|$)");
+
+	/** A local class, the statement ends at its body. **/
+	private static final Pattern LOCAL_CLASS = Pattern.compile("(?:(?:final|abstract|static)\\s+)*(?:class|interface|enum|record)\\s+([A-Za-z_$][\\w$]*).*", Pattern.DOTALL);
+
+	/** The code in front of the body of a class, or of an anonymous class once its arguments are skipped. **/
+	private static final Pattern CLASS_START = Pattern.compile("(?:^|[;{}])[^;{}]*\\b(?:class|interface|enum|record)\\s+[A-Za-z_$][^;{}]*$");
+	private static final Pattern NEW_START = Pattern.compile("\\bnew\\s+[\\w$.]+\\s*(?:<[^;{}()]*>)?\\s*$");
+
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+
+	/** Words that look like the type of a declaration, "return x;" is not one. **/
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+													"return", "throw", "new", "else", "case", "assert", "yield", "goto", "do", "break", "continue"));
+
+	/** The block depth of the scriptlet code, and the parentheses open at that depth. **/
+	private int _iDepth;
+	private int _iParens;
+	private boolean _bClosed;
+
+	/** For every open block if it is the body of a class or lambda, a return there does not leave the generate method. **/
+	private LinkedList<Boolean> _rBlocks = new LinkedList<Boolean>();
+	private int _iBodies;
+	private boolean _bReturn;
+
+	/** The statement being read outside of any block, without its comments and literals. **/
+	private StringBuilder _sbStatement = new StringBuilder();
+
+	/** The names declared by the section just scanned. **/
+	private List<String> _rDeclared = new ArrayList<String>();
+
+	private TemplateSplitter() {}
+
+	/**
+	 * Returns the index of the section every chunk but the first starts at, in order.  The array is empty when the
+	 * generate method is not split.
+	 *
+	 * @param sName the name of the template, for the warnings
+	 * @param rNodes the sections of the template (the children of the root node)
+	 * @param bProfile true in profile mode, every section then has a timer step as well
+	 * @param rWarnings gets a warning for every chunk that is still too large for the JIT
+	**/
+	public static int[] split(String sName, List<TemplateNode> rNodes, boolean bProfile, List<String> rWarnings) {
+
+		int n = rNodes.size();
+		int[] aiSize = new int[n];
+		int iTotal = 0;
+		for (int i = 0; i < n; i++) {
+			aiSize[i] = estimate(rNodes.get(i), bProfile);
+			iTotal += aiSize[i];
+		}
+		if (iTotal <= MAX_CHUNK)
+			return new int[0];
+
+		boolean[] abReturn = new boolean[n];
+		TemplateSplitter rSplitter = new TemplateSplitter();
+		boolean[] abSafe = rSplitter.getBoundaries(rNodes, abReturn);
+		if (rSplitter._bClosed) {
+			if (iTotal > HUGE_METHOD)
+				rWarnings.add("The generate method of template: " + sName + " is about " + iTotal + " bytes of code, it is closed by scriptlet code and cannot be split - the JIT will not compile it");
+			return new int[0];
+		}
+
+		// each chunk ends at the last place it can before it gets too large
+		List<Integer> rSplits = new ArrayList<Integer>();
+		int iStart = 0;
+		int iSize = 0;
+		int iSafe = -1;
+		int iSafeSize = 0;
+		int iReturn = -1;
+		for (int i = 0; i < n; i++) {
+
+			if (i > iStart && abSafe[i] && !(iStart > 0 && iReturn >= iStart)) {
+				iSafe = i;
+				iSafeSize = iSize;
+			}
+			if (iSize + aiSize[i] > MAX_CHUNK && iSafe > iStart) {
+				warn(sName, rNodes, iStart, iSafe, iSafeSize, rWarnings);
+				rSplits.add(Integer.valueOf(iSafe));
+				iStart = iSafe;
+				iSize -= iSafeSize;
+				iSafe = -1;
+			}
+
+			iSize += aiSize[i];
+			if (abReturn[i])
+				iReturn = i;
+		}
+		warn(sName, rNodes, iStart, n, iSize, rWarnings);
+
+		int[] aiSplits = new int[rSplits.size()];
+		for (int i = 0; i < aiSplits.length; i++)
+			aiSplits[i] = rSplits.get(i).intValue();
+		return aiSplits;
+	}
+
+	/** Adds a warning when the chunk from the first section up to (not including) the last is too large for the JIT. **/
+	private static void warn(String sName, List<TemplateNode> rNodes, int iFirst, int iLast, int iSize, List<String> rWarnings) {
+
+		if (iSize <= HUGE_METHOD)
+			return;
+		rWarnings.add("Lines " + rNodes.get(iFirst).getLine() + " to " + rNodes.get(iLast - 1).getLine() + " of template: " + sName
+										+ " are about " + iSize + " bytes of code with no place to split them (a block, cached fragment or"
+										+ " local variable spans them) - the JIT will not compile them");
+	}
+
+	/**
+	 * Returns the estimated bytecode size of the code of the section within the generate method: a few bytes for every
+	 * out.write() of static text, and about one byte for every two characters of java code.
+	**/
+	private static int estimate(TemplateNode rNode, boolean bProfile) {
+
+		int iStep = bProfile ? 16 : 0;
+		switch (rNode.getKind()) {
+			case TemplateNode.TEXT:      return iStep + 8 * (rNode.getText().length() / TemplateGenerator.MAX_TEXT + 1);
+			case TemplateNode.SCRIPTLET: return iStep + rNode.getText().length() / 2;
+			case TemplateNode.ASSIGN:    return iStep + 8 + rNode.getText().length() / 2;
+			case TemplateNode.DIRECTIVE: return iStep + 40 + rNode.getText().length() / 2;
+		}
+		return 0; // the <%@ %> code goes in front of the class
+	}
+
+	/**
+	 * Returns for every section if a chunk may start right in front of it (see the class comment), and marks the
+	 * scriptlets with a return statement.
+	**/
+	private boolean[] getBoundaries(List<TemplateNode> rNodes, boolean[] abReturn) {
+
+		int n = rNodes.size();
+		boolean[] abSafe = new boolean[n];
+		List<String> rNames = new ArrayList<String>();
+		List<Integer> rDeclaredAt = new ArrayList<Integer>();
+		Map<String, Integer> rLastUse = new HashMap<String, Integer>();
+		int iCache = 0;
+		boolean bJumped = false;
+
+		for (int i = 0; i < n; i++) {
+
+			abSafe[i] = (_iDepth == 0 && iCache == 0 && !bJumped && !_bClosed);
+
+			TemplateNode rNode = rNodes.get(i);
+			int iKind = rNode.getKind();
+			if (iKind == TemplateNode.TEXT || iKind == TemplateNode.DECLARE) {
+				bJumped &= (iKind == TemplateNode.DECLARE);
+				continue;
+			}
+
+			String sText = rNode.getText();
+			if (iKind == TemplateNode.SCRIPTLET) {
+
+				_rDeclared.clear();
+				_bReturn = false;
+				scan(sText);
+				for (String sDeclared : _rDeclared) {
+					rNames.add(sDeclared);
+					rDeclaredAt.add(Integer.valueOf(i));
+				}
+				abReturn[i] = _bReturn;
+				bJumped = TemplateGenerator.JUMP_END.matcher(sText).find();
+			}
+			else {
+				bJumped = false;
+			}
+
+			if (iKind == TemplateNode.DIRECTIVE) {
+				String sDirective = sText.trim().split("\\s+", 2)[0];
+				if (sDirective.equals("cache"))
+					iCache++;
+				else if (sDirective.equals("endcache"))
+					iCache--;
+			}
+
+			Matcher rMatch = IDENTIFIER.matcher(sText);
+			while (rMatch.find())
+				rLastUse.put(rMatch.group(), Integer.valueOf(i));
+		}
+
+		// a local is live from the section after its declaration up to its last use
+		int[] aiLive = new int[n + 1];
+		for (int i = 0; i < rNames.size(); i++) {
+
+			int iFirst = rDeclaredAt.get(i).intValue() + 1;
+			int iLast = rLastUse.get(rNames.get(i)).intValue();
+			if (iLast >= iFirst) {
+				aiLive[iFirst]++;
+				aiLive[iLast + 1]--;
+			}
+		}
+		int iLive = 0;
+		for (int i = 0; i < n; i++) {
+			iLive += aiLive[i];
+			if (iLive > 0)
+				abSafe[i] = false;
+		}
+		return abSafe;
+	}
+
+	/** Reads the scriptlet code: the block depth, its return statements, and the names declared outside of any block. **/
+	private void scan(String sCode) {
+
+		int iLen = sCode.length();
+		for (int i = 0; i < iLen; i++) {
+
+			char ch = sCode.charAt(i);
+			char chNext = (i + 1 < iLen) ? sCode.charAt(i + 1) : 0;
+
+			// comments and literals are left out, just a space or an empty literal stays in the statement
+			if (ch == '/' && chNext == '/') {
+				int iEnd = sCode.indexOf('\n', i);
+				i = (iEnd < 0) ? iLen : iEnd;
+				_sbStatement.append(' ');
+				continue;
+			}
+			if (ch == '/' && chNext == '*') {
+				int iEnd = sCode.indexOf("*/", i + 2);
+				i = (iEnd < 0) ? iLen : iEnd + 1;
+				_sbStatement.append(' ');
+				continue;
+			}
+			if (ch == '"' || ch == '\'') {
+				i = skipLiteral(sCode, i);
+				if (_iDepth == 0)
+					_sbStatement.append(ch).append(ch);
+				continue;
+			}
+
+			if (Character.isJavaIdentifierStart(ch) && (i == 0 || !Character.isJavaIdentifierPart(sCode.charAt(i - 1)))) {
+				int iEnd = i + 1;
+				while (iEnd < iLen && Character.isJavaIdentifierPart(sCode.charAt(iEnd)))
+					iEnd++;
+				if (_iBodies == 0 && iEnd - i == 6 && sCode.startsWith("return", i))
+					_bReturn = true;
+				if (_iDepth == 0)
+					_sbStatement.append(sCode, i, iEnd);
+				i = iEnd - 1;
+				continue;
+			}
+
+			if (ch == '(')
+				_iParens++;
+			else if (ch == ')')
+				_iParens = Math.max(0, _iParens - 1);
+
+			if (ch == '{') {
+				boolean bBody = isBody(sCode, i);
+				_rBlocks.addFirst(Boolean.valueOf(bBody));
+				if (bBody)
+					_iBodies++;
+				if (_iDepth == 0 && _iParens == 0)
+					endStatement();
+				_iDepth++;
+			}
+			else if (ch == '}') {
+				if (!_rBlocks.isEmpty() && _rBlocks.removeFirst().booleanValue())
+					_iBodies--;
+				if (--_iDepth < 0)
+					_bClosed = true;
+				_sbStatement.setLength(0);
+			}
+			else if (_iDepth == 0) {
+				if (ch == ';' && _iParens == 0)
+					endStatement();
+				else
+					_sbStatement.append(ch);
+			}
+		}
+	}
+
+	/** Returns true if the brace at the index opens the body of a class, an anonymous class or a lambda. **/
+	private static boolean isBody(String sCode, int iBrace) {
+
+		String sBefore = sCode.substring(Math.max(0, iBrace - 256), iBrace).trim();
+		if (sBefore.endsWith("->") || CLASS_START.matcher(sBefore).find())
+			return true;
+		if (!sBefore.endsWith(")"))
+			return false;
+
+		// the arguments of "new Type(...)"
+		int iParens = 0;
+		for (int i = sBefore.length() - 1; i >= 0; i--) {
+			char ch = sBefore.charAt(i);
+			if (ch == ')')
+				iParens++;
+			else if (ch == '(' && --iParens == 0)
+				return NEW_START.matcher(sBefore.substring(0, i)).find();
+		}
+		return false;
+	}
+
+	/** Returns the index of the last character of the string, text block or character literal starting at the index. **/
+	private static int skipLiteral(String sCode, int iStart) {
+
+		char chQuote = sCode.charAt(iStart);
+		if (sCode.startsWith("\"\"\"", iStart)) {
+			int iEnd = sCode.indexOf("\"\"\"", iStart + 3);
+			return (iEnd < 0) ? sCode.length() : iEnd + 2;
+		}
+
+		for (int i = iStart + 1; i < sCode.length(); i++) {
+			char ch = sCode.charAt(i);
+			if (ch == '\\')
+				i++;
+			else if (ch == chQuote || ch == '\n')
+				return i;
+		}
+		return sCode.length();
+	}
+
+	/** Ends the statement outside of any block, the names it declares are kept. **/
+	private void endStatement() {
+
+		String sStatement = _sbStatement.toString().trim();
+		_sbStatement.setLength(0);
+
+		Matcher rMatch = LOCAL_CLASS.matcher(sStatement);
+		if (rMatch.matches()) {
+			_rDeclared.add(rMatch.group(1));
+			return;
+		}
+
+		rMatch = LOCAL.matcher(sStatement);
+		if (!rMatch.matches() || KEYWORDS.contains(rMatch.group(1)))
+			return;
+		_rDeclared.add(rMatch.group(2));
+		if (rMatch.group(3) != null) {
+			Matcher rMore = MORE_LOCALS.matcher(rMatch.group(3));
+			while (rMore.find())
+				_rDeclared.add(rMore.group(1));
+		}
+	}
+}
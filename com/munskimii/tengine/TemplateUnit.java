@@ -0,0 +1,221 @@
+package com.munskimii.tengine;
+
+/**
+ * The TemplateUnit class carries one template through a batch build: the generated java code, the compile
+ * diagnostics that belong to this template, and finally the class loader holding the compiled class.
+ *
+ * A template engine creates one unit per template file, fills in the source with Template.build() (this can be
+ * done in parallel, units do not share anything), and hands all units to TemplateCompiler.compile() at once.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.util.*;
+
+public class TemplateUnit {
+
+	private String _sName;
+	private String _sGroup;
+	private String _sExt;
+	private String _sInterfaceClass;
+	private String _sLocation;
+	private String _sSource;
+	private byte[] _abClass;
+	private Map<String, byte[]> _rClasses = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>());
+	private boolean _bCached;
+	private String _sCacheKey;
+	private Map<String, String> _rDepends = Collections.synchronizedMap(new TreeMap<String, String>());
+	private List<String> _rIncludes = Collections.synchronizedList(new ArrayList<String>());
+	private TemplateClassLoader _rLoader;
+	private List<String> _rDiagnostics = Collections.synchronizedList(new ArrayList<String>());
+	private volatile boolean _bErrors;
+
+	/** Constructor. The location is only used in diagnostics, typically the path of the template file. **/
+	public TemplateUnit(String sName, String sGroup, String sExt, String sInterfaceClass, String sLocation) {
+		_sName = sName;
+		_sGroup = sGroup;
+		_sExt = sExt;
+		_sInterfaceClass = sInterfaceClass;
+		_sLocation = sLocation;
+	}
+
+	/** Returns the name of the template. **/
+	public String getName() {
+		return _sName;
+	}
+
+	/** Returns the group of the template. **/
+	public String getGroup() {
+		return _sGroup;
+	}
+
+	/** Returns the extension of the template file. **/
+	public String getExtension() {
+		return _sExt;
+	}
+
+	/** Returns the name of the generated class - does not contain package name. **/
+	public String getInterfaceClass() {
+		return _sInterfaceClass;
+	}
+
+	/** Returns where the template text came from. **/
+	public String getLocation() {
+		return _sLocation;
+	}
+
+	/** Returns the java code created by Template.build(), null until the template has been parsed. **/
+	public String getSource() {
+		return _sSource;
+	}
+
+	public void setSource(String sSource) {
+		_sSource = sSource;
+	}
+
+	/** Returns the class file assembled by TemplateAssembler, null if the source has to be compiled. **/
+	public byte[] getClassBytes() {
+		return _abClass;
+	}
+
+	public void setClassBytes(byte[] abClass) {
+		_abClass = abClass;
+		addClass(TemplateCompiler.PACKAGE + "." + _sInterfaceClass, abClass);
+	}
+
+	/** 
+	 * Returns the class files of this template (class name to bytecode), filled in when it is assembled, compiled or
+	 * taken from a TemplateCache.  A unit that already has its classes is not compiled again.
+	**/
+	public Map<String, byte[]> getClasses() {
+		synchronized (_rClasses) {
+			return new LinkedHashMap<String, byte[]>(_rClasses);
+		}
+	}
+
+	/** Adds a class file of this template, the generated class itself or one of its inner classes. **/
+	public void addClass(String sClass, byte[] abClass) {
+		_rClasses.put(sClass, abClass);
+	}
+
+	/** Returns true if the classes came from a TemplateCache, the template was then neither parsed nor compiled. **/
+	public boolean isCached() {
+		return _bCached;
+	}
+
+	public void setCached(boolean bCached) {
+		_bCached = bCached;
+	}
+
+	/** Returns the TemplateCache key of the template text, null if the build does not use a cache. **/
+	public String getCacheKey() {
+		return _sCacheKey;
+	}
+
+	public void setCacheKey(String sCacheKey) {
+		_sCacheKey = sCacheKey;
+	}
+
+	/** 
+	 * Returns what the classes depend on besides the template text, like the folded parameters (see TemplateFolder), 
+	 * as dependency to the value it had when the template was built.  TemplateCache checks them before using its entry.
+	**/
+	public Map<String, String> getDependencies() {
+		synchronized (_rDepends) {
+			return new TreeMap<String, String>(_rDepends);
+		}
+	}
+
+	public void addDependency(String sDependency, String sValue) {
+		_rDepends.put(sDependency, sValue);
+	}
+
+	/** 
+	 * Returns the files the template includes (see TemplateGenerator.getIncludeClass()), from its source when it was just
+	 * built, from its include dependencies when it came from a TemplateCache.
+	**/
+	public List<String> getIncludes() {
+
+		Set<String> rIncludes = new LinkedHashSet<String>(_rIncludes);
+		for (String sDepend : getDependencies().keySet()) {
+			if (sDepend.startsWith(TemplateGenerator.INCLUDE))
+				rIncludes.add(sDepend.substring(TemplateGenerator.INCLUDE.length()));
+		}
+		return new ArrayList<String>(rIncludes);
+	}
+
+	/** Returns the class loader holding the compiled class, null until the unit compiled successfully. **/
+	public TemplateClassLoader getLoader() {
+		return _rLoader;
+	}
+
+	public void setLoader(TemplateClassLoader rLoader) {
+		_rLoader = rLoader;
+	}
+
+	/** Adds a diagnostic message, errors keep the unit from being compiled or loaded. **/
+	public void addDiagnostic(String sMessage, boolean bError) {
+		_rDiagnostics.add(sMessage);
+		if (bError)
+			_bErrors = true;
+	}
+
+	/** Returns the parse and compile diagnostics of this template. **/
+	public List<String> getDiagnostics() {
+		synchronized (_rDiagnostics) {
+			return new ArrayList<String>(_rDiagnostics);
+		}
+	}
+
+	/** Returns true if parsing or compiling this template failed. **/
+	public boolean hasErrors() {
+		return _bErrors;
+	}
+
+	/** Parses the template text into the unit's source (see Template.build()), a parse failure is recorded as a diagnostic. **/
+	public void build(TContext rCtx, InputStreamReader rIn) {
+		build(rCtx, rIn, null);
+	}
+
+	/** 
+	 * Parses the template text into the unit's source with the given build options (may be null).  When the options
+	 * allow it and the template has no java code, the class file is assembled right away (see TemplateAssembler).  The
+	 * source is still created for review, but without the pool since the assembled class keeps its own text.
+	 *
+	 * When the options fold the parameters (see TemplateFolder), the folded ones are added to the dependencies.
+	**/
+	public void build(TContext rCtx, InputStreamReader rIn, TemplateOptions rOptions) {
+
+		try {
+			TemplateNode rRoot = TemplateParser.parse(rCtx, _sName, rIn);
+			if (rOptions != null && rOptions.isFold()) {
+				Map<String, String> rUsed = new TreeMap<String, String>();
+				rRoot = TemplateFolder.fold(rCtx, rRoot, rUsed, rOptions.getEscape());
+				for (Map.Entry<String, String> e : rUsed.entrySet())
+					addDependency(TemplateFolder.PARAMETER + e.getKey(), e.getValue());
+			}
+			if (rOptions != null && rOptions.isAssemble() && TemplateAssembler.canAssemble(rRoot, rOptions)) {
+				setClassBytes(TemplateAssembler.assemble(_sInterfaceClass, rRoot, rOptions.getCharset()));
+				rOptions = new TemplateOptions(rOptions);
+				rOptions.setPool(null);
+			}
+			TemplateGenerator rGen = new TemplateGenerator(rCtx, _sName, _sInterfaceClass, rOptions);
+			_sSource = rGen.generate(rRoot);
+			_rIncludes.addAll(rGen.getIncludes());
+			for (String sWarning : rGen.getWarnings())
+				addDiagnostic(_sLocation + ": " + sWarning, false);
+		} catch (IOException x) {
+			addDiagnostic(_sLocation + ": " + x.getMessage(), true);
+		}
+	}
+
+	/** Creates the template from the compiled class, the unit must have compiled successfully. **/
+	public Template load(TContext rCtx)
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+		if (_rLoader == null)
+			throw new IOException("Template " + _sLocation + " was not compiled");
+		return Template.load(rCtx, _sName, _sGroup, _sInterfaceClass, _sExt, _rLoader);
+	}
+}
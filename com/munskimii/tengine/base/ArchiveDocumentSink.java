@@ -0,0 +1,123 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The ArchiveDocumentSink class packs the documents of a run into a few large segment files instead of a file per
+ * document, DocumentArchive reads them back.
+ *
+ * The archive "<path><name>" consists of:
+ *   <name>.idx    the index, one entry per document: its key (see getKey()), segment, offset and length
+ *   <name>.N.seg  the segments, the documents one after the other, a new segment is started once one is full
+ *
+ * Both are append-only, a document that is stored again (a template reloaded in watch mode) is simply appended, and its
+ * latest index entry wins.  The segments are written with plain FileChannel appends by the writer thread (see
+ * AsyncDocumentSink), or by the render threads in turn without a queue.  A segment is never mapped while it grows - a
+ * mapped file cannot be truncated on every platform.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+import com.munskimii.tengine.*;
+
+public class ArchiveDocumentSink extends AsyncDocumentSink {
+
+	static final int MAGIC = 0x7e6c0a01;
+
+	private String _sPath;
+	private long _lSegmentSize;
+	private int _iSegment;
+	private FileChannel _rSegment;
+	private DataOutputStream _rIndex;
+
+	/**
+	 * Constructor, opens the archive.
+	 *
+	 * @param sPath the path put in front of the archive files, a directory ending with a separator plus the archive name
+	 * @param rCharset the charset of the documents
+	 * @param iQueue the number of documents waiting for the writer thread at most, 0 writes them on the render threads
+	 * @param lSegmentSize the size a segment may grow to (a larger document gets a segment of its own)
+	 * @param bAppend true to add the documents to an existing archive, false to start a new one
+	**/
+	public ArchiveDocumentSink(String sPath, Charset rCharset, int iQueue, long lSegmentSize, boolean bAppend) throws IOException {
+
+		super(rCharset, iQueue, "tengine-archive-writer");
+		_sPath = sPath;
+		_lSegmentSize = Math.max(1, Math.min(lSegmentSize, Integer.MAX_VALUE));
+
+		File rIndex = new File(sPath + ".idx");
+		if (!bAppend || !rIndex.isFile()) {
+			for (int i = 0; new File(getSegment(sPath, i)).exists(); i++) {
+				if (!new File(getSegment(sPath, i)).delete())
+					throw new IOException("Cannot delete archive segment: " + getSegment(sPath, i));
+			}
+			_rIndex = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rIndex)));
+			_rIndex.writeInt(MAGIC);
+		}
+		else {
+			while (new File(getSegment(sPath, _iSegment + 1)).exists())
+				_iSegment++;
+			_rIndex = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rIndex, true)));
+		}
+
+		_rSegment = FileChannel.open(Paths.get(getSegment(sPath, _iSegment)), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		_rSegment.position(_rSegment.size());
+	}
+
+	/** Returns the sink writing the archive of the "tengine.output.archive" parameter, null if the parameter is not set. **/
+	public static ArchiveDocumentSink create(TContext rCtx, String sDir, Charset rCharset, boolean bAppend) throws IOException {
+
+		MetaParameters rParams = rCtx.getMetaParameters();
+		String sName = rParams.getParameter("tengine.output.archive");
+		if (sName.length() == 0)
+			return null;
+
+		int iQueue = rParams.getIntParameter("tengine.output.queue", 64);
+		long lSegmentSize = rParams.getIntParameter("tengine.output.segment", 256) * 1024L * 1024L;
+		return new ArchiveDocumentSink(sDir + sName, rCharset, iQueue, lSegmentSize, bAppend);
+	}
+
+	/** Returns the key of a document, the template group and name plus the record number. **/
+	public static String getKey(String sGroup, String sName, int iRecord) {
+		return sGroup + "/" + sName + "/" + iRecord;
+	}
+
+	/** Returns the file name of a segment. **/
+	static String getSegment(String sPath, int iSegment) {
+		return sPath + "." + iSegment + ".seg";
+	}
+
+	/** Appends the document and its index entry, one document at a time even when render threads store them (no queue). **/
+	protected synchronized void store(String sName, ByteBuffer rBytes) throws IOException {
+
+		int iLen = rBytes.remaining();
+		if (_rSegment.size() > 0 && _rSegment.size() + iLen > _lSegmentSize) {
+			_rSegment.close();
+			_iSegment++;
+			_rSegment = FileChannel.open(Paths.get(getSegment(_sPath, _iSegment)),
+											StandardOpenOption.CREATE,
+											StandardOpenOption.WRITE,
+											StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		long lOffset = _rSegment.size();
+		while (rBytes.hasRemaining())
+			_rSegment.write(rBytes);
+
+		_rIndex.writeUTF(sName);
+		_rIndex.writeInt(_iSegment);
+		_rIndex.writeLong(lOffset);
+		_rIndex.writeInt(iLen);
+	}
+
+	protected synchronized void finish() throws IOException {
+
+		try {
+			_rIndex.close();
+		} finally { _rSegment.close(); }
+	}
+}
@@ -0,0 +1,162 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The AsyncDocumentSink class is the base of the document sinks of the base engine (see DocumentSink), it keeps the render
+ * threads away from the storage.
+ *
+ * Documents are rendered into pooled outputs, their buffers are reused from one document to the next.  A written document
+ * is queued for a background writer thread, which stores it with store() and puts the output back into the pool - a slow
+ * disk only stalls rendering once the queue is full.  Without a queue (size 0) the documents are stored right away on the
+ * render threads.
+ *
+ * The first failure to store a document is thrown by the next write() and by close(), the other documents are still stored.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.munskimii.tengine.*;
+
+public abstract class AsyncDocumentSink implements DocumentSink {
+
+	/** Outputs whose buffer grew beyond this are not pooled, a single large document does not hold on to its memory. **/
+	private static final int MAX_POOLED = 1024 * 1024;
+
+	/** A queued document. **/
+	private static class Pending {
+
+		private String _sName;
+		private TemplateOutput _rOut;
+
+		private Pending(String sName, TemplateOutput rOut) {
+			_sName = sName;
+			_rOut = rOut;
+		}
+	}
+
+	/** Queued after the last document. **/
+	private static final Pending END = new Pending(null, null);
+
+	private Charset _rCharset;
+	private BlockingQueue<TemplateOutput> _rPool;
+	private BlockingQueue<Pending> _rQueue;
+	private Thread _rThread;
+	private AtomicReference<IOException> _rFailure = new AtomicReference<IOException>();
+	private boolean _bClosed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rCharset the charset of the outputs
+	 * @param iQueue the number of documents waiting for the writer thread at most, 0 stores them on the render threads
+	 * @param sThread the name of the writer thread
+	**/
+	protected AsyncDocumentSink(Charset rCharset, int iQueue, String sThread) {
+
+		_rCharset = rCharset;
+		_rPool = new ArrayBlockingQueue<TemplateOutput>(Math.max(16, iQueue * 2));
+		if (iQueue <= 0)
+			return;
+
+		_rQueue = new ArrayBlockingQueue<Pending>(iQueue);
+		_rThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Pending rPending = _rQueue.take();
+						if (rPending == END)
+							return;
+						storeAndRelease(rPending._sName, rPending._rOut);
+					}
+				} catch (InterruptedException x) {
+					// stop writing
+				}
+			}
+		}, sThread);
+		_rThread.setDaemon(true);
+		_rThread.start();
+	}
+
+	/**
+	 * Stores the document, called by the writer thread one document at a time.  Without a queue the render threads call
+	 * it themselves, at the same time - a storage that cannot take that must lock.
+	**/
+	protected abstract void store(String sName, ByteBuffer rBytes) throws IOException;
+
+	/** Called by close() once every document is stored, to finish the storage. **/
+	protected void finish() throws IOException {}
+
+	public TemplateOutput acquire() throws IOException {
+
+		TemplateOutput out = _rPool.poll();
+		if (out == null)
+			out = new TemplateOutput(null, _rCharset, 8192);
+		return out;
+	}
+
+	public void write(String sName, TemplateOutput out) throws IOException {
+
+		IOException x = _rFailure.get();
+		if (x != null) {
+			release(out);
+			throw new IOException("Storing documents failed, the first one: " + x.getMessage(), x.getCause());
+		}
+
+		if (_rQueue == null) {
+			storeAndRelease(sName, out);
+			x = _rFailure.get();
+			if (x != null)
+				throw x;
+			return;
+		}
+
+		try {
+			_rQueue.put(new Pending(sName, out));
+		} catch (InterruptedException e) {
+			release(out);
+			throw new InterruptedIOException("Interrupted while waiting to store " + sName);
+		}
+	}
+
+	public void release(TemplateOutput out) {
+
+		if (out.capacity() > MAX_POOLED)
+			return;
+		out.reset();
+		_rPool.offer(out);
+	}
+
+	public synchronized void close() throws IOException {
+
+		if (_bClosed)
+			return;
+		_bClosed = true;
+
+		if (_rThread != null) {
+			try {
+				_rQueue.put(END);
+				_rThread.join();
+			} catch (InterruptedException x) { throw new InterruptedIOException("Interrupted while waiting for the documents to be stored"); }
+		}
+
+		finish();
+		IOException x = _rFailure.get();
+		if (x != null)
+			throw new IOException("Storing documents failed, the first one: " + x.getMessage(), x.getCause());
+	}
+
+	/** Stores the document and puts its output back into the pool, a failure is kept for write() and close(). **/
+	private void storeAndRelease(String sName, TemplateOutput out) {
+
+		try {
+			store(sName, out.getBuffer());
+		} catch (Throwable x) {
+			_rFailure.compareAndSet(null, new IOException("Storing " + sName + " failed", x));
+		} finally { release(out); }
+	}
+}
@@ -8,8 +8,9 @@ package com.munskimii.tengine.base;
 **/
 
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
-import javax.tools.*;
+import java.util.concurrent.*;
 
 import com.munskimii.tengine.*;
 
@@ -39,6 +40,14 @@ public class BaseEngine {
 			_rMetaParm = buildMetaParameters();
 			_rCtx = new TContext(_rMetaCtx, _rMetaParm);
 
+			// compile, load and render times per template, see TemplateMetrics
+			if (_rMetaParm.getParameter("tengine.metrics").equals("true"))
+				TemplateMetrics.setEnabled(true);
+
+			// the size (in MB) and time to live (in seconds) of the <%# cache %> fragments of each template
+			FragmentCache.setDefaults(_rMetaParm.getIntParameter("tengine.cache.size", 16) * 1024L * 1024L,
+											_rMetaParm.getIntParameter("tengine.cache.ttl", 0) * 1000L);
+
 		} catch (Throwable x) { x.printStackTrace(); System.exit(1); }
 	}
 
@@ -84,27 +93,241 @@ public class BaseEngine {
 		return rMetaParm;
 	}
 
+	/**
+	 * Returns the schema the templates are built against, the columns named by the "tengine.data.columns" parameter 
+	 * (separated by "|", like the header row of the data file), null if not set.  A template then reads the values of
+	 * these columns by slot (see RecordSchema), records of a data file with other columns still work, only slower.
+	**/
+	public static RecordSchema getSchema(TContext rCtx) {
+
+		String sColumns = rCtx.getMetaParameters().getParameter("tengine.data.columns");
+		if (sColumns.length() == 0)
+			return null;
+		return new RecordSchema(sColumns.split("\\|"));
+	}
+
+	/**
+	 * Returns the charset documents are written in, the "tengine.charset" parameter (UTF-8 if not set).
+	 * The templates are built with this charset, so their static text is encoded only once.
+	**/
+	public static String getCharset(TContext rCtx) {
+
+		String sCharset = rCtx.getMetaParameters().getParameter("tengine.charset");
+		if (sCharset.length() == 0)
+			return "UTF-8";
+		return sCharset;
+	}
+
 	/**
 	 * Creates the code related to each individual given template.  The templates for the base engine are any files in "config/templates/".
 	 *
+	 * All templates are parsed in parallel first, then compiled together (see TemplateCompiler), the generated code is still
+	 * written to the "gen" directory for review and the compiled classes to the "classes" directory.
+	 *
+	 * Templates that did not change since the last build come from the build cache (see getCache()), their code is not
+	 * created again and the "gen" directory keeps the code of the build that put them in the cache.
+	 *
+	 * The files included by the templates are built along with them, see buildIncludes().
+	 *
 	 * The iVersion param  is necessary if you want to build/compile/load a single template multiple times in a JVM session.
 	**/
 	public static void buildTemplates(TContext rCtx, int iVersion) throws IOException {
 
-		iterateBuildTemplates(rCtx, new File("config\\templates\\"), "", true, iVersion);
+		buildTemplates(rCtx, iVersion, new ArrayList<TemplateUnit>());
+	}
+
+	/** Builds the templates into rUnits, see buildTemplates() above, and returns all units built (text pools and included files too). **/
+	private static ArrayList<TemplateUnit> buildTemplates(TContext rCtx, int iVersion, ArrayList<TemplateUnit> rUnits) throws IOException {
+
+		iterateBuildTemplates(new File("config\\templates\\"), "", true, iVersion, rUnits);
+		TemplateCache rCache = getCache(rCtx);
+		Map<String, TemplatePool> rPools = createPools(rCtx, rUnits, iVersion, rCache);
+		Map<String, String> rKeys = getIncludeKeys(rCtx, rCache);
+		parseTemplates(rCtx, rUnits, rPools, rCache);
+		ArrayList<TemplateUnit> rIncludes = buildIncludes(rCtx, rUnits, rKeys, rCache);
+		ArrayList<TemplateUnit> rPoolUnits = getPoolUnits(rPools);
+
+		// write code for each template (and text pool and included file) into the location the generated code can be reviewed
+		ArrayList<TemplateUnit> rAll = new ArrayList<TemplateUnit>(rPoolUnits);
+		rAll.addAll(rIncludes);
+		rAll.addAll(rUnits);
+		for (TemplateUnit rUnit : rAll) {
+
+			if (rUnit.getSource() == null)
+				continue;
+
+			File rOut = new File("com\\munskimii\\tengine\\gen\\" + rUnit.getInterfaceClass() + ".java");
+			FileWriter out = new FileWriter(rOut);
+			out.write(rUnit.getSource());
+			out.flush();
+			out.close();
+		}
+
+		compileTemplates(rCtx, rUnits, rPoolUnits, rIncludes, new File("classes"));
+		storeTemplates(rCache, rUnits, rIncludes);
+		return rAll;
+	}
+
+	/**
+	 * Builds the templates like buildTemplates(), then packs them with the engine into "bundle/templates.jar" and writes
+	 * the shared class archive "bundle/templates.jsa" for it (see TemplateBundle).  Starting run mode from the jar with the
+	 * archive maps all template classes in at once:
+	 *
+	 *   java -XX:SharedArchiveFile=bundle/templates.jsa -cp bundle/templates.jar com.munskimii.tengine.base.BaseEngine run test.dat
+	 *
+	 * The archive holds the classes a JVM loaded from the jar.  Without a data file that JVM only loads the templates, with
+	 * one it generates their documents as well, so the classes used to render them are archived too.  The start up time
+	 * with and without the archive is reported.  Setting the "tengine.bundle.archive" parameter to false skips the archive.
+	 *
+	 * @param sData the name of a data file in "config/data", may be null
+	**/
+	public static void bundleTemplates(TContext rCtx, String sData) throws IOException {
+
+		ArrayList<TemplateUnit> rUnits = new ArrayList<TemplateUnit>();
+		ArrayList<TemplateUnit> rAll = buildTemplates(rCtx, 0, rUnits);
+
+		// the archive keeps the class path it was written with, so the paths are built the same way on every platform
+		File rDir = new File("bundle");
+		rDir.mkdirs();
+		File rJar = new File(rDir, "templates.jar");
+		File rArchive = new File(rDir, "templates.jsa");
+		TemplateBundle.write(rJar, rAll, rUnits);
+		System.out.println("Bundled templates: " + rJar.getPath());
+
+		if (rCtx.getMetaParameters().getParameter("tengine.bundle.archive").equals("false"))
+			return;
+
+		String[] asArgs = (sData != null) ? new String[] { "run", sData } : new String[] { "preload" };
+		if (!TemplateBundle.archive(rJar, rArchive, asArgs))
+			return;
+
+		long lPlain = TemplateBundle.time(rJar, null, 3, "preload");
+		long lShared = TemplateBundle.time(rJar, rArchive, 3, "preload");
+		System.out.println("Wrote the shared class archive: " + rArchive.getPath());
+		System.out.println("Start up with all templates loaded: " + lPlain + " ms without the archive, " + lShared + " ms with it");
+	}
+
+	/** 
+	 * Returns the build cache, kept in the "cache" directory unless the "tengine.build.cache" parameter names another one.
+	 * Setting the parameter to false turns the cache off, every template is then built from scratch.
+	**/
+	private static TemplateCache getCache(TContext rCtx) throws IOException {
+
+		String sDir = rCtx.getMetaParameters().getParameter("tengine.build.cache");
+		if (sDir.equals("false"))
+			return null;
+		if (sDir.length() == 0)
+			sDir = "cache";
+		return new TemplateCache(new File(sDir));
+	}
+
+	/** 
+	 * Builds and compiles a single template in memory, in a class loader of its own.  TemplateWatcher uses this to reload
+	 * a template whose file changed.  The build cache is updated, but the entries of the other templates are kept.  The
+	 * files the template includes are loaded again with it, from the cache when they did not change.
+	 *
+	 * @param rFile the template file
+	 * @param sGroup the group of the template, derived from its directory (see iterateBuildTemplates())
+	**/
+	static TemplateUnit rebuildTemplate(TContext rCtx, File rFile, String sGroup) throws IOException {
+
+		ArrayList<TemplateUnit> rUnits = new ArrayList<TemplateUnit>();
+		iterateBuildTemplates(rFile, sGroup, false, 0, rUnits);
+		TemplateCache rCache = getCache(rCtx);
+		Map<String, String> rKeys = getIncludeKeys(rCtx, rCache);
+		parseTemplates(rCtx, rUnits, new LinkedHashMap<String, TemplatePool>(), rCache);
+		ArrayList<TemplateUnit> rIncludes = buildIncludes(rCtx, rUnits, rKeys, rCache);
+		compileTemplates(rCtx, rUnits, new ArrayList<TemplateUnit>(), rIncludes, null);
+
+		if (rCache != null) {
+
+			ArrayList<TemplateUnit> rAll = new ArrayList<TemplateUnit>(rIncludes);
+			rAll.addAll(rUnits);
+			for (TemplateUnit rUnit : rAll) {
+				if (rUnit.getCacheKey() != null && !rUnit.isCached() && !rUnit.hasErrors())
+					rCache.store(rUnit, rUnit.getLocation(), rUnit.getCacheKey());
+			}
+			rCache.save();
+		}
+		return rUnits.get(0);
+	}
+
+	/** Puts the newly built templates (and included files) into the cache, and drops the cache entries of templates that are gone. **/
+	private static void storeTemplates(TemplateCache rCache, ArrayList<TemplateUnit> rUnits, ArrayList<TemplateUnit> rIncludes) throws IOException {
+
+		if (rCache == null)
+			return;
+
+		ArrayList<TemplateUnit> rAll = new ArrayList<TemplateUnit>(rIncludes);
+		rAll.addAll(rUnits);
+		List<String> rIds = new ArrayList<String>();
+		for (TemplateUnit rUnit : rAll) {
+
+			rIds.add(rUnit.getLocation());
+			if (rUnit.getCacheKey() != null && !rUnit.isCached() && !rUnit.hasErrors())
+				rCache.store(rUnit, rUnit.getLocation(), rUnit.getCacheKey());
+		}
+		rCache.retain(rIds);
+		rCache.save();
+	}
+
+	/** 
+	 * Creates one static text pool per template group, identical text in the templates of a group is then held only once.
+	 * Setting the "tengine.build.pool" parameter to false keeps the text constants in each generated class instead.
+	 * There are no pools while the build cache is used, cached templates must not depend on each other.
+	**/
+	private static Map<String, TemplatePool> createPools(
+															TContext rCtx, 
+															ArrayList<TemplateUnit> rUnits, 
+															int iVersion, 
+															TemplateCache rCache) {
+
+		Map<String, TemplatePool> rPools = new LinkedHashMap<String, TemplatePool>();
+		if (rCache != null || rCtx.getMetaParameters().getParameter("tengine.build.pool").equals("false"))
+			return rPools;
+
+		for (TemplateUnit rUnit : rUnits) {
+			if (!rPools.containsKey(rUnit.getGroup()))
+				rPools.put(rUnit.getGroup(), new TemplatePool("miibase_" + rUnit.getGroup() + "_pool" + iVersion + "_", getCharset(rCtx)));
+		}
+		return rPools;
+	}
+
+	/** Returns a unit for each holder class of the pools, they are compiled like templates but never loaded as one. **/
+	private static ArrayList<TemplateUnit> getPoolUnits(Map<String, TemplatePool> rPools) {
+
+		ArrayList<TemplateUnit> rPoolUnits = new ArrayList<TemplateUnit>();
+		for (Map.Entry<String, TemplatePool> e : rPools.entrySet()) {
+
+			TemplatePool rPool = e.getValue();
+			for (String sClass : rPool.getClassNames()) {
+
+				TemplateUnit rUnit = new TemplateUnit(sClass, e.getKey(), "", sClass, "text pool of group '" + e.getKey() + "'");
+				rUnit.setSource(rPool.getSource(sClass));
+				rPoolUnits.add(rUnit);
+			}
+		}
+		return rPoolUnits;
 	}
 
 	/** Recursive method to ensure all templates in the "config/templates/" directory is processed. Directory name is part of final output. **/
 	private static void iterateBuildTemplates(
-																	TContext rCtx, 
 																	File rFile, 
 																	String sGroup, 
 																	boolean bFirst,
-																	int iVersion) 
-																																		throws IOException {
+																	int iVersion,
+																	ArrayList<TemplateUnit> rUnits) {
 
 		if (rFile.isFile()) {
-			buildTemplate(rCtx, rFile, sGroup, iVersion);
+
+			// split file name first part (before dot) from its final extension
+			String[] asVal = rFile.getName().split("\\.");
+			String sName = asVal[0].toLowerCase().replace(" ", "_");
+			String sExt = "";
+			if (asVal.length == 2)
+				sExt = asVal[1];
+
+			rUnits.add(new TemplateUnit(sName, sGroup, sExt, "miibase_" + sGroup + "_" + sName + iVersion, rFile.getPath()));
 		}
 		else if (rFile.isDirectory()) {
 
@@ -117,85 +340,385 @@ public class BaseEngine {
 			
 			for (int i = 0; i < arFiles.length; i++) {
 
-				iterateBuildTemplates(rCtx, arFiles[i], sGroup, false, iVersion);
+				iterateBuildTemplates(arFiles[i], sGroup, false, iVersion, rUnits);
 			}
 		}
 	}
 
 	/** 
-	 * BaseEngine implementation of creating the template related code base java files. 
+	 * BaseEngine implementation of creating the template related code base, every template is parsed on its own thread pool task. 
 	 *
-	 * The method uses the core capabilities of the template engine light-weight framework to do the core work.
+	 * The thread count can be set with the "tengine.build.threads" parameter, it defaults to the number of processors.
+	 * Templates without java code are assembled straight into class files (see TemplateAssembler), unless the
+	 * "tengine.build.assemble" parameter is false.  With a cache, a template whose text did not change is not parsed at all.
 	**/
-	private static Template buildTemplate(
-																TContext rCtx, 
-																File rFile, 
-																String sGroup, 
-																int iVersion) throws IOException {
+	private static void parseTemplates(
+															final TContext rCtx, 
+															ArrayList<TemplateUnit> rUnits, 
+															final Map<String, TemplatePool> rPools, 
+															final TemplateCache rCache) throws IOException {
 
-		// split file name first part (before dot) from its final extension
-		String[] asVal = rFile.getName().split("\\.");
-		String sName = asVal[0].toLowerCase().replace(" ", "_");
-		String sExt = "";
-		if (asVal.length == 1)
-			sExt = asVal[1];
+		int iThreads = rCtx.getMetaParameters().getIntParameter("tengine.build.threads", Runtime.getRuntime().availableProcessors());
+		long lStart = System.nanoTime();
+
+		ExecutorService rExec = Executors.newFixedThreadPool(Math.max(1, iThreads));
+		try {
+
+			List<Future<?>> rFutures = new ArrayList<Future<?>>();
+			for (final TemplateUnit rUnit : rUnits) {
+				rFutures.add(rExec.submit(new Runnable() {
+					public void run() {
+
+						// get code for each template using the light-weight framework
+						try {
+							byte[] abText = readFile(new File(rUnit.getLocation()));
+							TemplateOptions rOptions = getOptions(rCtx, rPools.get(rUnit.getGroup()));
+
+							if (rCache != null) {
+								rUnit.setCacheKey(TemplateCache.getKey(rCtx, rUnit.getInterfaceClass(), abText, rOptions));
+								if (rCache.load(rCtx, rUnit, rUnit.getLocation(), rUnit.getCacheKey()))
+									return;
+							}
+
+							// the template file is read in the default charset, just like a FileReader does
+							rUnit.build(rCtx, new InputStreamReader(new ByteArrayInputStream(abText)), rOptions);
+						} catch (IOException x) { rUnit.addDiagnostic(rUnit.getLocation() + ": " + x.getMessage(), true); }
+					}
+				}));
+			}
+
+			for (Future<?> rFuture : rFutures) {
+				try {
+					rFuture.get();
+				} catch (InterruptedException x) {
+					throw new InterruptedIOException("Interrupted while parsing templates");
+				} catch (ExecutionException x) { throw new IOException("Parsing templates failed", x.getCause()); }
+			}
+		} finally { rExec.shutdown(); }
+
+		int iCached = 0;
+		for (TemplateUnit rUnit : rUnits) {
+			if (rUnit.isCached())
+				iCached++;
+		}
+		System.out.println("Parsed " + (rUnits.size() - iCached) + " templates (" + iCached + " unchanged) in " + ((System.nanoTime() - lStart) / 1000000) + " ms using " + iThreads + " threads");
+	}
+
+	/** 
+	 * Returns the build options set up by the "tengine.build.*" parameters, for a template of the group with the given
+	 * text pool (null for none).
+	**/
+	private static TemplateOptions getOptions(TContext rCtx, TemplatePool rPool) {
+
+		MetaParameters rParams = rCtx.getMetaParameters();
+		TemplateOptions rOptions = new TemplateOptions();
+		rOptions.setCharset(getCharset(rCtx));
+		rOptions.setPool(rPool);
+		rOptions.setAssemble(!rParams.getParameter("tengine.build.assemble").equals("false"));
+		rOptions.setResolver(getSchema(rCtx));
+		rOptions.setFold(rParams.getParameter("tengine.build.fold").equals("true"));
+		rOptions.setProfile(rParams.getParameter("tengine.build.profile").equals("true"));
+		rOptions.setSplit(!rParams.getParameter("tengine.build.split").equals("false"));
+		if (rParams.getParameter("tengine.escape").length() > 0)
+			rOptions.setEscape(rParams.getParameter("tengine.escape"));
+		return rOptions;
+	}
+
+	/** 
+	 * Returns the cache key of every file in the "config/includes/" directory, by its path within the directory ("/"
+	 * separated, the way an include directive names it).  With a cache, the keys are also its current include
+	 * dependencies: a cached template is only used while the files it includes did not change.
+	**/
+	private static Map<String, String> getIncludeKeys(TContext rCtx, TemplateCache rCache) throws IOException {
+
+		Map<String, String> rKeys = new TreeMap<String, String>();
+		iterateIncludes(rCtx, new File("config\\includes\\"), "", rKeys);
+		if (rCache != null) {
+			for (Map.Entry<String, String> e : rKeys.entrySet())
+				rCache.setDependency(TemplateGenerator.INCLUDE + e.getKey(), e.getValue());
+		}
+		return rKeys;
+	}
+
+	/** Recursive method to ensure all files in the "config/includes/" directory get their key. **/
+	private static void iterateIncludes(TContext rCtx, File rDir, String sPath, Map<String, String> rKeys) throws IOException {
+
+		File[] arFiles = rDir.listFiles();
+		if (arFiles == null)
+			return;
+
+		for (int i = 0; i < arFiles.length; i++) {
+
+			String sFile = sPath + arFiles[i].getName();
+			if (arFiles[i].isDirectory())
+				iterateIncludes(rCtx, arFiles[i], sFile + "/", rKeys);
+			else
+				rKeys.put(sFile, TemplateCache.getKey(rCtx, TemplateGenerator.getIncludeClass(sFile), readFile(arFiles[i]), getOptions(rCtx, null)));
+		}
+	}
+
+	/** 
+	 * Builds the files the templates include, and the files those include in turn.  Each file is built once, into the
+	 * class named by TemplateGenerator.getIncludeClass(), no matter how many templates include it - they all call that
+	 * class.  Included files are never part of a text pool, so they can be cached like templates.
+	 *
+	 * A template just built depends on the key of every file it includes (see getIncludeKeys()), so once an included file
+	 * changes only the templates including it are built again.  Including a missing file, or a file that includes
+	 * itself, is an error of the template.
+	**/
+	private static ArrayList<TemplateUnit> buildIncludes(
+															TContext rCtx, 
+															ArrayList<TemplateUnit> rUnits, 
+															Map<String, String> rKeys, 
+															TemplateCache rCache) throws IOException {
+
+		Map<String, TemplateUnit> rIncludes = new LinkedHashMap<String, TemplateUnit>();
+		ArrayList<TemplateUnit> rRound = rUnits;
+		while (rRound.size() > 0) {
+
+			ArrayList<TemplateUnit> rNext = new ArrayList<TemplateUnit>();
+			for (TemplateUnit rUnit : rRound) {
+				for (String sFile : rUnit.getIncludes()) {
+
+					File rFile = new File(new File("config\\includes\\"), sFile);
+					if (!rKeys.containsKey(sFile)) {
+						rUnit.addDiagnostic(rUnit.getLocation() + ": included file not found: " + rFile.getPath(), true);
+						continue;
+					}
+					if (rCache != null && !rUnit.isCached())
+						rUnit.addDependency(TemplateGenerator.INCLUDE + sFile, rKeys.get(sFile));
+					if (rIncludes.containsKey(sFile))
+						continue;
+
+					// split file name first part (before dot) from its final extension
+					String[] asVal = rFile.getName().split("\\.");
+					String sName = asVal[0].toLowerCase().replace(" ", "_");
+					String sExt = "";
+					if (asVal.length == 2)
+						sExt = asVal[1];
+
+					TemplateUnit rInclude = new TemplateUnit(sName, "include", sExt, TemplateGenerator.getIncludeClass(sFile), rFile.getPath());
+					rIncludes.put(sFile, rInclude);
+					rNext.add(rInclude);
+				}
+			}
+
+			if (rNext.size() > 0)
+				parseTemplates(rCtx, rNext, new LinkedHashMap<String, TemplatePool>(), rCache);
+			rRound = rNext;
+		}
 
-		System.out.println("Building template: " + sName);
+		// a file including itself (directly or not) would create its own instance forever
+		for (Map.Entry<String, TemplateUnit> e : rIncludes.entrySet()) {
 
-		// get code for each template using the light-weight framework
-		FileReader in = new FileReader(rFile);
-		String s = Template.build(rCtx, sName, "miibase_" + sGroup + "_" + sName + iVersion, in);
-		in.close();
+			Set<String> rSeen = new HashSet<String>();
+			LinkedList<String> rTodo = new LinkedList<String>(e.getValue().getIncludes());
+			while (!rTodo.isEmpty()) {
 
-		// write code for each template into a location we will compile from later in the process
-		File rOut = new File("com\\munskimii\\tengine\\gen\\miibase_" + sGroup + "_" + sName + iVersion + ".java");
-		FileWriter out = new FileWriter(rOut);
-		out.write(s);
-		out.flush();
-		out.close();
+				String sFile = rTodo.removeFirst();
+				if (sFile.equals(e.getKey())) {
+					e.getValue().addDiagnostic(e.getValue().getLocation() + ": the file includes itself", true);
+					break;
+				}
+				if (rSeen.add(sFile) && rIncludes.containsKey(sFile))
+					rTodo.addAll(rIncludes.get(sFile).getIncludes());
+			}
+		}
+		return new ArrayList<TemplateUnit>(rIncludes.values());
+	}
+
+	/** Returns the content of the file. **/
+	private static byte[] readFile(File rFile) throws IOException {
+
+		DataInputStream in = new DataInputStream(new FileInputStream(rFile));
+		try {
+			byte[] ab = new byte[(int) rFile.length()];
+			in.readFully(ab);
+			return ab;
+		} finally { in.close(); }
+	}
+
+	/** 
+	 * BaseEngine implementation of compiling the parsed templates, all templates go through one compiler task. 
+	 *
+	 * The "tengine.build.shards" parameter splits the batch into that many compiler tasks that run in parallel.
+	 * Templates that fail to parse or compile are reported with their diagnostics, they do not stop the other templates.
+	 *
+	 * The text pools are compiled first, their class loader is the parent of all template class loaders.  The included
+	 * files come next, in a class loader between the pools and the templates.
+	**/
+	private static void compileTemplates(
+															TContext rCtx, 
+															ArrayList<TemplateUnit> rUnits, 
+															ArrayList<TemplateUnit> rPoolUnits, 
+															ArrayList<TemplateUnit> rIncludes, 
+															File rClassDir) throws IOException {
+
+		int iShards = rCtx.getMetaParameters().getIntParameter("tengine.build.shards", 1);
+		long lStart = System.nanoTime();
+
+		ClassLoader rParent = BaseEngine.class.getClassLoader();
+		if (rPoolUnits.size() > 0) {
+
+			TemplateCompiler.compile(rPoolUnits, rParent, 1, rClassDir);
+			for (TemplateUnit rUnit : rPoolUnits) {
+				if (rUnit.hasErrors())
+					throw new IOException("Compiling text pool failed: " + rUnit.getDiagnostics());
+			}
+			rParent = rPoolUnits.get(0).getLoader();
+		}
+
+		// the files that have their classes (cached or assembled) first, the files compiled now may include them
+		ArrayList<TemplateUnit> rLoaded = new ArrayList<TemplateUnit>();
+		ArrayList<TemplateUnit> rPending = new ArrayList<TemplateUnit>();
+		for (TemplateUnit rUnit : rIncludes) {
+			if (!rUnit.getClasses().isEmpty())
+				rLoaded.add(rUnit);
+			else
+				rPending.add(rUnit);
+		}
+
+		for (ArrayList<TemplateUnit> rBatch : Arrays.asList(rLoaded, rPending)) {
+
+			TemplateCompiler.compile(rBatch, rParent, 1, rClassDir);
+			for (TemplateUnit rUnit : rBatch) {
+				if (rUnit.getLoader() != null) {
+					rParent = rUnit.getLoader();
+					break;
+				}
+			}
+		}
+
+		for (TemplateUnit rUnit : rIncludes) {
+
+			for (String sDiag : rUnit.getDiagnostics())
+				System.out.println("  " + sDiag);
+			if (rUnit.hasErrors())
+				System.out.println("Failed include: " + rUnit.getLocation());
+		}
 
-		System.out.println("Compiling template: " + rOut.getName());
+		TemplateCompiler.compile(rUnits, rParent, iShards, rClassDir);
 
-		// compile the java class we just created
-		JavaCompiler rCmplr = ToolProvider.getSystemJavaCompiler();
-		StandardJavaFileManager fileManager = rCmplr.getStandardFileManager(
-				null,
-				null,
-				null);
+		System.out.println("Compiled " + rUnits.size() + " templates in " + ((System.nanoTime() - lStart) / 1000000) + " ms using " + iShards + " compiler tasks");
 
-		fileManager.setLocation(
-									StandardLocation.CLASS_OUTPUT, 
-									Arrays.asList(new File("classes")));
-		rCmplr.getTask(null, fileManager, null, null, null,
-								fileManager.getJavaFileObjectsFromFiles(Arrays.asList(rOut))).call();
-		fileManager.close();
+		for (TemplateUnit rUnit : rUnits) {
 
-		return null;
+			for (String sDiag : rUnit.getDiagnostics())
+				System.out.println("  " + sDiag);
+			if (rUnit.hasErrors())
+				System.out.println("Failed template: " + rUnit.getName());
+			else if (rUnit.isCached())
+				System.out.println("Unchanged template: " + rUnit.getName());
+			else
+				System.out.println(((rUnit.getClassBytes() != null) ? "Assembled template: " : "Built template: ") + rUnit.getName());
+		}
 	}
 
 	/**
 	 * After the templates have been built (code created and compiled), the classes are to be loaded into the JVM.
+	 * All templates are loaded at once, see createRegistry() to load them as they are used.
 	**/
 	public static ArrayList<Template> loadTemplates(TContext rCtx, int iVersion) 
 				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
 
+		return createRegistry(rCtx, iVersion).getAll();
+	}
+
+	/**
+	 * Returns a registry of the built templates, each one is loaded on its first use (see TemplateRegistry).  The
+	 * templates are those of the bundle jar when it is on the class path (see bundleTemplates()), otherwise those in the
+	 * "config/templates" directory - only their names are read, no class is loaded yet.
+	 *
+	 * Setting the "tengine.registry.evict" parameter to true lets the JVM drop templates not used for a while when memory
+	 * runs low, they are loaded again when they are used next.
+	**/
+	public static TemplateRegistry createRegistry(TContext rCtx, int iVersion) throws IOException {
+
+		TemplateRegistry rRegistry = new TemplateRegistry(rCtx, rCtx.getMetaParameters().getParameter("tengine.registry.evict").equals("true"));
+		if (TemplateBundle.register(rRegistry, BaseEngine.class.getClassLoader()))
+			System.out.println("Found " + rRegistry.size() + " templates in the bundle" + (TemplateBundle.isArchived() ? " (shared class archive)" : ""));
+		else
+			iterateRegisterTemplates(rRegistry, new File("config\\templates\\"), "", true, iVersion);
+		return rRegistry;
+	}
+
+	/**
+	 * Builds, compiles and loads the templates in memory, nothing is written to the "gen" or "classes" directories.
+	 *
+	 * The compiled classes get their own class loader, so there is no need for a version number to load a template again.
+	 * Templates that fail to build are reported and left out.
+	**/
+	public static ArrayList<Template> compileTemplates(TContext rCtx) 
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+		ArrayList<TemplateUnit> rUnits = new ArrayList<TemplateUnit>();
+		iterateBuildTemplates(new File("config\\templates\\"), "", true, 0, rUnits);
+		TemplateCache rCache = getCache(rCtx);
+		Map<String, TemplatePool> rPools = createPools(rCtx, rUnits, 0, rCache);
+		Map<String, String> rKeys = getIncludeKeys(rCtx, rCache);
+		parseTemplates(rCtx, rUnits, rPools, rCache);
+		ArrayList<TemplateUnit> rIncludes = buildIncludes(rCtx, rUnits, rKeys, rCache);
+		compileTemplates(rCtx, rUnits, getPoolUnits(rPools), rIncludes, null);
+		storeTemplates(rCache, rUnits, rIncludes);
+
 		ArrayList<Template> rTemps = new ArrayList<Template>();
-		iterateLoadTemplates(rCtx, new File("config\\templates\\"), rTemps, "", true, iVersion);
+		for (TemplateUnit rUnit : rUnits) {
+			if (!rUnit.hasErrors())
+				rTemps.add(rUnit.load(rCtx));
+		}
+		return rTemps;
+	}
+
+	/**
+	 * Loads the templates of the bundle jar on the class path (see bundleTemplates()), and reports how long that took.
+	 * Returns null if there is no bundle on the class path.
+	**/
+	public static ArrayList<Template> loadBundle(TContext rCtx) 
+				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+
+		TemplateRegistry rRegistry = new TemplateRegistry(rCtx, false);
+		if (!TemplateBundle.register(rRegistry, BaseEngine.class.getClassLoader()))
+			return null;
+
+		long lStart = System.nanoTime();
+		ArrayList<Template> rTemps = rRegistry.getAll();
+		System.out.println("Loaded " + rTemps.size() + " templates from the bundle in " + ((System.nanoTime() - lStart) / 1000000) + " ms"
+										+ (TemplateBundle.isArchived() ? " (shared class archive)" : ""));
 		return rTemps;
 	}
 
-	/** Recursive method to ensure all templates in the "config/templates/" directory is loaded. **/
-	private static void iterateLoadTemplates(
-												TContext rCtx, 
+	/**
+	 * Returns the keys of the templates named by the "tengine.run.templates" parameter, a comma separated list of
+	 * "group/name" keys (see TemplateRegistry.getKey()), or all keys of the registry without the parameter.  Nothing is
+	 * loaded here, the templates are taken from the registry as the documents are generated - only these are loaded.
+	**/
+	public static List<String> selectTemplates(TContext rCtx, TemplateRegistry rRegistry) throws IOException {
+
+		List<String> rAll = rRegistry.getKeys();
+		String sKeys = rCtx.getMetaParameters().getParameter("tengine.run.templates").trim();
+		if (sKeys.length() == 0)
+			return rAll;
+
+		List<String> rKeys = new ArrayList<String>();
+		for (String sKey : sKeys.split(",")) {
+
+			if (!rAll.contains(sKey.trim()))
+				throw new IOException("Template not found: " + sKey.trim());
+			rKeys.add(sKey.trim());
+		}
+		return rKeys;
+	}
+
+	/** Recursive method to ensure all templates in the "config/templates/" directory are registered. **/
+	private static void iterateRegisterTemplates(
+												TemplateRegistry rRegistry, 
 												File rFile, 
-												ArrayList<Template> rTemps, 
 												String sGroup, 
 												boolean bFirst, 
-												int iVersion) 
-				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+												int iVersion) {
 
 		if (rFile.isFile()) {
-			rTemps.add(loadTemplate(rCtx, rFile, sGroup, iVersion));
+			registerTemplate(rRegistry, rFile, sGroup, iVersion);
 		}
 		else if (rFile.isDirectory()) {
 
@@ -209,18 +732,17 @@ public class BaseEngine {
 			for (int i = 0; i < arFiles.length; i++) {
 
 
-				iterateLoadTemplates(rCtx, arFiles[i], rTemps, sGroup, false, iVersion);
+				iterateRegisterTemplates(rRegistry, arFiles[i], sGroup, false, iVersion);
 			}
 		}
 	}
 
 	/** 
-	 * BaseEngine implementation of loaded the template related code base class files. 
+	 * BaseEngine implementation of registering the template related code base class files, they are loaded on first use. 
 	 *
 	 * The method uses the core capabilities of the template engine light-weight framework to do the core work.
 	**/
-	private static Template loadTemplate(TContext rCtx, File rFile, String sGroup, int iVersion) 
-				throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
+	private static void registerTemplate(TemplateRegistry rRegistry, File rFile, String sGroup, int iVersion) {
 
 		String[] asVal = rFile.getName().split("\\.");
 		String sName = asVal[0].toLowerCase().replace(" ", "_");
@@ -228,10 +750,117 @@ public class BaseEngine {
 		if (asVal.length == 2)
 			sExt = asVal[1];
 
-		System.out.println("Loading template: " + sName);
+		// the code base for each template, from the "classes" directory
+		rRegistry.register(sGroup, sName, sExt, "miibase_" + sGroup + "_" + sName + iVersion, BaseEngine.class.getClassLoader());
+	}
+
+	/** 
+	 * Generates and writes the document of every template for every data record, the documents are generated in parallel 
+	 * by a RenderScheduler (see its parameters).  Reports the documents per second once all are written.
+	 *
+	 * The records are streamed from the data file by a RecordSource, each record is dropped once the documents of all
+	 * templates are submitted.  The "tengine.data.buffer" parameter is the number of records read ahead (default 1024).
+	 * A progress line is printed every "tengine.data.progress" records (default 1000, 0 for none).
+	 *
+	 * The documents are stored by a FileDocumentSink, a background thread writes them while the next ones are generated.
+	 * With the "tengine.output.archive" parameter they are packed into that archive instead (see ArchiveDocumentSink),
+	 * keyed by template group, name and record number.
+	 *
+	 * @param bAppend true to add the documents to the archive, false to start a new one (files are always replaced)
+	**/
+	private static void generateDocuments(
+															TContext rCtx, 
+															List<Template> rTemps, 
+															File rData, 
+															Charset rCharset,
+															boolean bAppend) throws IOException {
+
+		generateDocuments(rCtx, rTemps, null, null, rData, rCharset, bAppend);
+	}
+
+	/**
+	 * Generates the documents of the registered templates, see above.  Each template is taken from the registry for every
+	 * document and not held on to in between, so one the JVM evicted (see TemplateRegistry) is loaded again on its next use.
+	 *
+	 * @param rKeys the keys of the templates in the registry (see selectTemplates())
+	**/
+	private static void generateDocuments(
+															TContext rCtx, 
+															TemplateRegistry rRegistry, 
+															List<String> rKeys, 
+															File rData, 
+															Charset rCharset) throws IOException {
+
+		generateDocuments(rCtx, null, rRegistry, rKeys, rData, rCharset, false);
+	}
+
+	/** The templates are either the given ones, or the keys of the templates in the registry. **/
+	private static void generateDocuments(
+															TContext rCtx, 
+															List<Template> rTemps, 
+															TemplateRegistry rRegistry, 
+															List<String> rKeys, 
+															File rData, 
+															Charset rCharset,
+															boolean bAppend) throws IOException {
+
+		int iTemps = (rTemps != null) ? rTemps.size() : rKeys.size();
+		AsyncDocumentSink rSink = ArchiveDocumentSink.create(rCtx, "config\\documents\\", rCharset, bAppend);
+		boolean bArchive = (rSink != null);
+		if (!bArchive)
+			rSink = FileDocumentSink.create(rCtx, "config\\documents\\", rCharset);
+		RenderScheduler rScheduler = RenderScheduler.create(rCtx, rSink);
+		RecordSource rSource = new RecordSource(rData, rCtx.getMetaParameters().getIntParameter("tengine.data.buffer", 1024));
+		int iProgress = rCtx.getMetaParameters().getIntParameter("tengine.data.progress", 1000);
+		try {
+			// generate and write the generated data document per data record
+			int iCounter = 0;
+			Record rRecord = null;
+			while ((rRecord = rSource.next()) != null) {
+
+				iCounter++;
+				if (iProgress > 0 && iCounter % iProgress == 0)
+					System.out.println("Generating documents, record " + iCounter);
+
+				for (int i = 0; i < iTemps; i++) {
+
+					// write code for each template
+					Template rTemp = (rTemps != null) ? rTemps.get(i) : getTemplate(rRegistry, rKeys.get(i));
+					if (bArchive)
+						rScheduler.submit(rTemp, rRecord, ArchiveDocumentSink.getKey(rTemp.getGroup(), rTemp.getName(), iCounter));
+					else
+						rScheduler.submit(rTemp, rRecord, iCounter + rTemp.getName() + ".dat");
+				}
+			}
+		} finally {
+			rSource.close();
+			try {
+				rScheduler.finish();
+			} finally { rSink.close(); }
+		}
+
+		System.out.println(rScheduler.getReport());
+		if (TemplateMetrics.isEnabled())
+			System.out.print(TemplateMetrics.report());
+		if (!FragmentCache.getAll().isEmpty())
+			System.out.print(FragmentCache.report());
+		if (!TemplateProfile.getAll().isEmpty())
+			System.out.print(TemplateProfile.report(rCtx.getMetaParameters().getIntParameter("tengine.build.profile.top", 20)));
+	}
+
+	/** Returns the template of the registry, loading it if it is not loaded (or was evicted). **/
+	private static Template getTemplate(TemplateRegistry rRegistry, String sKey) throws IOException {
 
-		// load the code base for each template
-		return Template.load(rCtx, sName, sGroup, "miibase_" + sGroup + "_" + sName + iVersion, sExt);
+		Template rTemp = null;
+		try {
+			rTemp = rRegistry.get(sKey);
+		} catch (IOException x) {
+			throw x;
+		} catch (Exception x) { throw new IOException("Cannot load template " + sKey, x); }
+
+		if (rTemp == null)
+			throw new IOException("Template not found: " + sKey);
+		return rTemp;
 	}
 
 	/**
@@ -246,7 +875,7 @@ public class BaseEngine {
 
 			if (asArgs.length == 0) {
 
-				System.out.println("Arg needed, either two modes:  compile  |  run");
+				System.out.println("Arg needed, one of the modes:  compile  |  bundle  |  run  |  memory  |  watch");
 				return;
 			}
 
@@ -256,48 +885,77 @@ public class BaseEngine {
 				rEng.buildTemplates(rEng.getContext(), 0);
 			}
 
-			if (asArgs[0].equals("run")) {
+			// "bundle" is the same as "compile", plus the bundle jar and its shared class archive (an optional data file trains the archive)
+			if (asArgs[0].equals("bundle")) {
+
+				BaseEngine rEng = new BaseEngine();
+				rEng.bundleTemplates(rEng.getContext(), (asArgs.length > 1) ? asArgs[1] : null);
+			}
+
+			// "preload" only loads the templates of the bundle, the JVM that writes its archive (and the start up timing) runs it
+			if (asArgs[0].equals("preload")) {
+
+				BaseEngine rEng = new BaseEngine();
+				if (rEng.loadBundle(rEng.getContext()) == null) {
+					System.out.println("No template bundle on the class path");
+					System.exit(1);
+				}
+			}
+
+			// "memory" is the same as "run", except the templates are built and compiled in memory first (no "compile" step needed)
+			// "watch" is the same as "memory", but then keeps generating the documents of every template that changes
+			if (asArgs[0].equals("run") || asArgs[0].equals("memory") || asArgs[0].equals("watch")) {
 
 				if (asArgs.length == 1) {
 					System.out.println("You must provide data file in run mode");
 					return;
 				}
 
-				// load data file records into a base Record object (data values can be gathered from column header names), implements MetaRecord
-				BufferedReader rDataIn = new BufferedReader(
-											new FileReader(new File("config\\data\\" + asArgs[1])));
-				String[] asHeader = rDataIn.readLine().split("\\|");
-				ArrayList<Record> rData = new ArrayList<Record>();
-
-				String sLine = null;
-				while ((sLine = rDataIn.readLine()) != null) {
-					String[] asRow = sLine.split("\\|");
-					rData.add(new Record(asHeader, asRow));
+				// data file records are streamed into base Record objects (data values can be gathered from column header names), see RecordSource
+				final File rData = new File("config\\data\\" + asArgs[1]);
+				if (!rData.isFile()) {
+					System.out.println("Data file not found: " + rData.getPath());
+					return;
 				}
 
-				// load templates that were previously generated
+				// load templates that were previously generated (from the bundle when run from its jar) as they are used
 				BaseEngine rEng = new BaseEngine();
-				ArrayList<Template> rTemps = rEng.loadTemplates(rEng.getContext(), 0);
+				final TContext rCtx = rEng.getContext();
+				final Charset rCharset = Charset.forName(getCharset(rCtx));
+				if (asArgs[0].equals("run")) {
 
-				// generate documents for each template, start by iterating through each template
-				for (int i = 0; i < rTemps.size(); i++) {
-
-					// get the code base for each template
-					Template rTemp = rTemps.get(i);
-
-					// generate and write the generated data document per data record
-					int iCounter = 0;
-					for (Record rRecord : rData) {
-
-						System.out.println("Generating document");
+					TemplateRegistry rRegistry = rEng.createRegistry(rCtx, 0);
+					generateDocuments(rCtx, rRegistry, rEng.selectTemplates(rCtx, rRegistry), rData, rCharset);
+					System.out.print(TemplateMetrics.isEnabled() ? rRegistry.report() : rRegistry.getSummary());
+					return;
+				}
 
-						// write code for each template
-						File rOut = new File("config\\documents\\" + (++iCounter) + rTemp.getName() + ".dat");
-						FileWriter out = new FileWriter(rOut);
-						rTemp.generate(rRecord, out); // generates document for given MetaRecord to output stream
-						out.flush();
-						out.close();
-					}
+				// or build them now in memory, and generate documents for each template
+				ArrayList<Template> rTemps = rEng.compileTemplates(rCtx);
+				generateDocuments(rCtx, rTemps, rData, rCharset, false);
+
+				if (asArgs[0].equals("watch")) {
+
+					// the data file is streamed again for every reload, it may have changed as well
+					TemplateWatcher rWatcher = new TemplateWatcher(rCtx, new File("config\\templates\\"), rTemps, new TemplateWatcher.Listener() {
+						public void reloaded(Template rTemp) {
+							try {
+								System.out.println("Reloaded template: " + rTemp.getName() + " (version " + rTemp.getVersion() + ")");
+								generateDocuments(rCtx, Arrays.asList(rTemp), rData, rCharset, true);
+							} catch (IOException x) { x.printStackTrace(); }
+						}
+						public void removed(Template rTemp) {
+							System.out.println("Removed template: " + rTemp.getName());
+						}
+						public void failed(String sLocation, List<String> rDiagnostics) {
+							System.out.println("Reload failed, keeping the previous version: " + sLocation);
+						}
+					});
+					rWatcher.start();
+
+					System.out.println("Watching config/templates for changes, press enter to stop");
+					System.in.read();
+					rWatcher.close();
 				}
 			}
 
@@ -0,0 +1,94 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The DocumentArchive class reads the documents of an archive written by ArchiveDocumentSink.
+ *
+ * The index is read once when the archive is opened, the segments are memory mapped the first time a document of theirs
+ * is asked for.  A document is returned as a read-only view of the mapped segment, its bytes are never copied.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+public class DocumentArchive {
+
+	private String _sPath;
+	private Map<String, long[]> _rIndex = new LinkedHashMap<String, long[]>();
+	private Map<Integer, ByteBuffer> _rSegments = new HashMap<Integer, ByteBuffer>();
+
+	/**
+	 * Constructor, reads the index of the archive.
+	 *
+	 * @param sPath the path of the archive files, the same as given to ArchiveDocumentSink
+	**/
+	public DocumentArchive(String sPath) throws IOException {
+
+		_sPath = sPath;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sPath + ".idx")));
+		try {
+			if (in.readInt() != ArchiveDocumentSink.MAGIC)
+				throw new IOException("Not a document archive index: " + sPath + ".idx");
+
+			while (true) {
+				String sKey = null;
+				try {
+					sKey = in.readUTF();
+				} catch (EOFException x) { break; }
+
+				// a later entry of the same document wins
+				_rIndex.remove(sKey);
+				_rIndex.put(sKey, new long[] { in.readInt(), in.readLong(), in.readInt() });
+			}
+		} finally { in.close(); }
+	}
+
+	/** Returns the number of documents. **/
+	public int size() {
+		return _rIndex.size();
+	}
+
+	/** Returns the keys of the documents, in the order they were stored (see ArchiveDocumentSink.getKey()). **/
+	public Set<String> getKeys() {
+		return Collections.unmodifiableSet(_rIndex.keySet());
+	}
+
+	/** Returns the document of the template for the record number, null if the archive does not have it. **/
+	public ByteBuffer get(String sGroup, String sName, int iRecord) throws IOException {
+		return get(ArchiveDocumentSink.getKey(sGroup, sName, iRecord));
+	}
+
+	/** Returns the document with the key as a read-only view of its segment, null if the archive does not have it. **/
+	public synchronized ByteBuffer get(String sKey) throws IOException {
+
+		long[] alEntry = _rIndex.get(sKey);
+		if (alEntry == null)
+			return null;
+
+		ByteBuffer rSegment = getSegment((int) alEntry[0]);
+		ByteBuffer rDoc = rSegment.duplicate();
+		rDoc.position((int) alEntry[1]);
+		rDoc.limit((int) alEntry[1] + (int) alEntry[2]);
+		return rDoc.slice();
+	}
+
+	/** Returns the mapped segment, it is mapped on first use. **/
+	private ByteBuffer getSegment(int iSegment) throws IOException {
+
+		ByteBuffer rSegment = _rSegments.get(Integer.valueOf(iSegment));
+		if (rSegment == null) {
+
+			// the mapping stays valid after the channel is closed
+			RandomAccessFile rFile = new RandomAccessFile(ArchiveDocumentSink.getSegment(_sPath, iSegment), "r");
+			try {
+				FileChannel rChannel = rFile.getChannel();
+				rSegment = rChannel.map(FileChannel.MapMode.READ_ONLY, 0, rChannel.size()).asReadOnlyBuffer();
+			} finally { rFile.close(); }
+			_rSegments.put(Integer.valueOf(iSegment), rSegment);
+		}
+		return rSegment;
+	}
+}
@@ -0,0 +1,63 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The FileDocumentSink class stores every document in a file of its own, the way the base engine always did.
+ *
+ * The writer thread (see AsyncDocumentSink) writes each document with a single FileChannel write of its whole buffer, so
+ * the render threads never open, write or close files themselves.  With the "document" sync policy each file is forced
+ * to the disk before it is closed, by default that is left to the operating system.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+import com.munskimii.tengine.*;
+
+public class FileDocumentSink extends AsyncDocumentSink {
+
+	private String _sDir;
+	private boolean _bSync;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sDir the path put in front of the document names, ending with a separator (like "config\\documents\\")
+	 * @param rCharset the charset of the documents
+	 * @param iQueue the number of documents waiting for the writer thread at most, 0 writes them on the render threads
+	 * @param bSync true to force every file to the disk before it is closed
+	**/
+	public FileDocumentSink(String sDir, Charset rCharset, int iQueue, boolean bSync) {
+
+		super(rCharset, iQueue, "tengine-document-writer");
+		_sDir = sDir;
+		_bSync = bSync;
+	}
+
+	/** Returns the sink set up by the "tengine.output.queue" and "tengine.output.sync" parameters. **/
+	public static FileDocumentSink create(TContext rCtx, String sDir, Charset rCharset) {
+
+		MetaParameters rParams = rCtx.getMetaParameters();
+		int iQueue = rParams.getIntParameter("tengine.output.queue", 64);
+		boolean bSync = rParams.getParameter("tengine.output.sync").equals("document");
+		return new FileDocumentSink(sDir, rCharset, iQueue, bSync);
+	}
+
+	protected void store(String sName, ByteBuffer rBytes) throws IOException {
+
+		FileChannel rChannel = FileChannel.open(Paths.get(_sDir + sName),
+											StandardOpenOption.CREATE,
+											StandardOpenOption.WRITE,
+											StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (rBytes.hasRemaining())
+				rChannel.write(rBytes);
+			if (_bSync)
+				rChannel.force(true);
+		} finally { rChannel.close(); }
+	}
+}
@@ -8,6 +8,13 @@ package com.munskimii.tengine.base;
  * probably want to have your own java objects and pre-defined scriptlet variables specific to your 
  * own template engine.
  *
+ * A record is just an array of values, the column names are kept once in the RecordSchema shared by all records of
+ * the data file.  Templates built against the schema read the values by slot, see get(int, String).  For streaming, a
+ * single record can be used as a flyweight over one row after the other with setValues(), as long as the documents of
+ * a row are done before the next one is set.
+ *
+ * As an IndexedMetaRecord the record binds the "data" variable (index 0 of the base engine MetaContext) by its index.
+ *
  * Author: Michael Monschke
 **/
 
@@ -15,37 +22,94 @@ import java.io.*;
 import java.util.*;
 import com.munskimii.tengine.*;
 
-import com.munskimii.tengine.*;
+public class Record implements IndexedMetaRecord {
 
-public class Record implements MetaRecord {
+	private RecordSchema _rSchema;
+	private String[] _asValues;
 
-	private Properties _rProp = new Properties();
+	/** The values put under names that are not in the schema. **/
+	private Map<String, String> _rExtra;
 
-	public Record() {}
+	public Record() {
+		this(RecordSchema.EMPTY, new String[0]);
+	}
 
 	public Record(String[] asHeader, String[] asRow) {
 
-		for (int i = 0; i < asHeader.length; i++) {
+		this(new RecordSchema(asHeader), new String[asHeader.length]);
+		for (int i = 0; i < asHeader.length && i < asRow.length; i++) {
 			put(asHeader[i], asRow[i]);
 		}
 	}
 
+	/** Constructor, the values are in the slot order of the schema, the array is used as is (not copied). **/
+	public Record(RecordSchema rSchema, String[] asValues) {
+		_rSchema = rSchema;
+		_asValues = asValues;
+	}
+
+	/** Returns the schema of the record. **/
+	public RecordSchema getSchema() {
+		return _rSchema;
+	}
+
+	/** Points the record at the values of another row of the same schema, see the flyweight note above. **/
+	public void setValues(String[] asValues) {
+		_asValues = asValues;
+		_rExtra = null;
+	}
 
 	public void put(String sName, String sValue) {
-		_rProp.put(sName, sValue);
+
+		int iSlot = _rSchema.getSlot(sName);
+		if (iSlot >= 0 && iSlot < _asValues.length) {
+			_asValues[iSlot] = sValue;
+			return;
+		}
+
+		if (_rExtra == null)
+			_rExtra = new HashMap<String, String>();
+		_rExtra.put(sName, sValue);
 	}
 
 	public String get(String sName) {
 
-		String s = _rProp.getProperty(sName);
+		int iSlot = _rSchema.getSlot(sName);
+		String s = null;
+		if (iSlot >= 0 && iSlot < _asValues.length)
+			s = _asValues[iSlot];
+		else if (_rExtra != null)
+			s = _rExtra.get(sName);
+
 		if (s == null)
 			return "";
 		return s;
 	}
 
+	/**
+	 * Returns the value of the column at the slot the template was built with (see RecordSchema), the name is only used
+	 * when the record has another schema than the template.
+	**/
+	public String get(int iSlot, String sName) {
+
+		if (iSlot < _asValues.length && iSlot < _rSchema.size() && _rSchema.getName(iSlot) == sName) {
+			String s = _asValues[iSlot];
+			if (s == null)
+				return "";
+			return s;
+		}
+		return get(sName);
+	}
+
 	public Object getObject(String sName) {
 		if (sName.equals("data"))
 			return this;
 		return null;
 	}
+
+	public Object getObject(int iIndex) {
+		if (iIndex == 0)
+			return this;
+		return null;
+	}
 }
@@ -0,0 +1,79 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The RecordSchema class holds the column names of a data file, shared by all of its records (see Record).
+ *
+ * Every column has a slot, its position in the header row.  A record only keeps its values in slot order, so looking up
+ * a column by name is a single (unsynchronized) map lookup, and by slot just an array load.
+ *
+ * The schema is also the FieldResolver of the base engine, the "tengine.data.columns" parameter names the columns the
+ * templates are built against (see BaseEngine.getSchema()), data.get("fname") in a template then reads slot 0 directly.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.util.*;
+
+import com.munskimii.tengine.*;
+
+public class RecordSchema implements FieldResolver {
+
+	/** The schema of records that only have values put by name. **/
+	public static final RecordSchema EMPTY = new RecordSchema(new String[0]);
+
+	private String[] _asNames;
+	private Map<String, Integer> _rSlots;
+
+	/** Constructor, the names are the columns in slot order. **/
+	public RecordSchema(String[] asNames) {
+
+		_asNames = new String[asNames.length];
+		_rSlots = new HashMap<String, Integer>(asNames.length * 2);
+		for (int i = 0; i < asNames.length; i++) {
+
+			// interned, so get(int, String) usually finds the template's literal by identity
+			_asNames[i] = asNames[i].intern();
+			if (!_rSlots.containsKey(_asNames[i]))
+				_rSlots.put(_asNames[i], Integer.valueOf(i));
+		}
+	}
+
+	/** Returns the number of columns. **/
+	public int size() {
+		return _asNames.length;
+	}
+
+	/** Returns the name of the column in the slot. **/
+	public String getName(int iSlot) {
+		return _asNames[iSlot];
+	}
+
+	/** Returns the slot of the column, -1 if there is no such column. **/
+	public int getSlot(String sName) {
+
+		Integer rSlot = _rSlots.get(sName);
+		if (rSlot == null)
+			return -1;
+		return rSlot.intValue();
+	}
+
+	/** Resolves data.get("column") of the base engine templates, see FieldResolver. **/
+	public int getSlot(String sVariable, String sField) {
+
+		if (!sVariable.equals("data"))
+			return -1;
+		return getSlot(sField);
+	}
+
+	/** Returns the column names separated by "|", like the header row they came from. **/
+	public String toString() {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < _asNames.length; i++) {
+			if (i > 0)
+				sb.append('|');
+			sb.append(_asNames[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,263 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The RecordSource class streams the records of a data file, so documents can be generated while the file is still read.
+ *
+ * The data file is pipe delimited, with named columns in the header row (see BaseEngine).  It is memory mapped a window
+ * at a time and a background thread splits the lines right in the mapped bytes, only the field values become strings.
+ * All records share the RecordSchema of the header row, a record itself is just the array of its values.
+ * The records wait in a bounded queue until next() takes them, so the memory used stays the same no matter how large
+ * the file is.
+ *
+ * The file is read in the default charset, just like a FileReader does.  Charsets where "|" and new lines are not single
+ * ASCII bytes (UTF-16 and the like) are read through a reader instead.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RecordSource implements Closeable {
+
+	/** Bytes mapped at once, a window grows only for a line that does not fit. **/
+	private static final int WINDOW = 64 * 1024 * 1024;
+
+	/** Queued after the last record. **/
+	private static final Record END = new Record();
+
+	private File _rFile;
+	private Charset _rCharset = Charset.defaultCharset();
+	private BlockingQueue<Record> _rQueue;
+	private Thread _rThread;
+	private volatile IOException _rFailure;
+	private volatile boolean _bClosed;
+	private boolean _bEnd;
+	private RecordSchema _rSchema;
+
+	/** The bytes of the field being decoded, see decode(). **/
+	private byte[] _abField = new byte[256];
+
+	/**
+	 * Constructor, starts reading the data file on a background thread.
+	 *
+	 * @param rFile the data file
+	 * @param iBuffer the number of records read ahead at most
+	**/
+	public RecordSource(File rFile, int iBuffer) throws IOException {
+
+		if (!rFile.isFile())
+			throw new FileNotFoundException(rFile.getPath());
+
+		_rFile = rFile;
+		_rQueue = new ArrayBlockingQueue<Record>(Math.max(1, iBuffer));
+		_rThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					if (isAsciiCompatible(_rCharset))
+						readMapped();
+					else
+						readLines();
+				} catch (IOException x) {
+					_rFailure = x;
+				} catch (InterruptedException x) {
+					// closed
+				} finally {
+					// the end waits for room like any record, close() interrupts the wait when nobody takes it anymore
+					if (!_bClosed) {
+						try {
+							_rQueue.put(END);
+						} catch (InterruptedException x) {
+							// closed
+						}
+					}
+				}
+			}
+		}, "tengine-record-reader");
+		_rThread.setDaemon(true);
+		_rThread.start();
+	}
+
+	/** Returns the next record, waiting for the reader thread if needed, or null at the end of the file. **/
+	public Record next() throws IOException {
+
+		if (_bEnd || _bClosed)
+			return null;
+
+		Record rRecord = null;
+		try {
+			rRecord = _rQueue.take();
+		} catch (InterruptedException x) { throw new InterruptedIOException("Interrupted while reading " + _rFile.getPath()); }
+
+		if (rRecord == END) {
+			_bEnd = true;
+			if (_rFailure != null)
+				throw new IOException("Reading " + _rFile.getPath() + " failed", _rFailure);
+			return null;
+		}
+		return rRecord;
+	}
+
+	/** Stops reading, records not taken yet are dropped and next() returns null from now on. **/
+	public void close() {
+
+		_bClosed = true;
+		_rThread.interrupt();
+		_rQueue.clear();
+	}
+
+	/** Maps the file a window at a time, every complete line in the window becomes a record. **/
+	private void readMapped() throws IOException, InterruptedException {
+
+		FileInputStream in = new FileInputStream(_rFile);
+		try {
+			FileChannel rChannel = in.getChannel();
+			long lSize = rChannel.size();
+			long lPos = 0;
+			int iWindow = WINDOW;
+
+			while (lPos < lSize && !_bClosed) {
+
+				int iLen = (int) Math.min(iWindow, lSize - lPos);
+				boolean bLast = (lPos + iLen == lSize);
+				MappedByteBuffer rBuf = rChannel.map(FileChannel.MapMode.READ_ONLY, lPos, iLen);
+
+				int iLine = 0;
+				int i = 0;
+				while (i < iLen) {
+
+					byte b = rBuf.get(i);
+					if (b != '\n' && b != '\r') {
+						i++;
+						continue;
+					}
+
+					// "\r\n" is one line end, a "\r" at the end of the window waits for the next one
+					int iEnd = i++;
+					if (b == '\r') {
+						if (i == iLen && !bLast)
+							break;
+						if (i < iLen && rBuf.get(i) == '\n')
+							i++;
+					}
+					addLine(rBuf, iLine, iEnd);
+					iLine = i;
+				}
+
+				// the last line of the file needs no line end
+				if (bLast && iLine < iLen) {
+					addLine(rBuf, iLine, iLen);
+					iLine = iLen;
+				}
+
+				// a line longer than the window, map a larger one
+				if (iLine == 0 && !bLast) {
+					if (iWindow > Integer.MAX_VALUE / 2)
+						throw new IOException("Line too long at byte " + lPos + " of " + _rFile.getPath());
+					iWindow *= 2;
+					continue;
+				}
+
+				lPos += iLine;
+				iWindow = WINDOW;
+			}
+		} finally { in.close(); }
+	}
+
+	/** Reads the file line by line through a reader, for charsets that are not ASCII compatible. **/
+	private void readLines() throws IOException, InterruptedException {
+
+		BufferedReader rIn = new BufferedReader(new InputStreamReader(new FileInputStream(_rFile), _rCharset));
+		try {
+			String sLine = null;
+			while ((sLine = rIn.readLine()) != null && !_bClosed) {
+
+				List<String> rFields = new ArrayList<String>();
+				int iStart = 0;
+				for (int i = sLine.indexOf('|'); i >= 0; i = sLine.indexOf('|', iStart)) {
+					rFields.add(sLine.substring(iStart, i));
+					iStart = i + 1;
+				}
+				rFields.add(sLine.substring(iStart));
+				addFields(rFields.toArray(new String[rFields.size()]), sLine.length() == 0);
+			}
+		} finally { rIn.close(); }
+	}
+
+	/**
+	 * Splits the line between the two buffer positions into its fields, the first line is the header.  The delimiters are
+	 * found in the mapped bytes themselves, only the bytes of each field are decoded into its value.
+	**/
+	private void addLine(ByteBuffer rBuf, int iStart, int iEnd) throws InterruptedException {
+
+		if (_rSchema == null) {
+
+			List<String> rNames = new ArrayList<String>();
+			int iField = iStart;
+			for (int i = iStart; i <= iEnd; i++) {
+				if (i == iEnd || rBuf.get(i) == '|') {
+					rNames.add(decode(rBuf, iField, i));
+					iField = i + 1;
+				}
+			}
+			_rSchema = new RecordSchema(rNames.toArray(new String[rNames.size()]));
+			return;
+		}
+
+		if (iStart == iEnd)
+			return;
+
+		// one record per line, a missing field is left out of the record (its value is then "")
+		String[] asValues = new String[_rSchema.size()];
+		int iField = iStart;
+		int iCol = 0;
+		for (int i = iStart; i <= iEnd && iCol < asValues.length; i++) {
+			if (i == iEnd || rBuf.get(i) == '|') {
+				asValues[iCol++] = decode(rBuf, iField, i);
+				iField = i + 1;
+			}
+		}
+		_rQueue.put(new Record(_rSchema, asValues));
+	}
+
+	/** Decodes the bytes of a field between the two buffer positions into its value, the buffer position is not kept. **/
+	private String decode(ByteBuffer rBuf, int iStart, int iEnd) {
+
+		int iLen = iEnd - iStart;
+		if (iLen == 0)
+			return "";
+		if (_abField.length < iLen)
+			_abField = new byte[Math.max(iLen, _abField.length * 2)];
+		rBuf.position(iStart);
+		rBuf.get(_abField, 0, iLen);
+		return new String(_abField, 0, iLen, _rCharset);
+	}
+
+	/** The reader path of addLine(). **/
+	private void addFields(String[] asFields, boolean bEmpty) throws InterruptedException {
+
+		if (_rSchema == null) {
+			_rSchema = new RecordSchema(asFields);
+			return;
+		}
+		if (bEmpty)
+			return;
+
+		String[] asValues = new String[_rSchema.size()];
+		System.arraycopy(asFields, 0, asValues, 0, Math.min(asFields.length, asValues.length));
+		_rQueue.put(new Record(_rSchema, asValues));
+	}
+
+	/** Returns true if the charset writes "|", "\r" and "\n" as single bytes that never occur within other chars. **/
+	private static boolean isAsciiCompatible(Charset rCharset) {
+
+		String sName = rCharset.name();
+		if (sName.equals("UTF-8") || sName.equals("US-ASCII") || sName.startsWith("ISO-8859-") || sName.startsWith("windows-125"))
+			return true;
+		return false;
+	}
+}
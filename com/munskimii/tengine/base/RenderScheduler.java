@@ -0,0 +1,150 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The RenderScheduler class generates documents on many threads, one task per template and data record.
+ *
+ * The tasks run on a fork-join pool, or on virtual threads when the JVM has them (java 21 and up).  No more than a fixed
+ * number of documents are in flight at once, submit() waits for a free slot, so the tasks (and their output buffers) never
+ * pile up no matter how many records there are.  Each task renders its document into an output of the DocumentSink, and
+ * hands it to the sink to be stored (see AsyncDocumentSink).
+ *
+ * Templates handle being used by many threads at once themselves, see Template.isStateless().
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.munskimii.tengine.*;
+
+public class RenderScheduler {
+
+	private ExecutorService _rExec;
+	private DocumentSink _rSink;
+	private String _sExecutor;
+	private Semaphore _rSlots;
+	private int _iSlots;
+	private AtomicInteger _rDocuments = new AtomicInteger();
+	private AtomicLong _rBytes = new AtomicLong();
+	private AtomicInteger _rFailures = new AtomicInteger();
+	private AtomicReference<Throwable> _rFailure = new AtomicReference<Throwable>();
+	private long _lStart = System.nanoTime();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rSink where the documents go
+	 * @param iThreads the number of threads of the fork-join pool, virtual threads are only limited by the in-flight count
+	 * @param iInFlight the number of documents that may be generated at once
+	 * @param bVirtual true to use virtual threads, if the JVM does not have them a fork-join pool is used
+	**/
+	public RenderScheduler(DocumentSink rSink, int iThreads, int iInFlight, boolean bVirtual) {
+
+		_rSink = rSink;
+		iThreads = Math.max(1, iThreads);
+		_iSlots = Math.max(1, iInFlight);
+		_rSlots = new Semaphore(_iSlots);
+
+		if (bVirtual) {
+			try {
+				Method rMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				_rExec = (ExecutorService) rMethod.invoke(null);
+				_sExecutor = "virtual threads";
+			} catch (Exception x) {
+				System.out.println("Virtual threads are not available in java " + System.getProperty("java.version") + ", using a fork-join pool");
+			}
+		}
+
+		if (_rExec == null) {
+			_rExec = new ForkJoinPool(iThreads);
+			_sExecutor = iThreads + " threads";
+		}
+	}
+
+	/** Returns the scheduler set up by the "tengine.render.threads", "tengine.render.inflight" and "tengine.render.executor" parameters. **/
+	public static RenderScheduler create(TContext rCtx, DocumentSink rSink) {
+
+		MetaParameters rParams = rCtx.getMetaParameters();
+		int iThreads = rParams.getIntParameter("tengine.render.threads", Runtime.getRuntime().availableProcessors());
+		int iInFlight = rParams.getIntParameter("tengine.render.inflight", Math.max(1, iThreads) * 4);
+		boolean bVirtual = rParams.getParameter("tengine.render.executor").equals("virtual");
+		return new RenderScheduler(rSink, iThreads, iInFlight, bVirtual);
+	}
+
+	/**
+	 * Generates the document of the template for the record in the background, the sink stores it under the name.  Waits
+	 * while the maximum number of documents is in flight.  A failure is reported by finish(), it does not stop the other
+	 * documents.
+	**/
+	public void submit(final Template rTemp, final MetaRecord rRecord, final String sName) throws IOException {
+
+		try {
+			_rSlots.acquire();
+		} catch (InterruptedException x) { throw new InterruptedIOException("Interrupted while waiting to generate " + sName); }
+
+		try {
+			_rExec.execute(new Runnable() {
+				public void run() {
+					try {
+						TemplateOutput out = _rSink.acquire();
+						try {
+							rTemp.generate(rRecord, out); // generates document for given MetaRecord to output stream
+							out.finish();
+						} catch (Throwable x) {
+							_rSink.release(out);
+							throw x;
+						}
+						_rBytes.addAndGet(out.size());
+						_rSink.write(sName, out);
+						_rDocuments.incrementAndGet();
+					} catch (Throwable x) {
+						_rFailures.incrementAndGet();
+						_rFailure.compareAndSet(null, new IOException("Generating " + sName + " failed", x));
+					} finally { _rSlots.release(); }
+				}
+			});
+		} catch (RejectedExecutionException x) {
+			_rSlots.release();
+			throw new IOException("The scheduler is finished, cannot generate " + sName);
+		}
+	}
+
+	/** 
+	 * Waits until all documents are rendered, stops the threads, and throws the first failure (if any document failed).
+	 * The documents may still be waiting to be stored, until the sink is closed.
+	**/
+	public void finish() throws IOException {
+
+		try {
+			_rSlots.acquire(_iSlots);
+			_rSlots.release(_iSlots);
+		} catch (InterruptedException x) { throw new InterruptedIOException("Interrupted while waiting for the documents"); }
+		finally { _rExec.shutdown(); }
+
+		Throwable x = _rFailure.get();
+		if (x != null)
+			throw new IOException(_rFailures.get() + " documents failed, the first one: " + x.getMessage(), x.getCause());
+	}
+
+	/** Returns the number of documents written so far. **/
+	public int getDocuments() {
+		return _rDocuments.get();
+	}
+
+	/** Returns a line with the number of documents, the time since the scheduler was created, and the documents per second. **/
+	public String getReport() {
+
+		double dSeconds = (System.nanoTime() - _lStart) / 1000000000.0;
+		return String.format("Generated %d documents (%d kb) in %d ms using %s, %.1f documents/sec",
+										_rDocuments.get(),
+										_rBytes.get() / 1024,
+										(long) (dSeconds * 1000),
+										_sExecutor,
+										_rDocuments.get() / Math.max(dSeconds, 0.000001));
+	}
+}
@@ -0,0 +1,247 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The TemplateBundle class packs the compiled templates into a single jar, and creates a shared class archive (AppCDS)
+ * for it, so a short run does not pay for loading and verifying every template class one by one.
+ *
+ * The jar holds the engine classes, the classes of the templates (text pools and included files as well) and an index
+ * of the templates - one "group|name|extension|class" line each, see INDEX.  Run mode loads the templates listed in the
+ * index when the jar is on the class path, instead of looking for them in the "config/templates" directory (see
+ * register()).
+ *
+ * The archive is written by a second JVM that loads all templates from the jar and exits, the JVM dumps every class it
+ * loaded from the jar into the archive (-XX:ArchiveClassesAtExit, java 13 and up).  A JVM started with the archive
+ * (-XX:SharedArchiveFile) maps these classes in at once, already parsed and verified.  The archive only fits the JVM
+ * that wrote it, and the class path must be the jar alone - a class directory on the class path stops the dump.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+
+import com.munskimii.tengine.*;
+
+public class TemplateBundle {
+
+	/** The index of the templates within the jar. **/
+	public static final String INDEX = "META-INF/tengine/templates.idx";
+
+	private static final String ENGINE = "com/munskimii/tengine/";
+	private static final String GEN = ENGINE + "gen/";
+
+	/**
+	 * Writes the bundle jar: the engine classes, taken from where BaseEngine was loaded (a class directory or a jar),
+	 * the classes of all units and the index of the templates.  Units with errors are left out.
+	 *
+	 * @param rUnits the text pools, included files and templates, with their classes (see TemplateUnit.getClasses())
+	 * @param rTemplates the units of the templates, listed in the index
+	**/
+	public static void write(File rJar, List<TemplateUnit> rUnits, List<TemplateUnit> rTemplates) throws IOException {
+
+		Manifest rManifest = new Manifest();
+		rManifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		rManifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, BaseEngine.class.getName());
+
+		Map<String, byte[]> rEntries = new TreeMap<String, byte[]>();
+		readEngine(rEntries);
+		for (TemplateUnit rUnit : rUnits) {
+
+			if (rUnit.hasErrors())
+				continue;
+			for (Map.Entry<String, byte[]> e : rUnit.getClasses().entrySet())
+				rEntries.put(e.getKey().replace('.', '/') + ".class", e.getValue());
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (TemplateUnit rUnit : rTemplates) {
+			if (!rUnit.hasErrors())
+				sb.append(rUnit.getGroup() + "|" + rUnit.getName() + "|" + rUnit.getExtension() + "|" + rUnit.getInterfaceClass() + "\n");
+		}
+		rEntries.put(INDEX, sb.toString().getBytes("UTF-8"));
+
+		JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(rJar)), rManifest);
+		try {
+			Set<String> rDirs = new HashSet<String>();
+			for (Map.Entry<String, byte[]> e : rEntries.entrySet()) {
+
+				// the directory entries first, class loaders and tools expect them
+				String sName = e.getKey();
+				for (int i = sName.indexOf('/'); i >= 0; i = sName.indexOf('/', i + 1)) {
+					String sDir = sName.substring(0, i + 1);
+					if (rDirs.add(sDir)) {
+						out.putNextEntry(new JarEntry(sDir));
+						out.closeEntry();
+					}
+				}
+
+				out.putNextEntry(new JarEntry(sName));
+				out.write(e.getValue());
+				out.closeEntry();
+			}
+		} finally { out.close(); }
+	}
+
+	/** Reads the classes of the engine, the generated classes found next to them are left out (they may be stale). **/
+	private static void readEngine(Map<String, byte[]> rEntries) throws IOException {
+
+		File rSource = null;
+		try {
+			rSource = new File(BaseEngine.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (Exception x) { throw new IOException("Cannot locate the engine classes: " + x.getMessage()); }
+
+		if (rSource.isDirectory()) {
+			iterateEngine(new File(rSource, ENGINE), ENGINE, rEntries);
+			return;
+		}
+
+		JarFile rJar = new JarFile(rSource);
+		try {
+			Enumeration<JarEntry> rIt = rJar.entries();
+			while (rIt.hasMoreElements()) {
+
+				JarEntry rEntry = rIt.nextElement();
+				String sName = rEntry.getName();
+				if (sName.startsWith(ENGINE) && !sName.startsWith(GEN) && sName.endsWith(".class"))
+					rEntries.put(sName, readAll(rJar.getInputStream(rEntry)));
+			}
+		} finally { rJar.close(); }
+	}
+
+	/** Recursive method to read the engine classes below the class directory. **/
+	private static void iterateEngine(File rDir, String sPath, Map<String, byte[]> rEntries) throws IOException {
+
+		File[] arFiles = rDir.listFiles();
+		if (arFiles == null)
+			return;
+
+		for (int i = 0; i < arFiles.length; i++) {
+
+			String sName = sPath + arFiles[i].getName();
+			if (arFiles[i].isDirectory()) {
+				if (!(sName + "/").equals(GEN))
+					iterateEngine(arFiles[i], sName + "/", rEntries);
+			}
+			else if (sName.endsWith(".class"))
+				rEntries.put(sName, readAll(new FileInputStream(arFiles[i])));
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] ab = new byte[8192];
+			int iRead;
+			while ((iRead = in.read(ab)) > 0)
+				out.write(ab, 0, iRead);
+			return out.toByteArray();
+		} finally { in.close(); }
+	}
+
+	/**
+	 * Registers the templates listed in the index of the bundle on the class path of the loader, they are loaded from it
+	 * on their first use.  Returns false if there is no bundle on the class path.
+	**/
+	public static boolean register(TemplateRegistry rRegistry, ClassLoader rLoader) throws IOException {
+
+		InputStream in = rLoader.getResourceAsStream(INDEX);
+		if (in == null)
+			return false;
+
+		BufferedReader rIn = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String sLine;
+			while ((sLine = rIn.readLine()) != null) {
+
+				if (sLine.length() == 0)
+					continue;
+				String[] asVal = sLine.split("\\|", -1);
+				if (asVal.length != 4)
+					throw new IOException("Bad template bundle index line: " + sLine);
+				rRegistry.register(asVal[0], asVal[1], asVal[2], asVal[3], rLoader);
+			}
+		} finally { rIn.close(); }
+		return true;
+	}
+
+	/** Returns true if this JVM was started with a shared class archive of its own (-XX:SharedArchiveFile). **/
+	public static boolean isArchived() {
+
+		Optional<String[]> rArgs = ProcessHandle.current().info().arguments();
+		if (rArgs.isPresent()) {
+			for (String sArg : rArgs.get()) {
+				if (sArg.startsWith("-XX:SharedArchiveFile="))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the shared class archive of the bundle jar, by running BaseEngine from the jar alone with the given arguments
+	 * (a mode that loads the templates) in a second JVM.  Returns false, with the output of that JVM printed, if it failed.
+	**/
+	public static boolean archive(File rJar, File rArchive, String... asArgs) throws IOException {
+
+		rArchive.delete();
+		Process rProcess = start(rJar, "-XX:ArchiveClassesAtExit=" + rArchive.getPath(), asArgs, false);
+		String sOutput = new String(readAll(rProcess.getInputStream()), "UTF-8");
+		int iExit = waitFor(rProcess);
+		if (iExit == 0 && rArchive.isFile())
+			return true;
+
+		System.out.print(sOutput);
+		System.out.println("Writing the shared class archive failed (exit code " + iExit + "): " + rArchive.getPath());
+		rArchive.delete();
+		return false;
+	}
+
+	/**
+	 * Returns the best of iRuns wall clock times (in ms) of a JVM running BaseEngine from the bundle jar with the given
+	 * arguments, with the shared class archive when it is not null.  This is how much the archive saves at start up.
+	**/
+	public static long time(File rJar, File rArchive, int iRuns, String... asArgs) throws IOException {
+
+		long lBest = Long.MAX_VALUE;
+		for (int i = 0; i < iRuns; i++) {
+
+			long lStart = System.nanoTime();
+			Process rProcess = start(rJar, (rArchive != null) ? "-XX:SharedArchiveFile=" + rArchive.getPath() : null, asArgs, true);
+			int iExit = waitFor(rProcess);
+			if (iExit != 0)
+				throw new IOException("Bundle run failed (exit code " + iExit + ")");
+			lBest = Math.min(lBest, (System.nanoTime() - lStart) / 1000000);
+		}
+		return lBest;
+	}
+
+	/** Starts a JVM like this one, running BaseEngine with the bundle jar as its only class path. **/
+	private static Process start(File rJar, String sOption, String[] asArgs, boolean bDiscard) throws IOException {
+
+		List<String> rCmd = new ArrayList<String>();
+		rCmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (sOption != null)
+			rCmd.add(sOption);
+		rCmd.add("-cp");
+		rCmd.add(rJar.getPath());
+		rCmd.add(BaseEngine.class.getName());
+		rCmd.addAll(Arrays.asList(asArgs));
+
+		ProcessBuilder rBuilder = new ProcessBuilder(rCmd).redirectErrorStream(true);
+		if (bDiscard)
+			rBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		return rBuilder.start();
+	}
+
+	private static int waitFor(Process rProcess) throws IOException {
+
+		try {
+			return rProcess.waitFor();
+		} catch (InterruptedException x) {
+			rProcess.destroy();
+			throw new InterruptedIOException("Interrupted while waiting for the bundle JVM");
+		}
+	}
+}
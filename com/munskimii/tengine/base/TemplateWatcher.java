@@ -0,0 +1,226 @@
+package com.munskimii.tengine.base;
+
+/**
+ * The TemplateWatcher class reloads templates in a running JVM whenever their file in "config/templates" changes.
+ *
+ * A background thread watches the template directories (new sub directories included).  A changed template is rebuilt on
+ * its own (see BaseEngine.rebuildTemplate()) in a class loader of its own, and swapped into the loaded template (see
+ * Template.reload()), documents being generated at that moment finish with the previous version.  The classes keep their
+ * name, there is no need for a version number, and the previous class loader is collected once nothing uses it anymore.
+ *
+ * Editors tend to write a file in several steps, so changes are only picked up after the directories have been quiet for
+ * a moment.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.munskimii.tengine.*;
+
+public class TemplateWatcher implements Runnable {
+
+	/** The callbacks of the watcher, they are called on the watcher thread. **/
+	public interface Listener {
+
+		/** The template was rebuilt and its new version swapped in, or a new template file was loaded. **/
+		public void reloaded(Template rTemp);
+
+		/** The template file was deleted, the template itself keeps its last version. **/
+		public void removed(Template rTemp);
+
+		/** The template file changed but does not build, the template keeps its previous version. **/
+		public void failed(String sLocation, List<String> rDiagnostics);
+	}
+
+	/** How long the directories must be quiet before the changes are rebuilt. **/
+	private static final long QUIET_MS = 200;
+
+	private TContext _rCtx;
+	private Path _rRoot;
+	private Listener _rListener;
+	private Map<String, Template> _rTemps = new ConcurrentHashMap<String, Template>();
+	private Map<WatchKey, Path> _rDirs = new HashMap<WatchKey, Path>();
+	private Map<Path, String> _rGroups = new HashMap<Path, String>();
+	private WatchService _rService;
+	private Thread _rThread;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rCtx the template engine framework
+	 * @param rRoot the template directory, the group of a template is the path of its sub directory (see BaseEngine)
+	 * @param rTemps the loaded templates, they are reloaded in place
+	 * @param rListener told about every reload
+	**/
+	public TemplateWatcher(TContext rCtx, File rRoot, List<Template> rTemps, Listener rListener) {
+
+		_rCtx = rCtx;
+		_rRoot = rRoot.toPath();
+		_rListener = rListener;
+		for (Template rTemp : rTemps)
+			_rTemps.put(rTemp.getGroup() + "/" + rTemp.getName(), rTemp);
+	}
+
+	/** Returns the loaded template, including templates added while watching, null if there is none. **/
+	public Template getTemplate(String sGroup, String sName) {
+		return _rTemps.get(sGroup + "/" + sName);
+	}
+
+	/** Starts watching on a background thread. **/
+	public synchronized void start() throws IOException {
+
+		_rService = FileSystems.getDefault().newWatchService();
+		register(_rRoot, "");
+
+		_rThread = new Thread(this, "tengine-template-watcher");
+		_rThread.setDaemon(true);
+		_rThread.start();
+	}
+
+	/** Stops watching, a rebuild in progress is finished first. **/
+	public synchronized void close() throws IOException {
+
+		if (_rService != null)
+			_rService.close();
+		if (_rThread != null) {
+			try {
+				_rThread.join();
+			} catch (InterruptedException x) { throw new InterruptedIOException("Interrupted while closing the template watcher"); }
+		}
+	}
+
+	/** Watches the directory and all its sub directories, returns the template files found. **/
+	private List<Path> register(Path rDir, String sGroup) throws IOException {
+
+		WatchKey rKey = rDir.register(_rService,
+										StandardWatchEventKinds.ENTRY_CREATE,
+										StandardWatchEventKinds.ENTRY_MODIFY,
+										StandardWatchEventKinds.ENTRY_DELETE);
+		_rDirs.put(rKey, rDir);
+		_rGroups.put(rDir, sGroup);
+
+		List<Path> rFiles = new ArrayList<Path>();
+		File[] arFiles = rDir.toFile().listFiles();
+		for (int i = 0; arFiles != null && i < arFiles.length; i++) {
+
+			if (arFiles[i].isDirectory())
+				rFiles.addAll(register(arFiles[i].toPath(), getGroup(sGroup, arFiles[i])));
+			else
+				rFiles.add(arFiles[i].toPath());
+		}
+		return rFiles;
+	}
+
+	/** Returns the group of a sub directory, the same way BaseEngine names it. **/
+	private static String getGroup(String sGroup, File rDir) {
+
+		if (sGroup.length() > 0)
+			sGroup += "_";
+		return sGroup + rDir.getName().toLowerCase().replace(" ", "_");
+	}
+
+	/** The watcher thread, collects the changed files until things are quiet and rebuilds them. **/
+	public void run() {
+
+		try {
+			while (true) {
+
+				Set<Path> rChanged = new LinkedHashSet<Path>();
+				WatchKey rKey = _rService.take();
+				while (rKey != null) {
+					collect(rKey, rChanged);
+					rKey = _rService.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+				}
+
+				for (Path rFile : rChanged) {
+
+					if (Files.isRegularFile(rFile))
+						rebuild(rFile);
+					else if (!Files.exists(rFile))
+						remove(rFile);
+				}
+			}
+		} catch (ClosedWatchServiceException x) {
+			// close() was called
+		} catch (InterruptedException x) {
+			// stop watching
+		}
+	}
+
+	/** Adds the files of the events to the changed files, new directories are watched right away. **/
+	private void collect(WatchKey rKey, Set<Path> rChanged) {
+
+		Path rDir = _rDirs.get(rKey);
+		for (WatchEvent<?> rEvent : rKey.pollEvents()) {
+
+			// events were lost, every template could have changed
+			if (rEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+				for (Path rWatched : _rGroups.keySet()) {
+					File[] arFiles = rWatched.toFile().listFiles();
+					for (int i = 0; arFiles != null && i < arFiles.length; i++) {
+						if (arFiles[i].isFile())
+							rChanged.add(arFiles[i].toPath());
+					}
+				}
+				continue;
+			}
+
+			Path rFile = rDir.resolve((Path) rEvent.context());
+			if (rEvent.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(rFile)) {
+				try {
+					rChanged.addAll(register(rFile, getGroup(_rGroups.get(rDir), rFile.toFile())));
+				} catch (IOException x) { System.out.println("Cannot watch template directory " + rFile + ": " + x.getMessage()); }
+				continue;
+			}
+			rChanged.add(rFile);
+		}
+
+		if (!rKey.reset()) {
+			_rDirs.remove(rKey);
+			_rGroups.remove(rDir);
+		}
+	}
+
+	/** Rebuilds the template and swaps it into the loaded one, a template that does not build keeps its previous version. **/
+	private void rebuild(Path rFile) {
+
+		String sGroup = _rGroups.get(rFile.getParent());
+		if (sGroup == null)
+			return;
+
+		try {
+			TemplateUnit rUnit = BaseEngine.rebuildTemplate(_rCtx, rFile.toFile(), sGroup);
+			if (rUnit.hasErrors()) {
+				_rListener.failed(rUnit.getLocation(), rUnit.getDiagnostics());
+				return;
+			}
+
+			Template rNew = rUnit.load(_rCtx);
+			Template rTemp = _rTemps.get(sGroup + "/" + rNew.getName());
+			if (rTemp != null)
+				rTemp.reload(rNew);
+			else
+				_rTemps.put(sGroup + "/" + rNew.getName(), rTemp = rNew);
+			_rListener.reloaded(rTemp);
+		} catch (Exception x) {
+			_rListener.failed(rFile.toString(), Arrays.asList(String.valueOf(x)));
+		}
+	}
+
+	/** Forgets the template of a deleted file. **/
+	private void remove(Path rFile) {
+
+		String sGroup = _rGroups.get(rFile.getParent());
+		if (sGroup == null)
+			return;
+
+		String sName = rFile.getFileName().toString().split("\\.")[0].toLowerCase().replace(" ", "_");
+		Template rTemp = _rTemps.remove(sGroup + "/" + sName);
+		if (rTemp != null)
+			_rListener.removed(rTemp);
+	}
+}
@@ -0,0 +1,94 @@
+package com.munskimii.tengine;
+
+/**
+ * Tests of the TemplateAssembler class, the class files are loaded (and so verified) by a TemplateClassLoader and the
+ * documents they render are compared byte for byte.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.charset.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemplateAssemblerTest {
+
+	/** The text of the document, non-ASCII and astral plane chars and more than 64 kb in all. **/
+	private static final String TEXT = createText();
+
+	private TContext _rCtx = new TContext(new MetaContext() {
+									public int size() { return 0; }
+									public String getVariableName(int iIndex) { return null; }
+									public String getClassName(int iIndex) { return null; }
+								}, new MetaParameters());
+
+	/** Byte templates: the static text constants are encoded in the class initializer and written as they are. **/
+	@Test
+	public void rendersByteTemplates() throws Exception {
+
+		String[] asCharset = { "UTF-8", "ISO-8859-1", "UTF-16" };
+		for (String sCharset : asCharset) {
+
+			Charset rCharset = Charset.forName(sCharset);
+			Template rTemp = assemble("miitest_bytes", sCharset);
+			assertTrue(rTemp.isByteTemplate(), sCharset);
+			assertEquals(rCharset, rTemp.getOutputCharset(), sCharset);
+
+			TemplateOutput out = new TemplateOutput(rCharset);
+			rTemp.generate(null, out);
+			out.finish();
+			assertArrayEquals(getDocument().getBytes(rCharset), out.toByteArray(), sCharset);
+
+			// the classic contract decodes the bytes for the writer, chars the charset cannot encode are replaced
+			ByteArrayOutputStream rBytes = new ByteArrayOutputStream();
+			OutputStreamWriter rOut = new OutputStreamWriter(rBytes, "UTF-8");
+			rTemp.generate(null, rOut);
+			rOut.flush();
+			String sDecoded = new String(getDocument().getBytes(rCharset), rCharset);
+			assertArrayEquals(sDecoded.getBytes("UTF-8"), rBytes.toByteArray(), sCharset);
+		}
+	}
+
+	/** The classic TemplateInterface, the text constants are string constants of the class. **/
+	@Test
+	public void rendersClassicTemplates() throws Exception {
+
+		Template rTemp = assemble("miitest_classic", null);
+		assertFalse(rTemp.isByteTemplate());
+
+		ByteArrayOutputStream rBytes = new ByteArrayOutputStream();
+		OutputStreamWriter rOut = new OutputStreamWriter(rBytes, "UTF-8");
+		rTemp.generate(null, rOut);
+		rOut.flush();
+		assertArrayEquals(getDocument().getBytes("UTF-8"), rBytes.toByteArray());
+	}
+
+	/** Parses the template, assembles its class and loads it through a TemplateClassLoader. **/
+	private Template assemble(String sInterfaceClass, String sCharset) throws Exception {
+
+		String sTemplate = "<%@ import java.util.*; %>" + TEXT + "<%= name %>|<%= \"\\\"日本\\\" \\ud834\\udd1e\" %>|<%= name %>";
+		TemplateNode rRoot = TemplateParser.parse(_rCtx, "sample", new InputStreamReader(new ByteArrayInputStream(sTemplate.getBytes("UTF-8")), "UTF-8"));
+		assertTrue(TemplateAssembler.canAssemble(rRoot));
+
+		TemplateClassLoader rLoader = new TemplateClassLoader(Template.class.getClassLoader());
+		rLoader.addClass(TemplateCompiler.PACKAGE + "." + sInterfaceClass, TemplateAssembler.assemble(sInterfaceClass, rRoot, sCharset));
+		return Template.load(_rCtx, "sample", "test", sInterfaceClass, "txt", rLoader);
+	}
+
+	/** The document every template above renders, "name" is the template name. **/
+	private static String getDocument() {
+		return TEXT + "sample|\"日本\" 𝄞|sample";
+	}
+
+	/** About 100 kb of UTF-8 in lines of ASCII, Latin-1, CJK and astral plane (surrogate pair) chars. **/
+	private static String createText() {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 64 * 1024; i++)
+			sb.append("Line " + i + ": Grüße, 日本語のテキスト, 𝄞😀 and a \"quote\".\n");
+		return sb.toString();
+	}
+}
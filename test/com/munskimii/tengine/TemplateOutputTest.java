@@ -0,0 +1,74 @@
+package com.munskimii.tengine;
+
+/**
+ * Tests of the TemplateOutput class, every document compared with what String.getBytes() makes of the same text.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.charset.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemplateOutputTest {
+
+	private static final Charset JIS = Charset.forName("ISO-2022-JP");
+
+	/** ASCII after a value that left the encoder shifted must get the sequence back to ASCII first. **/
+	@Test
+	public void writesAsciiAfterShiftedValues() throws IOException {
+
+		TemplateOutput out = new TemplateOutput(JIS);
+		out.write("日本");
+		out.write("abcd");
+		out.finish();
+		assertArrayEquals("日本abcd".getBytes(JIS), out.toByteArray());
+
+		out.reset();
+		out.write("日");
+		out.write('a');
+		out.write("本");
+		out.write('b');
+		out.finish();
+		assertArrayEquals("日a本b".getBytes(JIS), out.toByteArray());
+	}
+
+	/** Static text is encoded on its own, the encoder must be back in its initial state before it is copied in. **/
+	@Test
+	public void writesStaticTextAfterShiftedValues() throws IOException {
+
+		byte[] abText = TemplateOutput.encode("<p>", JIS.name());
+		byte[] abKanji = TemplateOutput.encode("本</p>", JIS.name());
+
+		TemplateOutput out = new TemplateOutput(JIS);
+		out.write(abText);
+		out.write("日");
+		out.write(abText);
+		out.write("x日");
+		out.write(abKanji);
+		out.finish();
+		assertEquals("<p>日<p>x日本</p>", new String(out.toByteArray(), JIS));
+		assertEquals(-1, out.beginCapture());
+	}
+
+	/** Stateless charsets keep their fast path, the bytes are the same as before. **/
+	@Test
+	public void writesStatelessCharsets() throws IOException {
+
+		String[] asCharset = { "UTF-8", "ISO-8859-1", "windows-1252", "EUC-JP", "UTF-16" };
+		for (String sCharset : asCharset) {
+
+			Charset rCharset = Charset.forName(sCharset);
+			TemplateOutput out = new TemplateOutput(rCharset);
+			out.write(TemplateOutput.encode("<p>", sCharset));
+			out.write("café 日本");
+			out.write('!');
+			out.write(TemplateOutput.encode("</p>", sCharset));
+			out.finish();
+			assertArrayEquals("<p>café 日本!</p>".getBytes(rCharset), out.toByteArray(), sCharset);
+		}
+	}
+}
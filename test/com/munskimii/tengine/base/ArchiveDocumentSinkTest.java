@@ -0,0 +1,79 @@
+package com.munskimii.tengine.base;
+
+/**
+ * Tests of the ArchiveDocumentSink class, read back with DocumentArchive.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import com.munskimii.tengine.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArchiveDocumentSinkTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@TempDir
+	File _rDir;
+
+	/** Without a queue the render threads store the documents themselves, every one must still be stored whole. **/
+	@Test
+	public void storesFromManyThreadsWithoutAQueue() throws Exception {
+
+		final int iDocs = 1000;
+		String sPath = new File(_rDir, "documents").getPath();
+
+		// small segments, so the threads also meet while a new segment is started
+		final ArchiveDocumentSink rSink = new ArchiveDocumentSink(sPath, UTF8, 0, 8 * 1024, false);
+		ExecutorService rPool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> rDone = new ArrayList<Future<Void>>();
+			for (int i = 0; i < iDocs; i++) {
+
+				final int iRecord = i;
+				rDone.add(rPool.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+
+						TemplateOutput out = rSink.acquire();
+						out.write(getDocument(iRecord));
+						rSink.write(ArchiveDocumentSink.getKey("test", "sample", iRecord), out);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> rFuture : rDone)
+				rFuture.get();
+		} finally {
+			rPool.shutdown();
+			rSink.close();
+		}
+
+		DocumentArchive rArchive = new DocumentArchive(sPath);
+		assertEquals(iDocs, rArchive.size());
+		for (int i = 0; i < iDocs; i++) {
+
+			ByteBuffer rDoc = rArchive.get("test", "sample", i);
+			assertNotNull(rDoc, "document " + i);
+			assertEquals(getDocument(i), UTF8.decode(rDoc).toString(), "document " + i);
+		}
+	}
+
+	/** The text of a document, a few hundred bytes that differ from one record to the next. **/
+	private static String getDocument(int iRecord) {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20 + iRecord % 7; i++)
+			sb.append("record " + iRecord + " line " + i + "\n");
+		return sb.toString();
+	}
+}
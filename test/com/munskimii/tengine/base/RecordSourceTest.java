@@ -0,0 +1,86 @@
+package com.munskimii.tengine.base;
+
+/**
+ * Tests of the RecordSource class, the data file streamed through its bounded queue.
+ *
+ * Author: Michael Monschke
+**/
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.*;
+import org.junit.jupiter.api.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordSourceTest {
+
+	@TempDir
+	File _rDir;
+
+	/** Writes a data file with the header and iRows records, every third one ending in "\r\n" and the last one in nothing. **/
+	private File writeData(int iRows) throws IOException {
+
+		StringBuilder sb = new StringBuilder("fname|lname|email\n");
+		for (int i = 0; i < iRows; i++) {
+			sb.append("first" + i + "|last" + i + "|m" + i + "@example.com");
+			if (i < iRows - 1)
+				sb.append((i % 3 == 0) ? "\r\n" : "\n");
+		}
+		File rFile = new File(_rDir, "data.dat");
+		Files.write(rFile.toPath(), sb.toString().getBytes("US-ASCII"));
+		return rFile;
+	}
+
+	/** More records than the buffer holds: the reader is done while the queue is full, the end must still arrive. **/
+	@Test
+	public void readsMoreRecordsThanTheBuffer() throws Exception {
+
+		final File rFile = writeData(20000);
+		assertTimeoutPreemptively(Duration.ofSeconds(30), new ThrowingSupplier<Void>() {
+			public Void get() throws Throwable {
+
+				RecordSource rSource = new RecordSource(rFile, 16);
+				try {
+					// let the reader fill the queue and finish the file before anything is taken
+					Thread.sleep(200);
+
+					int iCount = 0;
+					Record rRecord;
+					while ((rRecord = rSource.next()) != null) {
+						assertEquals("first" + iCount, rRecord.get("fname"));
+						assertEquals("m" + iCount + "@example.com", rRecord.get("email"));
+						iCount++;
+
+						// the reader fills every slot taken near the end, so it finishes with the queue full
+						if (iCount > 20000 - 64)
+							Thread.sleep(2);
+					}
+					assertEquals(20000, iCount);
+					assertNull(rSource.next());
+				} finally { rSource.close(); }
+				return null;
+			}
+		});
+	}
+
+	/** Closing while the reader waits for room stops it, next() then returns null instead of waiting. **/
+	@Test
+	public void closeStopsAWaitingReader() throws Exception {
+
+		final File rFile = writeData(1000);
+		assertTimeoutPreemptively(Duration.ofSeconds(30), new ThrowingSupplier<Void>() {
+			public Void get() throws Throwable {
+
+				RecordSource rSource = new RecordSource(rFile, 4);
+				assertEquals("first0", rSource.next().get("fname"));
+				rSource.close();
+				assertNull(rSource.next());
+				return null;
+			}
+		});
+	}
+}